@@ -0,0 +1,88 @@
+package com.example.benchmarks;
+
+import com.example.server.FanOutSender;
+import com.example.server.MessageTemplate;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures {@link FanOutSender} throughput against {@link LocalFcmStub} at increasing in-flight limits.
+ *
+ * <pre>mvn -pl benchmarks -am package -DskipTests && mvn -pl benchmarks exec:java -Dexec.args="5000 20"</pre>
+ *
+ * Arguments: token count (default 5000) and simulated FCM latency in ms (default 20).
+ */
+public class FanOutBenchmark {
+	private static final int[] CONCURRENCY = {1, 64, 512};
+
+	public static void main(String[] args) throws Exception {
+		int tokenCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		long latencyMs = args.length > 1 ? Long.parseLong(args[1]) : 20;
+
+		List<String> tokens = new ArrayList<>(tokenCount);
+		for (int i = 0; i < tokenCount; i++) {
+			tokens.add(syntheticToken(i));
+		}
+
+		try (LocalFcmStub stub = new LocalFcmStub(0, latencyMs)) {
+			URI uri = URI.create(stub.baseUrl() + "/v1/projects/bench/messages:send");
+			HttpClient httpClient = FanOutSender.newHttpClient(Duration.ofSeconds(5));
+			System.out.printf("tokens=%d latencyMs=%d%n", tokenCount, latencyMs);
+			for (int maxInFlight : CONCURRENCY) {
+				// Serial sends at realistic latency take too long, so scale the sample down
+				List<String> sample = maxInFlight == 1 ? tokens.subList(0, Math.min(tokenCount, 200)) : tokens;
+				FanOutSender sender = new FanOutSender(httpClient, maxInFlight, Duration.ofSeconds(30));
+				run(sender, uri, sample);
+				Result r = run(sender, uri, sample);
+				System.out.printf("maxInFlight=%-4d sent=%-6d ok=%-6d failed=%-4d elapsed=%6d ms throughput=%9.1f req/s%n",
+						maxInFlight, sample.size(), r.ok, r.failed, r.elapsedMs, sample.size() * 1000.0 / Math.max(1, r.elapsedMs));
+			}
+		}
+	}
+
+	private static Result run(FanOutSender sender, URI uri, List<String> tokens) throws InterruptedException {
+		AtomicInteger ok = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		long start = System.nanoTime();
+		sender.send(uri, "bench-access-token", tokens.iterator(),
+				MessageTemplate.notification("t", "b")::publisherFor,
+				new FanOutSender.Callback() {
+					@Override
+					public void onResponse(int index, String token, HttpResponse<String> response, long latencyNanos) {
+						if (response.statusCode() == 200) ok.incrementAndGet(); else failed.incrementAndGet();
+					}
+
+					@Override
+					public void onError(int index, String token, Throwable error, long latencyNanos) {
+						failed.incrementAndGet();
+					}
+				});
+		return new Result(ok.get(), failed.get(), (System.nanoTime() - start) / 1_000_000);
+	}
+
+	public static String syntheticToken(int i) {
+		// Real FCM registration tokens are ~163 characters: "<22 chars>:APA91b<135 chars>"
+		StringBuilder sb = new StringBuilder(163);
+		sb.append(String.format("d%021d", i)).append(":APA91b");
+		while (sb.length() < 163) sb.append((char) ('a' + (sb.length() * 31 + i) % 26));
+		return sb.toString();
+	}
+
+	private static final class Result {
+		final int ok;
+		final int failed;
+		final long elapsedMs;
+
+		Result(int ok, int failed, long elapsedMs) {
+			this.ok = ok;
+			this.failed = failed;
+			this.elapsedMs = elapsedMs;
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package com.example.benchmarks;
+
+import com.example.server.ConfigLoader;
+import com.example.server.DatabaseHelper;
+import com.example.server.FCMSenderRegistry;
+import com.example.server.Metrics;
+import com.example.server.SendJob;
+import com.example.server.SendResult;
+import com.example.server.ShardedBroadcasts;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End-to-end load driver for a running server whose FCM endpoints point at {@link LocalFcmStub}. It
+ * registers synthetic devices, then runs broadcasts through {@code POST /send} and polls each job until it
+ * finishes, reporting message throughput and the latency distribution of whole broadcasts.
+ *
+ * <pre>mvn -pl benchmarks exec:java -Dexec.mainClass=com.example.benchmarks.SendLoadTest \
+ *     -Dexec.args="server=http://localhost:8080 devices=10000 sends=20 concurrency=2"</pre>
+ *
+ * <p>With {@code nodes=1,2,4} it instead measures sharded broadcasts across servers: for each node count it
+ * starts that many {@link ShardedBroadcasts} in this JVM, each with its own connection pool, FCM clients and
+ * workers, against the one database in {@code db.url} and an in-process {@link LocalFcmStub} (which takes its
+ * usual arguments). Devices are seeded straight into the table under their own project, replacing that
+ * project's devices and broadcasts from earlier runs. The database must be MySQL 8.0+ or MariaDB 10.6+.
+ * <pre>mvn -pl benchmarks exec:java -Dexec.mainClass=com.example.benchmarks.SendLoadTest \
+ *     -Ddb.url=jdbc:mysql://localhost:3306/ltm -Ddb.user=root -Ddb.password=secret \
+ *     -Dexec.args="nodes=1,2,4 devices=100000 sends=3 unitSize=2000 workers=2 latency=50"</pre>
+ */
+public class SendLoadTest {
+	private static final long POLL_INTERVAL_MS = 20;
+	/** Project of the devices seeded for the multi-node mode. */
+	private static final String SHARDED_PROJECT = "loadtest-sharded";
+	/** Seeded tokens start here, clear of the ones {@link #register} uses. */
+	private static final int SEED_TOKEN_OFFSET = 900_000_000;
+	private static final int SEED_BATCH = 1000;
+
+	public static void main(String[] args) throws Exception {
+		String server = "http://localhost:8080";
+		int devices = 10_000;
+		int sends = 20;
+		int concurrency = 2;
+		int[] nodes = null;
+		int unitSize = 2000;
+		int workers = 2;
+		long pollMs = 100;
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0) continue;
+			String value = arg.substring(eq + 1);
+			switch (arg.substring(0, eq)) {
+				case "server": server = value; break;
+				case "devices": devices = Integer.parseInt(value); break;
+				case "sends": sends = Integer.parseInt(value); break;
+				case "concurrency": concurrency = Integer.parseInt(value); break;
+				case "nodes": nodes = parseInts(value); break;
+				case "unitSize": unitSize = Integer.parseInt(value); break;
+				case "workers": workers = Integer.parseInt(value); break;
+				case "pollMs": pollMs = Long.parseLong(value); break;
+				default: break;
+			}
+		}
+		if (nodes != null) {
+			shardedLoad(args, nodes, devices, sends, unitSize, workers, pollMs);
+			return;
+		}
+		HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+		register(http, server, devices);
+
+		List<Long> submitMs = Collections.synchronizedList(new ArrayList<>());
+		List<Long> completeMs = Collections.synchronizedList(new ArrayList<>());
+		AtomicInteger processed = new AtomicInteger();
+		AtomicInteger failedMessages = new AtomicInteger();
+		AtomicInteger failedJobs = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+		List<Future<?>> runs = new ArrayList<>();
+		long start = System.nanoTime();
+		String base = server;
+		for (int i = 0; i < sends; i++) {
+			int n = i;
+			runs.add(pool.submit(() -> {
+				try {
+					long t0 = System.nanoTime();
+					HttpResponse<String> submitted = http.send(form(base + "/send", "title", "Load test " + n, "body", "Broadcast " + n),
+							HttpResponse.BodyHandlers.ofString());
+					submitMs.add((System.nanoTime() - t0) / 1_000_000);
+					if (submitted.statusCode() != 202) {
+						failedJobs.incrementAndGet();
+						System.err.println("send " + n + " rejected: " + submitted.statusCode() + " " + submitted.body());
+						return;
+					}
+					String jobId = JsonParser.parseString(submitted.body()).getAsJsonObject().get("jobId").getAsString();
+					JsonObject job = awaitJob(http, base, jobId);
+					completeMs.add((System.nanoTime() - t0) / 1_000_000);
+					processed.addAndGet(job.get("processed").getAsInt());
+					failedMessages.addAndGet(job.get("failed").getAsInt());
+					if (!"COMPLETED".equals(job.get("status").getAsString())) failedJobs.incrementAndGet();
+				} catch (Exception e) {
+					failedJobs.incrementAndGet();
+					System.err.println("send " + n + " failed: " + e);
+				}
+			}));
+		}
+		for (Future<?> run : runs) run.get();
+		pool.shutdown();
+		long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+
+		System.out.printf(Locale.ROOT, "broadcasts=%d concurrency=%d devices=%d failedJobs=%d%n", sends, concurrency, devices, failedJobs.get());
+		System.out.printf(Locale.ROOT, "messages=%d failed=%d elapsed=%d ms throughput=%.1f msg/s%n",
+				processed.get(), failedMessages.get(), elapsedMs, processed.get() * 1000.0 / elapsedMs);
+		System.out.println("POST /send latency ms:   " + percentiles(submitMs));
+		System.out.println("broadcast latency ms:    " + percentiles(completeMs));
+	}
+
+	private static void shardedLoad(String[] args, int[] nodeCounts, int devices, int sends, int unitSize, int workers, long pollMs)
+			throws Exception {
+		try (LocalFcmStub stub = new LocalFcmStub(0, LocalFcmStub.Behavior.parse(args))) {
+			Path credentials = LocalFcmStub.writeServiceAccount(Path.of("target", "standin-service-account.json"), "loadtest",
+					stub.baseUrl() + "/token");
+			System.setProperty("fcm.baseUrl", stub.baseUrl());
+			System.setProperty("fcm.tokenUri", stub.baseUrl() + "/token");
+			System.setProperty("fcm.projectId", "loadtest");
+			System.setProperty("fcm.serviceAccountFile", credentials.toAbsolutePath().toString());
+			// The registry always serves default as well; the benchmark only sends for its own project
+			System.setProperty("fcm.projects", FCMSenderRegistry.DEFAULT_PROJECT + "," + SHARDED_PROJECT);
+			seed(devices);
+			System.out.printf(Locale.ROOT, "devices=%d broadcasts=%d unitSize=%d workers=%d per node%n", devices, sends, unitSize, workers);
+			for (int nodeCount : nodeCounts) {
+				runNodes(nodeCount, sends, unitSize, workers, pollMs);
+			}
+			System.out.println("stand-in: " + stub.statsLine());
+		}
+	}
+
+	/**
+	 * Sends {@code sends} broadcasts, one after another, through the first of {@code nodeCount} servers while
+	 * all of them claim units, and reports throughput and how the units were spread.
+	 */
+	private static void runNodes(int nodeCount, int sends, int unitSize, int workers, long pollMs) throws Exception {
+		try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement("DELETE FROM broadcast WHERE project = ?")) {
+			ps.setString(1, SHARDED_PROJECT);
+			ps.executeUpdate();
+		}
+		List<HikariDataSource> pools = new ArrayList<>();
+		List<ShardedBroadcasts> nodes = new ArrayList<>();
+		try {
+			for (int i = 0; i < nodeCount; i++) {
+				HikariDataSource pool = pool("node-" + i, workers + 2);
+				pools.add(pool);
+				ShardedBroadcasts node = new ShardedBroadcasts(new DatabaseHelper(pool), new FCMSenderRegistry(), "node-" + i,
+						unitSize, 1, 60_000, pollMs, 3);
+				node.start(workers, 3_600_000);
+				nodes.add(node);
+			}
+			double[] claimsBefore = claimStats();
+			List<Long> broadcastMs = new ArrayList<>();
+			long messages = 0;
+			long failed = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < sends; i++) {
+				long t0 = System.nanoTime();
+				SendResult result = nodes.get(0).run(new SendJob("send"), SHARDED_PROJECT, null, "Load test", "Broadcast " + i);
+				broadcastMs.add((System.nanoTime() - t0) / 1_000_000);
+				messages += result.getSuccessCount() + result.getFailureCount();
+				failed += result.getFailureCount();
+			}
+			long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+			System.out.printf(Locale.ROOT, "nodes=%d messages=%d failed=%d elapsed=%d ms throughput=%.1f msg/s%n",
+					nodeCount, messages, failed, elapsedMs, messages * 1000.0 / elapsedMs);
+			System.out.println("  broadcast latency ms: " + percentiles(broadcastMs));
+			double[] claims = claimStats();
+			double claimCount = claims[0] - claimsBefore[0];
+			System.out.println("  units by node:        " + unitsByNode());
+			System.out.printf(Locale.ROOT, "  unit claims:          %.0f, mean %.2f ms (idle polls included)%n", claimCount,
+					claimCount > 0 ? (claims[1] - claimsBefore[1]) * 1000 / claimCount : 0);
+		} finally {
+			for (ShardedBroadcasts node : nodes) node.shutdown();
+			for (HikariDataSource pool : pools) pool.close();
+		}
+	}
+
+	/** Replaces the multi-node project's devices with {@code devices} synthetic ones. */
+	private static void seed(int devices) throws SQLException {
+		long start = System.nanoTime();
+		try (Connection conn = connect()) {
+			try (PreparedStatement ps = conn.prepareStatement("DELETE FROM broadcast WHERE project = ?")) {
+				ps.setString(1, SHARDED_PROJECT);
+				ps.executeUpdate();
+			}
+			try (PreparedStatement ps = conn.prepareStatement("DELETE FROM device WHERE project = ?")) {
+				ps.setString(1, SHARDED_PROJECT);
+				ps.executeUpdate();
+			}
+			for (int from = 0; from < devices; from += SEED_BATCH) {
+				int n = Math.min(SEED_BATCH, devices - from);
+				StringBuilder sql = new StringBuilder("INSERT INTO device(token, label, project) VALUES");
+				for (int i = 0; i < n; i++) sql.append(i == 0 ? "(?, ?, ?)" : ",(?, ?, ?)");
+				try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+					int p = 1;
+					for (int i = from; i < from + n; i++) {
+						ps.setString(p++, FanOutBenchmark.syntheticToken(SEED_TOKEN_OFFSET + i));
+						ps.setString(p++, "loadtest-" + (i % 10));
+						ps.setString(p++, SHARDED_PROJECT);
+					}
+					ps.executeUpdate();
+				}
+			}
+		}
+		System.out.printf(Locale.ROOT, "seeded=%d in %d ms%n", devices, (System.nanoTime() - start) / 1_000_000);
+	}
+
+	private static String unitsByNode() throws SQLException {
+		String sql = "SELECT owner, COUNT(*) FROM broadcast_unit WHERE project = ? GROUP BY owner ORDER BY owner";
+		StringBuilder sb = new StringBuilder();
+		try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setString(1, SHARDED_PROJECT);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					if (sb.length() > 0) sb.append(' ');
+					sb.append(rs.getString(1)).append('=').append(rs.getInt(2));
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	/** Count and total seconds of {@code claimBroadcastUnit} calls so far, from the server's own histogram. */
+	private static double[] claimStats() {
+		double[] stats = new double[2];
+		String series = "{method=\"claimBroadcastUnit\"} ";
+		for (String line : Metrics.scrape().split("\n")) {
+			if (line.startsWith("db_query_duration_seconds_count" + series)) {
+				stats[0] = Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+			} else if (line.startsWith("db_query_duration_seconds_sum" + series)) {
+				stats[1] = Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+			}
+		}
+		return stats;
+	}
+
+	private static Connection connect() throws SQLException {
+		return DriverManager.getConnection(ConfigLoader.get("db.url"), ConfigLoader.get("db.user"), ConfigLoader.get("db.password", ""));
+	}
+
+	/** A separate pool per node, as each server has its own. */
+	private static HikariDataSource pool(String name, int size) {
+		HikariConfig config = new HikariConfig();
+		config.setPoolName(name);
+		config.setJdbcUrl(ConfigLoader.get("db.url"));
+		config.setUsername(ConfigLoader.get("db.user"));
+		config.setPassword(ConfigLoader.get("db.password", ""));
+		config.setMaximumPoolSize(size);
+		return new HikariDataSource(config);
+	}
+
+	private static int[] parseInts(String csv) {
+		String[] parts = csv.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) values[i] = Integer.parseInt(parts[i].trim());
+		return values;
+	}
+
+	private static void register(HttpClient http, String server, int devices) throws Exception {
+		Semaphore inFlight = new Semaphore(64);
+		AtomicInteger failed = new AtomicInteger();
+		List<CompletableFuture<?>> pending = new ArrayList<>(devices);
+		long start = System.nanoTime();
+		for (int i = 0; i < devices; i++) {
+			inFlight.acquire();
+			pending.add(http.sendAsync(form(server + "/register", "token", FanOutBenchmark.syntheticToken(i), "label", "loadtest-" + i),
+					HttpResponse.BodyHandlers.discarding())
+					.whenComplete((r, e) -> {
+						if (e != null || r.statusCode() != 200) failed.incrementAndGet();
+						inFlight.release();
+					}));
+		}
+		CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+		long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+		System.out.printf(Locale.ROOT, "registered=%d failed=%d in %d ms (%.1f/s)%n", devices - failed.get(), failed.get(), elapsedMs,
+				devices * 1000.0 / elapsedMs);
+	}
+
+	private static JsonObject awaitJob(HttpClient http, String server, String jobId) throws Exception {
+		HttpRequest poll = HttpRequest.newBuilder(URI.create(server + "/jobs/" + jobId)).GET().build();
+		while (true) {
+			JsonObject job = JsonParser.parseString(http.send(poll, HttpResponse.BodyHandlers.ofString()).body()).getAsJsonObject();
+			String status = job.get("status").getAsString();
+			if ("COMPLETED".equals(status) || "FAILED".equals(status)) return job;
+			Thread.sleep(POLL_INTERVAL_MS);
+		}
+	}
+
+	private static HttpRequest form(String url, String... params) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i + 1 < params.length; i += 2) {
+			if (sb.length() > 0) sb.append('&');
+			sb.append(params[i]).append('=').append(URLEncoder.encode(params[i + 1], StandardCharsets.UTF_8));
+		}
+		return HttpRequest.newBuilder(URI.create(url))
+				.header("Content-Type", "application/x-www-form-urlencoded")
+				.POST(HttpRequest.BodyPublishers.ofString(sb.toString()))
+				.build();
+	}
+
+	private static String percentiles(List<Long> samples) {
+		if (samples.isEmpty()) return "n/a";
+		List<Long> sorted = new ArrayList<>(samples);
+		Collections.sort(sorted);
+		return "p50=" + at(sorted, 0.50) + " p90=" + at(sorted, 0.90) + " p99=" + at(sorted, 0.99) + " max=" + sorted.get(sorted.size() - 1);
+	}
+
+	private static long at(List<Long> sorted, double q) {
+		return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(q * sorted.size()) - 1));
+	}
+}
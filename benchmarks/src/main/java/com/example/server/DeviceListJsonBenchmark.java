@@ -0,0 +1,57 @@
+package com.example.server;
+
+import com.example.benchmarks.FanOutBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code /devices} serialization loop ({@link ServerServlet#writeDevicesJson}) for a page, a mid-size
+ * registry and a large one, both buffered (as for an ETag) and streamed to a writer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeviceListJsonBenchmark {
+	@Param({"100", "10000", "100000"})
+	public int devices;
+
+	private List<DeviceDto> list;
+
+	@Setup
+	public void setUp() {
+		list = new ArrayList<>(devices);
+		for (int i = devices; i > 0; i--) {
+			list.add(new DeviceDto(i, FanOutBenchmark.syntheticToken(i), i % 3 == 0 ? "" : "Pixel " + (i % 9)));
+		}
+	}
+
+	@Benchmark
+	public int buffered() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		ServerServlet.writeDevicesJson(sb, list);
+		return sb.length();
+	}
+
+	@Benchmark
+	public void streamed() throws IOException {
+		ServerServlet.writeDevicesJson(Writer.nullWriter(), list);
+	}
+}
@@ -0,0 +1,46 @@
+package com.example.server;
+
+import com.example.benchmarks.FanOutBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Json#escape} on the strings it sees per device: a token, which never needs escaping, and a
+ * label that does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EscapeBenchmark {
+	private String token;
+	private String label;
+
+	@Setup
+	public void setUp() {
+		token = FanOutBenchmark.syntheticToken(11);
+		label = "Anna's \"work\" phone \\ Pixel 8";
+	}
+
+	@Benchmark
+	public String token() {
+		return Json.escape(token);
+	}
+
+	@Benchmark
+	public String label() {
+		return Json.escape(label);
+	}
+}
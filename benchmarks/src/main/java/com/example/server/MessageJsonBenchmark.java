@@ -0,0 +1,50 @@
+package com.example.server;
+
+import com.example.benchmarks.FanOutBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FCMSender#buildJsonForSingleToken} for a real-length token, with a short notification and one
+ * near the FCM payload limit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageJsonBenchmark {
+	@Param({"80", "2000"})
+	public int bodyLength;
+
+	private String token;
+	private String title;
+	private String body;
+
+	@Setup
+	public void setUp() {
+		token = FanOutBenchmark.syntheticToken(7);
+		title = "Order #18234 has shipped";
+		StringBuilder sb = new StringBuilder(bodyLength);
+		String words = "Your package is on its way and should arrive \"tomorrow\" before noon. ";
+		while (sb.length() < bodyLength) sb.append(words);
+		body = sb.substring(0, bodyLength);
+	}
+
+	@Benchmark
+	public String buildJsonForSingleToken() {
+		return FCMSender.buildJsonForSingleToken(token, title, body);
+	}
+}
@@ -0,0 +1,81 @@
+package com.example.server;
+
+import com.example.benchmarks.FanOutBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-token cost of producing a request body: the original string builder against {@link MessageTemplate}.
+ * Both variants are drained through their publisher, as the HTTP client would. Run with {@code -prof gc}
+ * to compare allocation per operation.
+ *
+ * <pre>mvn -pl benchmarks exec:exec@jmh -Djmh.args="PayloadBenchmark -prof gc"</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark {
+	private String token;
+	private String title;
+	private String body;
+	private MessageTemplate template;
+
+	@Setup
+	public void setUp() {
+		token = FanOutBenchmark.syntheticToken(42);
+		title = "Flash sale: \"50% off\" today";
+		body = "Open the app before midnight to claim your discount. Offer valid in C:\\Stores only.";
+		template = MessageTemplate.notification(title, body);
+	}
+
+	@Benchmark
+	public void stringBuilder(Blackhole bh) {
+		drain(HttpRequest.BodyPublishers.ofString(FCMSender.buildJsonForSingleToken(token, title, body), StandardCharsets.UTF_8), bh);
+	}
+
+	@Benchmark
+	public void template(Blackhole bh) {
+		drain(template.publisherFor(token), bh);
+	}
+
+	private static void drain(HttpRequest.BodyPublisher publisher, Blackhole bh) {
+		publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(ByteBuffer item) {
+				bh.consume(item.remaining());
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				throw new IllegalStateException(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+			}
+		});
+	}
+}
@@ -0,0 +1,52 @@
+package com.example.server;
+
+import com.example.benchmarks.FanOutBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FCMSender#isValidFCMToken} on a valid token and on one whose only bad character is the last, the
+ * slowest rejection. Registration tokens are currently about 163 characters; 255 is the column width.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenValidationBenchmark {
+	@Param({"163", "255"})
+	public int tokenLength;
+
+	private String valid;
+	private String invalid;
+
+	@Setup
+	public void setUp() {
+		StringBuilder sb = new StringBuilder(FanOutBenchmark.syntheticToken(3));
+		while (sb.length() < tokenLength) sb.append('x');
+		valid = sb.substring(0, tokenLength);
+		invalid = valid.substring(0, tokenLength - 1) + '/';
+	}
+
+	@Benchmark
+	public boolean valid() {
+		return FCMSender.isValidFCMToken(valid);
+	}
+
+	@Benchmark
+	public boolean invalid() {
+		return FCMSender.isValidFCMToken(invalid);
+	}
+}
@@ -0,0 +1,221 @@
+package com.example.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Immutable in-memory copy of the web UI, loaded once at startup. Each file is held as read-only direct
+ * buffers (plus a gzip variant when compression pays) with strong ETags. Every asset is also reachable
+ * under a fingerprinted name such as {@code style.1a2b3c4d5e.css}; references in HTML and CSS are
+ * rewritten to those names, so they can be cached for a year while the plain names stay revalidated.
+ */
+public final class StaticAssets {
+    private static final Pattern HTML_REF = Pattern.compile("((?:href|src)=\")([^\"?#]+)([^\"]*\")");
+    private static final Pattern CSS_REF = Pattern.compile("(url\\(['\"]?)([^'\")?#]+)([^'\")]*['\"]?\\))");
+    private static final int FINGERPRINT_LENGTH = 10;
+
+    public static final class Asset {
+        final String contentType;
+        final ByteBuffer identity;
+        /** Null when the type is already compressed or gzip does not save at least a tenth. */
+        final ByteBuffer gzip;
+        final String etag;
+        final String gzipEtag;
+        /** True under the fingerprinted name, whose content can never change. */
+        final boolean immutable;
+
+        Asset(String contentType, ByteBuffer identity, ByteBuffer gzip, String hash, boolean immutable) {
+            this.contentType = contentType;
+            this.identity = identity;
+            this.gzip = gzip;
+            this.etag = "\"" + hash + "\"";
+            this.gzipEtag = "\"" + hash + "-gz\"";
+            this.immutable = immutable;
+        }
+    }
+
+    private final Map<String, Asset> byPath;
+
+    private StaticAssets(Map<String, Asset> byPath) {
+        this.byPath = Collections.unmodifiableMap(byPath);
+    }
+
+    /** @param path request path such as {@code /assets/css/style.css} */
+    public Asset get(String path) {
+        return byPath.get(path);
+    }
+
+    public int size() {
+        return byPath.size();
+    }
+
+    /** Loads every file below the classpath directory {@code root}, from the class folder or the jar. */
+    public static StaticAssets load(String root) throws IOException {
+        URL url = StaticAssets.class.getClassLoader().getResource(root);
+        if (url == null) throw new IOException("classpath directory not found: " + root);
+        Map<String, byte[]> files = new TreeMap<>();
+        try {
+            URI uri = url.toURI();
+            if ("jar".equals(uri.getScheme())) {
+                try (FileSystem jar = FileSystems.newFileSystem(uri, Map.of())) {
+                    readTree(jar.getPath("/" + root), files);
+                }
+            } else {
+                readTree(Path.of(uri), files);
+            }
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+
+        // Fingerprints of referenced files must be known before the files referring to them are rewritten
+        Map<String, String> fingerprinted = new HashMap<>();
+        Map<String, Asset> byPath = new HashMap<>();
+        List<String> order = new ArrayList<>();
+        for (String p : files.keySet()) if (!isCss(p) && !isHtml(p)) order.add(p);
+        for (String p : files.keySet()) if (isCss(p)) order.add(p);
+        for (String p : files.keySet()) if (isHtml(p)) order.add(p);
+        for (String p : order) {
+            byte[] content = files.get(p);
+            if (isCss(p) || isHtml(p)) {
+                String text = new String(content, StandardCharsets.UTF_8);
+                content = rewrite(text, p, isCss(p) ? CSS_REF : HTML_REF, fingerprinted).getBytes(StandardCharsets.UTF_8);
+            }
+            String hash = sha256Hex(content);
+            String type = contentType(p);
+            ByteBuffer identity = readOnlyDirect(content);
+            ByteBuffer gzip = isCompressible(p) ? gzipIfSmaller(content) : null;
+            String fingerprint = fingerprintedPath(p, hash.substring(0, FINGERPRINT_LENGTH));
+            fingerprinted.put(p, fingerprint);
+            byPath.put(p, new Asset(type, identity, gzip, hash.substring(0, 32), false));
+            byPath.put(fingerprint, new Asset(type, identity, gzip, hash.substring(0, 32), true));
+        }
+        return new StaticAssets(byPath);
+    }
+
+    private static void readTree(Path dir, Map<String, byte[]> files) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) walk.filter(Files::isRegularFile)::iterator) {
+                String relative = dir.relativize(file).toString().replace('\\', '/');
+                files.put("/" + relative, Files.readAllBytes(file));
+            }
+        }
+    }
+
+    private static String rewrite(String text, String path, Pattern refs, Map<String, String> fingerprinted) {
+        Matcher m = refs.matcher(text);
+        StringBuilder out = new StringBuilder(text.length() + 256);
+        while (m.find()) {
+            String ref = m.group(2);
+            String target = resolve(path, ref);
+            String replacement = target == null ? null : fingerprinted.get(target);
+            if (replacement != null) {
+                // Keep the reference's own style: absolute stays absolute, relative becomes relative to this file
+                String rewritten = ref.startsWith("/") ? replacement : ref.substring(0, ref.lastIndexOf('/') + 1)
+                        + replacement.substring(replacement.lastIndexOf('/') + 1);
+                m.appendReplacement(out, Matcher.quoteReplacement(m.group(1) + rewritten + m.group(3)));
+            } else {
+                m.appendReplacement(out, Matcher.quoteReplacement(m.group()));
+            }
+        }
+        m.appendTail(out);
+        return out.toString();
+    }
+
+    /** Path of {@code ref} as seen from {@code from}, or null for external and data URLs. */
+    private static String resolve(String from, String ref) {
+        if (ref.isEmpty() || ref.startsWith("//") || ref.contains(":")) return null;
+        try {
+            return new URI("http", "h", from, null).resolve(new URI(null, null, ref, null)).getPath();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String fingerprintedPath(String path, String fingerprint) {
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        if (dot <= slash) return path + "." + fingerprint;
+        return path.substring(0, dot) + "." + fingerprint + path.substring(dot);
+    }
+
+    private static ByteBuffer gzipIfSmaller(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 2 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(bytes) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gz.write(content);
+        }
+        return bytes.size() <= content.length * 9L / 10 ? readOnlyDirect(bytes.toByteArray()) : null;
+    }
+
+    private static ByteBuffer readOnlyDirect(byte[] content) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+        buffer.put(content).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private static String sha256Hex(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest) hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isCss(String path) {
+        return path.endsWith(".css");
+    }
+
+    private static boolean isHtml(String path) {
+        return path.endsWith(".html");
+    }
+
+    private static boolean isCompressible(String path) {
+        return isHtml(path) || isCss(path) || path.endsWith(".js") || path.endsWith(".svg") || path.endsWith(".json")
+                || path.endsWith(".ttf") || path.endsWith(".otf") || path.endsWith(".eot");
+    }
+
+    private static String contentType(String path) {
+        if (isHtml(path)) return "text/html; charset=UTF-8";
+        if (isCss(path)) return "text/css; charset=UTF-8";
+        if (path.endsWith(".js")) return "application/javascript; charset=UTF-8";
+        if (path.endsWith(".json")) return "application/json; charset=UTF-8";
+        if (path.endsWith(".png")) return "image/png";
+        if (path.endsWith(".jpg") || path.endsWith(".jpeg")) return "image/jpeg";
+        if (path.endsWith(".svg")) return "image/svg+xml";
+        if (path.endsWith(".ico")) return "image/x-icon";
+        if (path.endsWith(".woff")) return "font/woff";
+        if (path.endsWith(".woff2")) return "font/woff2";
+        if (path.endsWith(".ttf")) return "font/ttf";
+        if (path.endsWith(".otf")) return "font/otf";
+        if (path.endsWith(".eot")) return "application/vnd.ms-fontobject";
+        return "application/octet-stream";
+    }
+}
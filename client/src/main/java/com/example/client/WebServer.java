@@ -1,5 +1,6 @@
 package com.example.client;
 
+import org.eclipse.jetty.server.HttpOutput;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
@@ -7,24 +8,35 @@ import org.eclipse.jetty.servlet.ServletHolder;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
 import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.zip.GZIPInputStream;
 
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-
 public class WebServer {
     private static final String SERVER_URL = "http://localhost:8080";
-    private static final Gson gson = new Gson();
+    private static final Duration UPSTREAM_TIMEOUT = Duration.ofSeconds(30);
+    private static final String[] PASSED_HEADERS = {
+            "Content-Type", "ETag", "Cache-Control", "Vary", "X-Next-Cursor", "Retry-After", "Idempotent-Replayed"};
+    /** One keep-alive client for every proxied call, so connections to the server are reused. */
+    private static final HttpClient HTTP = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
     
     public static void main(String[] args) throws Exception {
         Server server = new Server(8081);
@@ -32,13 +44,16 @@ public class WebServer {
         ServletContextHandler context = new ServletContextHandler();
         context.setContextPath("/");
         
-        // Static resources
-        context.addServlet(new ServletHolder(new StaticResourceServlet()), "/assets/*");
-        context.addServlet(new ServletHolder(new StaticResourceServlet()), "/*");
+        // Static resources, loaded into memory once
+        StaticAssets assets = StaticAssets.load("webapp");
+        StaticResourceServlet staticResources = new StaticResourceServlet(assets);
+        context.addServlet(new ServletHolder(staticResources), "/assets/*");
+        context.addServlet(new ServletHolder(staticResources), "/*");
         
         // API endpoints
-        context.addServlet(new ServletHolder(new DeviceListServlet()), "/api/devices");
-        context.addServlet(new ServletHolder(new SendNotificationServlet()), "/api/send");
+        context.addServlet(asyncHolder(new DeviceListServlet()), "/api/devices");
+        context.addServlet(asyncHolder(new SendNotificationServlet()), "/api/send");
+        context.addServlet(asyncHolder(new JobStatusServlet()), "/api/jobs/*");
         
         server.setHandler(context);
         server.start();
@@ -49,6 +64,12 @@ public class WebServer {
         server.join();
     }
     
+    private static ServletHolder asyncHolder(HttpServlet servlet) {
+        ServletHolder holder = new ServletHolder(servlet);
+        holder.setAsyncSupported(true);
+        return holder;
+    }
+    
     public static class DeviceDto {
         public int id;
         public String token;
@@ -62,6 +83,12 @@ public class WebServer {
     }
     
     public static class StaticResourceServlet extends HttpServlet {
+        private final StaticAssets assets;
+        
+        public StaticResourceServlet(StaticAssets assets) {
+            this.assets = assets;
+        }
+        
         @Override
         protected void doGet(HttpServletRequest req, HttpServletResponse resp) 
                 throws ServletException, IOException {
@@ -69,78 +96,98 @@ public class WebServer {
             if (path == null || "/".equals(path)) {
                 path = "/index.html";
             }
-
-            // Serve static files from resources (prefix resource base)
-            InputStream is = WebServer.class.getClassLoader().getResourceAsStream("webapp" + path);
-            if (is == null) {
-                // Fallback try with leading slash
-                is = WebServer.class.getResourceAsStream("/webapp" + path);
+            StaticAssets.Asset asset = assets.get(path);
+            if (asset == null) {
+                resp.setStatus(404);
+                return;
             }
-            try (InputStream closeable = is) {
-                if (is == null) {
-                    resp.setStatus(404);
-                    return;
-                }
-                
-                // Set content type
-                if (path.endsWith(".html")) {
-                    resp.setContentType("text/html; charset=UTF-8");
-                } else if (path.endsWith(".css")) {
-                    resp.setContentType("text/css");
-                } else if (path.endsWith(".js")) {
-                    resp.setContentType("application/javascript");
-                } else if (path.endsWith(".png")) {
-                    resp.setContentType("image/png");
-                } else if (path.endsWith(".jpg") || path.endsWith(".jpeg")) {
-                    resp.setContentType("image/jpeg");
-                } else if (path.endsWith(".woff")) {
-                    resp.setContentType("font/woff");
-                } else if (path.endsWith(".woff2")) {
-                    resp.setContentType("font/woff2");
-                } else if (path.endsWith(".ttf")) {
-                    resp.setContentType("font/ttf");
-                } else if (path.endsWith(".eot")) {
-                    resp.setContentType("application/vnd.ms-fontobject");
-                }
-                
-                // Copy stream
-                try (OutputStream os = resp.getOutputStream()) {
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    while ((bytesRead = is.read(buffer)) != -1) {
-                        os.write(buffer, 0, bytesRead);
-                    }
-                }
+            
+            String acceptEncoding = req.getHeader("Accept-Encoding");
+            boolean gzip = asset.gzip != null && acceptEncoding != null && acceptEncoding.contains("gzip");
+            String etag = gzip ? asset.gzipEtag : asset.etag;
+            resp.setHeader("ETag", etag);
+            // Fingerprinted names change with their content; plain names are revalidated on every use
+            resp.setHeader("Cache-Control", asset.immutable ? "public, max-age=31536000, immutable" : "no-cache");
+            if (asset.gzip != null) {
+                resp.setHeader("Vary", "Accept-Encoding");
+            }
+            if (matchesIfNoneMatch(req.getHeader("If-None-Match"), etag)) {
+                resp.setStatus(304);
+                return;
+            }
+            
+            resp.setContentType(asset.contentType);
+            if (gzip) {
+                resp.setHeader("Content-Encoding", "gzip");
+            }
+            ByteBuffer body = (gzip ? asset.gzip : asset.identity).duplicate();
+            resp.setContentLength(body.remaining());
+            ServletOutputStream os = resp.getOutputStream();
+            if (os instanceof HttpOutput) {
+                // Jetty writes the buffer straight to the connection, without copying it into its own buffers
+                ((HttpOutput) os).sendContent(body);
+            } else {
+                byte[] bytes = new byte[body.remaining()];
+                body.get(bytes);
+                os.write(bytes);
             }
         }
+        
+        private static boolean matchesIfNoneMatch(String header, String etag) {
+            if (header == null) return false;
+            for (String candidate : header.split(",")) {
+                String c = candidate.trim();
+                if (c.startsWith("W/")) c = c.substring(2);
+                if (c.equals("*") || c.equals(etag)) return true;
+            }
+            return false;
+        }
     }
     
     public static class DeviceListServlet extends HttpServlet {
         @Override
         protected void doGet(HttpServletRequest req, HttpServletResponse resp) 
                 throws ServletException, IOException {
-            resp.setContentType("application/json; charset=UTF-8");
-            
-            try {
-                String response = get(SERVER_URL + "/devices");
-                // Parse the "statusCode:body" format and return just the JSON body
-                if (response.contains(":")) {
-                    String[] parts = response.split(":", 2);
-                    int statusCode = Integer.parseInt(parts[0]);
-                    String body = parts[1];
-                    if (statusCode == 200) {
-                        resp.getWriter().write(body);
-                    } else {
-                        resp.setStatus(statusCode);
-                        resp.getWriter().write("{\"error\":\"Server error: " + body + "\"}");
-                    }
-                } else {
-                    resp.getWriter().write(response);
-                }
-            } catch (Exception e) {
-                resp.setStatus(500);
-                resp.getWriter().write("{\"error\":\"Failed to load devices: " + e.getMessage() + "\"}");
+            // Forward paging parameters and the browser's validator so the server can answer 304
+            String query = req.getQueryString();
+            HttpRequest.Builder upstream = HttpRequest.newBuilder(URI.create(SERVER_URL + "/devices" + (query != null ? "?" + query : "")))
+                    .timeout(UPSTREAM_TIMEOUT)
+                    .header("Accept-Encoding", "gzip")
+                    .GET();
+            String ifNoneMatch = req.getHeader("If-None-Match");
+            if (ifNoneMatch != null) {
+                upstream.header("If-None-Match", ifNoneMatch);
+            }
+            proxy(req, upstream.build(), "Failed to load devices");
+        }
+    }
+    
+    public static class JobStatusServlet extends HttpServlet {
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            String jobId = req.getPathInfo() == null ? "" : req.getPathInfo().substring(1);
+            if (jobId.isEmpty()) {
+                resp.setContentType("application/json; charset=UTF-8");
+                resp.setStatus(400);
+                resp.getWriter().write("{\"error\":\"job id required\"}");
+                return;
             }
+            if (jobId.endsWith("/events")) {
+                String id = jobId.substring(0, jobId.length() - "/events".length());
+                HttpRequest upstream = HttpRequest.newBuilder(URI.create(SERVER_URL + "/jobs/" + URLEncoder.encode(id, StandardCharsets.UTF_8) + "/events"))
+                        .timeout(UPSTREAM_TIMEOUT)
+                        .header("Accept", "text/event-stream")
+                        .GET()
+                        .build();
+                proxyEvents(req, upstream);
+                return;
+            }
+            HttpRequest upstream = HttpRequest.newBuilder(URI.create(SERVER_URL + "/jobs/" + URLEncoder.encode(jobId, StandardCharsets.UTF_8)))
+                    .timeout(UPSTREAM_TIMEOUT)
+                    .GET()
+                    .build();
+            proxy(req, upstream, "Failed to load job");
         }
     }
     
@@ -151,147 +198,167 @@ public class WebServer {
             resp.setContentType("application/json; charset=UTF-8");
             resp.setCharacterEncoding("UTF-8");
             
-            try {
-                String title = req.getParameter("title");
-                String body = req.getParameter("body");
-                String[] ids = req.getParameterValues("ids[]");
-                
-                // Debug logging
-                System.out.println("=== SendNotificationServlet Debug ===");
-                System.out.println("Title: " + title);
-                System.out.println("Body: " + body);
-                System.out.println("IDs parameter: " + java.util.Arrays.toString(ids));
-                
-                // Try alternative parameter names
-                if (ids == null || ids.length == 0) {
-                    ids = req.getParameterValues("ids");
-                    System.out.println("IDs (no brackets): " + java.util.Arrays.toString(ids));
+            String title = req.getParameter("title");
+            String body = req.getParameter("body");
+            String[] ids = req.getParameterValues("ids[]");
+            // Try alternative parameter names
+            if (ids == null || ids.length == 0) {
+                ids = req.getParameterValues("ids");
+            }
+            if (ids == null || ids.length == 0) {
+                resp.setStatus(400);
+                resp.getWriter().write("{\"error\":\"No device IDs provided\"}");
+                return;
+            }
+            
+            // Build form data
+            StringBuilder formData = new StringBuilder();
+            formData.append("title=").append(URLEncoder.encode(title != null ? title : "", StandardCharsets.UTF_8));
+            formData.append("&body=").append(URLEncoder.encode(body != null ? body : "", StandardCharsets.UTF_8));
+            for (int i = 0; i < ids.length; i++) {
+                formData.append("&ids[]=").append(URLEncoder.encode(ids[i], StandardCharsets.UTF_8));
+            }
+            for (String optional : new String[] {"project", "sendAt", "spreadSec"}) {
+                String value = req.getParameter(optional);
+                if (value != null && !value.isBlank()) {
+                    formData.append('&').append(optional).append('=').append(URLEncoder.encode(value, StandardCharsets.UTF_8));
                 }
-                
-                if (ids == null || ids.length == 0) {
-                    resp.setStatus(400);
-                    resp.getWriter().write("{\"error\":\"No device IDs provided\"}");
+            }
+            
+            // The key comes from the browser, once per send action, so its retries reach the server with the
+            // same key; one made up here would differ on every retry and protect nothing
+            String idempotencyKey = req.getHeader("Idempotency-Key");
+            if (idempotencyKey == null) idempotencyKey = req.getParameter("idempotencyKey");
+            
+            HttpRequest.Builder upstream = HttpRequest.newBuilder(URI.create(SERVER_URL + "/send-selected"))
+                    .timeout(UPSTREAM_TIMEOUT)
+                    .header("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8")
+                    .POST(HttpRequest.BodyPublishers.ofString(formData.toString(), StandardCharsets.UTF_8));
+            if (idempotencyKey != null && !idempotencyKey.isBlank()) upstream.header("Idempotency-Key", idempotencyKey);
+            proxy(req, upstream.build(), "Failed to send notification");
+        }
+    }
+    
+    /**
+     * Sends {@code upstream} on the shared client and streams the server's answer back to the browser.
+     * The servlet goes async first, so no Jetty thread waits on the server; the copy runs on the client's
+     * executor once the response headers are in. Gzip bodies pass through when the browser accepts them.
+     */
+    private static void proxy(HttpServletRequest req, HttpRequest upstream, String failure) {
+        String acceptEncoding = req.getHeader("Accept-Encoding");
+        boolean browserGzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        AsyncContext async = req.startAsync();
+        async.setTimeout(UPSTREAM_TIMEOUT.toMillis() + 5000);
+        HTTP.sendAsync(upstream, HttpResponse.BodyHandlers.ofInputStream()).whenComplete((response, error) -> {
+            HttpServletResponse resp = (HttpServletResponse) async.getResponse();
+            try {
+                if (error != null) {
+                    Throwable cause = error.getCause() != null ? error.getCause() : error;
+                    resp.setStatus(502);
+                    resp.setContentType("application/json; charset=UTF-8");
+                    resp.getWriter().write("{\"error\":\"" + failure + ": " + String.valueOf(cause.getMessage()).replace("\"", "'") + "\"}");
                     return;
                 }
-                
-                // Build form data
-                StringBuilder formData = new StringBuilder();
-                formData.append("title=").append(URLEncoder.encode(title != null ? title : "", StandardCharsets.UTF_8));
-                formData.append("&body=").append(URLEncoder.encode(body != null ? body : "", StandardCharsets.UTF_8));
-                for (int i = 0; i < ids.length; i++) {
-                    formData.append("&ids[]=").append(URLEncoder.encode(ids[i], StandardCharsets.UTF_8));
+                resp.setStatus(response.statusCode());
+                for (String header : PASSED_HEADERS) {
+                    response.headers().firstValue(header).ifPresent(value -> resp.setHeader(header, value));
                 }
-                
-                // Call server directly and get proper response
-                HttpURLConnection conn = (HttpURLConnection) new URL(SERVER_URL + "/send-selected").openConnection();
-                conn.setRequestMethod("POST");
-                conn.setDoOutput(true);
-                conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
-                
-                byte[] bytes = formData.toString().getBytes(StandardCharsets.UTF_8);
-                conn.setFixedLengthStreamingMode(bytes.length);
-                
-                try (OutputStream os = conn.getOutputStream()) {
-                    os.write(bytes);
+                // Server-relative links point at the matching /api path here
+                response.headers().firstValue("Link").ifPresent(link -> resp.setHeader("Link", link.replace("</", "</api/")));
+                boolean upstreamGzip = "gzip".equalsIgnoreCase(response.headers().firstValue("Content-Encoding").orElse(null));
+                if (response.statusCode() == 304) {
+                    response.body().close();
+                    return;
                 }
-                
-                int statusCode = conn.getResponseCode();
-                String responseBody;
-                try (InputStream is = conn.getInputStream()) {
-                    responseBody = new String(is.readAllBytes(), StandardCharsets.UTF_8);
-                } catch (IOException e) {
-                    try (InputStream es = conn.getErrorStream()) {
-                        responseBody = es != null ? new String(es.readAllBytes(), StandardCharsets.UTF_8) : e.getMessage();
-                    }
+                if (upstreamGzip && browserGzip) {
+                    resp.setHeader("Content-Encoding", "gzip");
                 }
-                
-                if (statusCode == 200) {
-                    // Check if responseBody is wrapped in another JSON object
-                    if (responseBody.trim().startsWith("{\"result\":")) {
-                        // Extract the inner JSON from {"result":"200:{...}"}
-                        try {
-                            com.google.gson.JsonObject outerJson = gson.fromJson(responseBody, com.google.gson.JsonObject.class);
-                            String innerResult = outerJson.get("result").getAsString();
-                            if (innerResult.contains(":")) {
-                                String[] innerParts = innerResult.split(":", 2);
-                                int innerStatus = Integer.parseInt(innerParts[0]);
-                                String innerBody = innerParts[1];
-                                if (innerStatus == 200) {
-                                    // Parse the inner body as JSON and create proper response
-                                    try {
-                                        com.google.gson.JsonObject detailsJson = gson.fromJson(innerBody, com.google.gson.JsonObject.class);
-                                        String finalResponse = "{\"success\":true,\"message\":\"Notification sent successfully\",\"details\":" + detailsJson.toString() + "}";
-                                        System.out.println("Sending response: " + finalResponse);
-                                        resp.getWriter().write(finalResponse);
-                                    } catch (Exception e) {
-                                        String finalResponse = "{\"success\":true,\"message\":\"Notification sent successfully\",\"details\":\"" + innerBody + "\"}";
-                                        System.out.println("Sending response (fallback): " + finalResponse);
-                                        resp.getWriter().write(finalResponse);
-                                    }
-                                } else {
-                                    resp.getWriter().write("{\"error\":\"FCM error: " + innerBody + "\"}");
-                                }
-                            } else {
-                                resp.getWriter().write("{\"success\":true,\"message\":\"Notification sent successfully\",\"details\":\"" + innerResult + "\"}");
-                            }
-                        } catch (Exception e) {
-                            resp.getWriter().write("{\"success\":true,\"message\":\"Notification sent successfully\",\"details\":\"" + responseBody + "\"}");
-                        }
-                    } else if (responseBody.trim().startsWith("{")) {
-                        resp.getWriter().write(responseBody);
-                    } else {
-                        // Wrap in success response
-                        resp.getWriter().write("{\"success\":true,\"message\":\"Notification sent successfully\",\"details\":\"" + responseBody + "\"}");
-                    }
-                } else {
-                    resp.setStatus(statusCode);
-                    resp.getWriter().write("{\"error\":\"Server error: " + responseBody + "\"}");
+                try (InputStream in = upstreamGzip && !browserGzip ? new GZIPInputStream(response.body()) : response.body();
+                     OutputStream os = resp.getOutputStream()) {
+                    in.transferTo(os);
+                }
+            } catch (IOException | IllegalStateException e) {
+                // The browser went away or the request timed out; there is no one left to answer
+            } finally {
+                try {
+                    async.complete();
+                } catch (IllegalStateException alreadyCompleted) {
+                    // Completed by the async timeout
                 }
-            } catch (Exception e) {
-                resp.setStatus(500);
-                resp.getWriter().write("{\"error\":\"Failed to send notification: " + e.getMessage() + "\"}");
-            }
-        }
-    }
-    
-    private static String get(String url) throws IOException {
-        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-        conn.setRequestMethod("GET");
-        
-        int code = conn.getResponseCode();
-        String response;
-        try (InputStream is = conn.getInputStream()) {
-            response = new String(is.readAllBytes(), StandardCharsets.UTF_8);
-        } catch (IOException e) {
-            try (InputStream es = conn.getErrorStream()) {
-                response = es != null ? new String(es.readAllBytes(), StandardCharsets.UTF_8) : e.getMessage();
             }
-        }
-        return code + ":" + response;
+        });
     }
     
-    private static String post(String url, String formData) throws IOException {
-        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-        conn.setRequestMethod("POST");
-        conn.setDoOutput(true);
-        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
-        
-        byte[] bytes = formData.getBytes(StandardCharsets.UTF_8);
-        conn.setFixedLengthStreamingMode(bytes.length);
-        
-        try (OutputStream os = conn.getOutputStream()) {
-            os.write(bytes);
-        }
-        
-        int code = conn.getResponseCode();
-        String response;
-        try (InputStream is = conn.getInputStream()) {
-            response = new String(is.readAllBytes(), StandardCharsets.UTF_8);
-        } catch (IOException e) {
-            try (InputStream es = conn.getErrorStream()) {
-                response = es != null ? new String(es.readAllBytes(), StandardCharsets.UTF_8) : e.getMessage();
+    /**
+     * Relays a Server-Sent Events stream chunk by chunk, flushing each one so progress reaches the browser
+     * as it happens. The next chunk is only requested once the previous one is written, and a browser that
+     * goes away cancels the upstream stream.
+     */
+    private static void proxyEvents(HttpServletRequest req, HttpRequest upstream) {
+        AsyncContext async = req.startAsync();
+        async.setTimeout(0);
+        HTTP.sendAsync(upstream, HttpResponse.BodyHandlers.ofPublisher()).whenComplete((response, error) -> {
+            HttpServletResponse resp = (HttpServletResponse) async.getResponse();
+            if (error != null) {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                try {
+                    resp.setStatus(502);
+                    resp.setContentType("application/json; charset=UTF-8");
+                    resp.getWriter().write("{\"error\":\"Failed to stream job events: " + String.valueOf(cause.getMessage()).replace("\"", "'") + "\"}");
+                } catch (IOException | IllegalStateException ignored) {
+                    // The browser went away
+                } finally {
+                    async.complete();
+                }
+                return;
             }
-        }
-        return code + ":" + response;
+            resp.setStatus(response.statusCode());
+            response.headers().firstValue("Content-Type").ifPresent(resp::setContentType);
+            resp.setHeader("Cache-Control", "no-cache");
+            response.body().subscribe(new Flow.Subscriber<List<ByteBuffer>>() {
+                private Flow.Subscription subscription;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(List<ByteBuffer> chunk) {
+                    try {
+                        ServletOutputStream out = resp.getOutputStream();
+                        for (ByteBuffer b : chunk) {
+                            byte[] bytes = new byte[b.remaining()];
+                            b.get(bytes);
+                            out.write(bytes);
+                        }
+                        out.flush();
+                        subscription.request(1);
+                    } catch (IOException | IllegalStateException e) {
+                        subscription.cancel();
+                        done();
+                    }
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    done();
+                }
+
+                @Override
+                public void onComplete() {
+                    done();
+                }
+
+                private void done() {
+                    try {
+                        async.complete();
+                    } catch (IllegalStateException alreadyCompleted) {
+                        // The browser side already failed
+                    }
+                }
+            });
+        });
     }
 }
@@ -5,5 +5,111 @@ CREATE TABLE IF NOT EXISTS device (
   id INT AUTO_INCREMENT PRIMARY KEY,
   token VARCHAR(255) NOT NULL UNIQUE,
   label VARCHAR(100) NULL,
-  created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+  -- Firebase project (a name from fcm.projects, which always includes 'default') whose app registered the token
+  project VARCHAR(64) CHARACTER SET ascii NOT NULL DEFAULT 'default',
+  created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+  -- Sends and segments are per project. Both indexes serve a keyset scan by id (InnoDB appends it), over a
+  -- whole project or over one segment
+  INDEX idx_device_project (project),
+  INDEX idx_device_project_label (project, label)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+-- Upgrading an existing database:
+--   ALTER TABLE device ADD COLUMN project VARCHAR(64) CHARACTER SET ascii NOT NULL DEFAULT 'default' AFTER label,
+--     DROP INDEX idx_device_label, ADD INDEX idx_device_project (project), ADD INDEX idx_device_project_label (project, label);
+--   ALTER TABLE topic_subscription ADD COLUMN project VARCHAR(64) CHARACTER SET ascii NOT NULL DEFAULT 'default' FIRST,
+--     DROP PRIMARY KEY, ADD PRIMARY KEY (project, topic, token);
+--   ALTER TABLE scheduled_send ADD COLUMN project VARCHAR(64) CHARACTER SET ascii NOT NULL DEFAULT 'default' AFTER type;
+--   ALTER TABLE scheduled_send ADD COLUMN owner VARCHAR(128) NULL AFTER job_id, ADD COLUMN started_at TIMESTAMP(3) NULL AFTER owner,
+--     ADD COLUMN heartbeat_at TIMESTAMP(3) NULL AFTER started_at, ADD COLUMN last_device_id INT NOT NULL DEFAULT 0 AFTER heartbeat_at;
+--   (rows STARTED before this upgrade have no heartbeat and are never resumed)
+--   ALTER TABLE idempotency_key ADD COLUMN lease_until TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3) AFTER job_id;
+--   ALTER TABLE idempotency_key ADD COLUMN schedule_id BIGINT NULL AFTER job_id;
+--   DROP TABLE broadcast_unit;  -- then re-run this file; units only live for broadcast.retainHours
+
+-- FCM topic each token has been subscribed to through the Instance ID API, so subscriptions can be
+-- synced incrementally in batches
+CREATE TABLE IF NOT EXISTS topic_subscription (
+  project VARCHAR(64) CHARACTER SET ascii NOT NULL DEFAULT 'default',
+  topic VARCHAR(255) CHARACTER SET ascii NOT NULL,
+  token VARCHAR(255) NOT NULL,
+  subscribed_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (project, topic, token),
+  INDEX idx_topic_subscription_token (token)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+-- Idempotency-Key of each send request, so a retried request returns the original job instead of
+-- broadcasting again. A scheduled send records schedule_id instead of job_id. Both are null while the
+-- first request is still submitting; once lease_until (set from the database clock when claimed) has
+-- passed, another request may take the key over.
+CREATE TABLE IF NOT EXISTS idempotency_key (
+  idem_key VARCHAR(255) CHARACTER SET ascii NOT NULL PRIMARY KEY,
+  fingerprint CHAR(64) CHARACTER SET ascii NOT NULL,
+  job_id CHAR(36) CHARACTER SET ascii NULL,
+  schedule_id BIGINT NULL,
+  lease_until TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3),
+  response TEXT NULL,
+  created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+  INDEX idx_idempotency_key_created (created_at)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+-- Sends requested with sendAt/spreadSec. PENDING rows are re-armed on startup; a server claims a row by
+-- moving it to STARTED, so only one server sends it at a time. While it runs, the owner renews
+-- heartbeat_at and records the last device id dispatched; a row whose heartbeat goes stale is moved back to
+-- PENDING and resumed after last_device_id. Finished rows end COMPLETED or FAILED.
+CREATE TABLE IF NOT EXISTS scheduled_send (
+  id BIGINT AUTO_INCREMENT PRIMARY KEY,
+  type VARCHAR(32) CHARACTER SET ascii NOT NULL,
+  project VARCHAR(64) CHARACTER SET ascii NOT NULL DEFAULT 'default',
+  title TEXT NOT NULL,
+  body TEXT NOT NULL,
+  device_ids MEDIUMTEXT CHARACTER SET ascii NULL,
+  send_at TIMESTAMP(3) NOT NULL,
+  spread_ms BIGINT NOT NULL DEFAULT 0,
+  status VARCHAR(16) CHARACTER SET ascii NOT NULL DEFAULT 'PENDING',
+  job_id CHAR(36) CHARACTER SET ascii NULL,
+  owner VARCHAR(128) NULL,
+  started_at TIMESTAMP(3) NULL,
+  heartbeat_at TIMESTAMP(3) NULL,
+  last_device_id INT NOT NULL DEFAULT 0,
+  created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+  INDEX idx_scheduled_send_due (status, send_at)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+-- Broadcasts split into device id ranges so every server can work on one (broadcast.sharding.enabled).
+-- A node claims an OPEN unit of a project whose lease has run out with SELECT ... FOR UPDATE SKIP LOCKED
+-- (MySQL 8.0+ or MariaDB 10.6+), which reads only broadcast_unit so that only unit rows are locked, and
+-- extends the lease while it sends; a unit whose node died becomes claimable again when it expires.
+-- Counts are those of the unit's latest attempt and are written with each lease renewal
+CREATE TABLE IF NOT EXISTS broadcast (
+  id BIGINT AUTO_INCREMENT PRIMARY KEY,
+  job_id CHAR(36) CHARACTER SET ascii NOT NULL,
+  project VARCHAR(64) CHARACTER SET ascii NOT NULL,
+  label VARCHAR(100) NULL,
+  title TEXT NOT NULL,
+  body TEXT NOT NULL,
+  created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+  INDEX idx_broadcast_created (created_at)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+CREATE TABLE IF NOT EXISTS broadcast_unit (
+  id BIGINT AUTO_INCREMENT PRIMARY KEY,
+  broadcast_id BIGINT NOT NULL,
+  -- The broadcast's project, copied so a claim does not join (and lock) the broadcast row
+  project VARCHAR(64) CHARACTER SET ascii NOT NULL,
+  -- Devices with after_id < id <= last_id
+  after_id INT NOT NULL,
+  last_id INT NOT NULL,
+  devices INT NOT NULL,
+  status VARCHAR(8) CHARACTER SET ascii NOT NULL DEFAULT 'OPEN',
+  owner VARCHAR(128) NULL,
+  attempts INT NOT NULL DEFAULT 0,
+  lease_until TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3),
+  success INT NOT NULL DEFAULT 0,
+  failed INT NOT NULL DEFAULT 0,
+  retries INT NOT NULL DEFAULT 0,
+  pruned INT NOT NULL DEFAULT 0,
+  INDEX idx_broadcast_unit_claim (project, status, lease_until),
+  INDEX idx_broadcast_unit_broadcast (broadcast_id),
+  CONSTRAINT fk_broadcast_unit_broadcast FOREIGN KEY (broadcast_id) REFERENCES broadcast (id) ON DELETE CASCADE
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
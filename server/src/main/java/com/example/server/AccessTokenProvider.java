@@ -0,0 +1,177 @@
+package com.example.server;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.auth.oauth2.ServiceAccountCredentials;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Process-wide OAuth token holder for one service account. The credentials file is read once and the
+ * token is refreshed on a background scheduler ahead of expiry, so callers normally return immediately.
+ * Concurrent refresh requests share a single in-flight fetch.
+ */
+public final class AccessTokenProvider {
+	private static final Log LOG = Log.get(AccessTokenProvider.class);
+	private static final String SCOPE = "https://www.googleapis.com/auth/firebase.messaging";
+	private static final long RETRY_MIN_MS = 1_000;
+	private static final long RETRY_MAX_MS = 60_000;
+	private static final Metrics.Histogram REFRESH_TIME = Metrics.histogram("fcm_access_token_refresh_duration_seconds",
+			"Time to fetch an OAuth access token from Google", Metrics.LATENCY_BUCKETS);
+	private static final Metrics.Counter REFRESH_FAILURES = Metrics.counter("fcm_access_token_refresh_failures_total",
+			"Failed OAuth access token fetches");
+	private static final Map<String, AccessTokenProvider> INSTANCES = new ConcurrentHashMap<>();
+
+	private final String serviceAccountFile;
+	private final long refreshMarginMs;
+	private final ScheduledExecutorService scheduler;
+	private final AtomicReference<CompletableFuture<AccessToken>> inFlight = new AtomicReference<>();
+	private volatile GoogleCredentials credentials;
+	private volatile AccessToken current;
+	private long retryDelayMs = RETRY_MIN_MS;
+	private ScheduledFuture<?> nextRefresh;
+
+	private final AtomicLong refreshCount = new AtomicLong();
+	private final AtomicLong refreshFailures = new AtomicLong();
+	private final AtomicLong refreshNanosTotal = new AtomicLong();
+	private final AtomicLong lastRefreshNanos = new AtomicLong();
+
+	private AccessTokenProvider(String serviceAccountFile, long refreshMarginMs) {
+		this.serviceAccountFile = serviceAccountFile;
+		this.refreshMarginMs = refreshMarginMs;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "fcm-token-refresh");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	public static AccessTokenProvider forServiceAccount(String serviceAccountFile) {
+		return INSTANCES.computeIfAbsent(serviceAccountFile, f -> {
+			AccessTokenProvider provider = new AccessTokenProvider(f,
+					TimeUnit.SECONDS.toMillis(ConfigLoader.getInt("fcm.tokenRefreshMarginSec", 300)));
+			// Warm up in the background so the first send does not pay for the token round trip
+			provider.refreshAsync();
+			return provider;
+		});
+	}
+
+	public String getAccessToken() throws IOException {
+		AccessToken token = current;
+		if (token != null && !isExpired(token)) {
+			return token.getTokenValue();
+		}
+		try {
+			return refreshAsync().get().getTokenValue();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while fetching access token", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw new IOException("Failed to get access token: " + cause.getMessage(), cause);
+		}
+	}
+
+	public long getRefreshCount() {
+		return refreshCount.get();
+	}
+
+	public long getRefreshFailures() {
+		return refreshFailures.get();
+	}
+
+	public long getLastRefreshMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(lastRefreshNanos.get());
+	}
+
+	public long getAverageRefreshMillis() {
+		long n = refreshCount.get();
+		return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(refreshNanosTotal.get() / n);
+	}
+
+	private CompletableFuture<AccessToken> refreshAsync() {
+		while (true) {
+			CompletableFuture<AccessToken> existing = inFlight.get();
+			if (existing != null) return existing;
+			CompletableFuture<AccessToken> mine = new CompletableFuture<>();
+			if (inFlight.compareAndSet(null, mine)) {
+				scheduler.execute(() -> doRefresh(mine));
+				return mine;
+			}
+		}
+	}
+
+	private void doRefresh(CompletableFuture<AccessToken> future) {
+		long start = System.nanoTime();
+		try {
+			AccessToken token = loadCredentials().refreshAccessToken();
+			long elapsed = System.nanoTime() - start;
+			current = token;
+			refreshCount.incrementAndGet();
+			refreshNanosTotal.addAndGet(elapsed);
+			lastRefreshNanos.set(elapsed);
+			REFRESH_TIME.observeNanos(elapsed);
+			retryDelayMs = RETRY_MIN_MS;
+			LOG.info("access token refreshed", "elapsedMs", TimeUnit.NANOSECONDS.toMillis(elapsed));
+			inFlight.set(null);
+			future.complete(token);
+			scheduleNextRefresh(token);
+		} catch (Exception e) {
+			refreshFailures.incrementAndGet();
+			REFRESH_FAILURES.inc();
+			LOG.warn("access token refresh failed", "retryInMs", retryDelayMs, "error", e.getMessage());
+			inFlight.set(null);
+			future.completeExceptionally(e);
+			// Keep retrying in the background; callers still holding a valid token are unaffected
+			scheduleRefresh(retryDelayMs);
+			retryDelayMs = Math.min(retryDelayMs * 2, RETRY_MAX_MS);
+		}
+	}
+
+	private void scheduleNextRefresh(AccessToken token) {
+		if (token.getExpirationTime() == null) return;
+		long delay = token.getExpirationTime().getTime() - refreshMarginMs - System.currentTimeMillis();
+		scheduleRefresh(Math.max(RETRY_MIN_MS, delay));
+	}
+
+	// Only called on the scheduler thread, so at most one background refresh is ever pending
+	private void scheduleRefresh(long delayMs) {
+		if (nextRefresh != null) nextRefresh.cancel(false);
+		nextRefresh = scheduler.schedule(this::refreshAsync, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	private GoogleCredentials loadCredentials() throws IOException {
+		GoogleCredentials creds = credentials;
+		if (creds == null) {
+			try (FileInputStream fis = new FileInputStream(serviceAccountFile)) {
+				creds = GoogleCredentials.fromStream(fis);
+			}
+			// Lets load tests point the OAuth exchange at a local stand-in
+			String tokenUri = ConfigLoader.get("fcm.tokenUri", null);
+			if (tokenUri != null && creds instanceof ServiceAccountCredentials) {
+				creds = ((ServiceAccountCredentials) creds).toBuilder().setTokenServerUri(URI.create(tokenUri)).build();
+			}
+			creds = creds.createScoped(Collections.singletonList(SCOPE));
+			credentials = creds;
+		}
+		return creds;
+	}
+
+	private static boolean isExpired(AccessToken token) {
+		return token.getExpirationTime() != null && token.getExpirationTime().getTime() <= System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,32 @@
+package com.example.server;
+
+/**
+ * Totals over the units of one sharded broadcast. Counts of units still being sent are those of their
+ * last lease renewal.
+ */
+public class BroadcastProgress {
+	public final int units;
+	public final int doneUnits;
+	public final int devices;
+	public final int success;
+	public final int failed;
+	public final int retries;
+	public final int pruned;
+	/** Distinct servers that have claimed a unit so far. */
+	public final int nodes;
+
+	public BroadcastProgress(int units, int doneUnits, int devices, int success, int failed, int retries, int pruned, int nodes) {
+		this.units = units;
+		this.doneUnits = doneUnits;
+		this.devices = devices;
+		this.success = success;
+		this.failed = failed;
+		this.retries = retries;
+		this.pruned = pruned;
+		this.nodes = nodes;
+	}
+
+	public boolean isDone() {
+		return doneUnits >= units;
+	}
+}
@@ -0,0 +1,35 @@
+package com.example.server;
+
+/**
+ * A claimed row of {@code broadcast_unit}, with the message of its broadcast: the devices of
+ * {@code project} (and {@code label}, when not null) with {@code afterId < id <= lastId}. {@code owner} and
+ * {@code attempts} identify this claim; updates made under an older claim match no row.
+ */
+public class BroadcastUnit {
+	public final long id;
+	public final long broadcastId;
+	public final int afterId;
+	public final int lastId;
+	public final int devices;
+	public final String owner;
+	public final int attempts;
+	public final String project;
+	public final String label;
+	public final String title;
+	public final String body;
+
+	public BroadcastUnit(long id, long broadcastId, int afterId, int lastId, int devices, String owner, int attempts,
+			String project, String label, String title, String body) {
+		this.id = id;
+		this.broadcastId = broadcastId;
+		this.afterId = afterId;
+		this.lastId = lastId;
+		this.devices = devices;
+		this.owner = owner;
+		this.attempts = attempts;
+		this.project = project;
+		this.label = label;
+		this.title = title;
+		this.body = body;
+	}
+}
@@ -4,6 +4,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
 
+/**
+ * Reads config.properties from the classpath. A JVM system property with the same key takes precedence,
+ * so a single value can be overridden at launch, e.g. {@code -Dfcm.baseUrl=http://127.0.0.1:9099}.
+ */
 public final class ConfigLoader {
 	private static final Properties PROPS = new Properties();
 	private static volatile boolean loaded = false;
@@ -25,8 +29,24 @@ public final class ConfigLoader {
 
 	public static String get(String key) {
 		if (!loaded) loadOnce();
-		String v = PROPS.getProperty(key);
+		String v = System.getProperty(key, PROPS.getProperty(key));
 		if (v == null) throw new IllegalStateException("Missing config key: " + key);
 		return v;
 	}
+
+	public static String get(String key, String defaultValue) {
+		if (!loaded) loadOnce();
+		String v = System.getProperty(key, PROPS.getProperty(key));
+		return v == null || v.isBlank() ? defaultValue : v.trim();
+	}
+
+	public static int getInt(String key, int defaultValue) {
+		String v = get(key, null);
+		if (v == null) return defaultValue;
+		try {
+			return Integer.parseInt(v);
+		} catch (NumberFormatException e) {
+			throw new IllegalStateException("Invalid integer for config key: " + key, e);
+		}
+	}
 }
@@ -0,0 +1,90 @@
+package com.example.server;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import javax.sql.DataSource;
+import java.util.function.ToIntFunction;
+
+/**
+ * Process-wide JDBC connection pool configured from the {@code db.pool.*} keys in config.properties.
+ */
+public final class ConnectionPool {
+	private static volatile HikariDataSource dataSource;
+
+	static {
+		Metrics.gauge("db_pool_connections", "Pooled JDBC connections by state", () -> poolValue(HikariPoolMXBean::getActiveConnections), "state", "active");
+		Metrics.gauge("db_pool_connections", "Pooled JDBC connections by state", () -> poolValue(HikariPoolMXBean::getIdleConnections), "state", "idle");
+		Metrics.gauge("db_pool_threads_waiting", "Threads waiting for a pooled connection", () -> poolValue(HikariPoolMXBean::getThreadsAwaitingConnection));
+	}
+
+	private ConnectionPool() {}
+
+	public static DataSource get() {
+		HikariDataSource ds = dataSource;
+		if (ds == null) {
+			synchronized (ConnectionPool.class) {
+				ds = dataSource;
+				if (ds == null) {
+					ds = create();
+					dataSource = ds;
+				}
+			}
+		}
+		return ds;
+	}
+
+	public static synchronized void close() {
+		if (dataSource != null) {
+			dataSource.close();
+			dataSource = null;
+		}
+	}
+
+	public static String statsJson() {
+		HikariDataSource ds = dataSource;
+		if (ds == null || ds.getHikariPoolMXBean() == null) {
+			return "{\"status\":\"not started\"}";
+		}
+		HikariPoolMXBean pool = ds.getHikariPoolMXBean();
+		return "{\"active\":" + pool.getActiveConnections()
+				+ ",\"idle\":" + pool.getIdleConnections()
+				+ ",\"total\":" + pool.getTotalConnections()
+				+ ",\"waiting\":" + pool.getThreadsAwaitingConnection()
+				+ ",\"maxSize\":" + ds.getMaximumPoolSize()
+				+ ",\"minIdle\":" + ds.getMinimumIdle() + "}";
+	}
+
+	private static double poolValue(ToIntFunction<HikariPoolMXBean> read) {
+		HikariDataSource ds = dataSource;
+		HikariPoolMXBean pool = ds == null ? null : ds.getHikariPoolMXBean();
+		return pool == null ? 0 : read.applyAsInt(pool);
+	}
+
+	private static HikariDataSource create() {
+		ConfigLoader.loadOnce();
+		HikariConfig config = new HikariConfig();
+		config.setPoolName("ltm-db");
+		config.setJdbcUrl(ConfigLoader.get("db.url"));
+		config.setUsername(ConfigLoader.get("db.user"));
+		config.setPassword(ConfigLoader.get("db.password", ""));
+		config.setMaximumPoolSize(ConfigLoader.getInt("db.pool.maxSize", 10));
+		config.setMinimumIdle(ConfigLoader.getInt("db.pool.minIdle", 2));
+		config.setConnectionTimeout(ConfigLoader.getInt("db.pool.connectionTimeoutMs", 5000));
+		config.setValidationTimeout(ConfigLoader.getInt("db.pool.validationTimeoutMs", 3000));
+		config.setIdleTimeout(ConfigLoader.getInt("db.pool.idleTimeoutMs", 600000));
+		config.setMaxLifetime(ConfigLoader.getInt("db.pool.maxLifetimeMs", 1800000));
+		config.setLeakDetectionThreshold(ConfigLoader.getInt("db.pool.leakDetectionThresholdMs", 0));
+		// Without a test query the driver's JDBC4 isValid() ping is used, which is cheaper on MySQL
+		String testQuery = ConfigLoader.get("db.pool.connectionTestQuery", null);
+		if (testQuery != null) config.setConnectionTestQuery(testQuery);
+		// Start even if MySQL is down; requests fail individually until it comes back
+		config.setInitializationFailTimeout(-1);
+		config.addDataSourceProperty("cachePrepStmts", "true");
+		config.addDataSourceProperty("prepStmtCacheSize", "250");
+		config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+		config.addDataSourceProperty("useServerPrepStmts", "true");
+		return new HikariDataSource(config);
+	}
+}
@@ -1,83 +1,909 @@
 package com.example.server;
 
+import javax.sql.DataSource;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DatabaseHelper {
-	private final String url;
-	private final String user;
-	private final String password;
+	private static final ExecutorService PREFETCH = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "db-token-prefetch");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static final Metrics.Histogram UPSERT_DEVICE_TOKEN_TIME = queryTimer("upsertDeviceToken");
+	private static final Metrics.Histogram UPSERT_DEVICE_TOKENS_TIME = queryTimer("upsertDeviceTokens");
+	private static final Metrics.Histogram GET_ALL_DEVICES_TIME = queryTimer("getAllDevices");
+	private static final Metrics.Histogram GET_DEVICES_BY_TOKENS_TIME = queryTimer("getDevicesByTokens");
+	private static final Metrics.Histogram GET_DEVICES_PAGE_TIME = queryTimer("getDevicesPage");
+	private static final Metrics.Histogram GET_DEVICES_BY_IDS_TIME = queryTimer("getDevicesByIds");
+	private static final Metrics.Histogram DELETE_TOKENS_TIME = queryTimer("deleteTokens");
+	private static final Metrics.Histogram GET_SEGMENT_SIZES_TIME = queryTimer("getSegmentSizes");
+	private static final Metrics.Histogram COUNT_BY_LABEL_TIME = queryTimer("countByLabel");
+	private static final Metrics.Histogram GET_TOKENS_TO_SUBSCRIBE_TIME = queryTimer("getTokensToSubscribe");
+	private static final Metrics.Histogram GET_TOKENS_TO_UNSUBSCRIBE_TIME = queryTimer("getTokensToUnsubscribe");
+	private static final Metrics.Histogram ADD_TOPIC_SUBSCRIPTIONS_TIME = queryTimer("addTopicSubscriptions");
+	private static final Metrics.Histogram REMOVE_TOPIC_SUBSCRIPTIONS_TIME = queryTimer("removeTopicSubscriptions");
+	private static final Metrics.Histogram CLAIM_IDEMPOTENCY_KEY_TIME = queryTimer("claimIdempotencyKey");
+	private static final Metrics.Histogram FIND_IDEMPOTENCY_KEY_TIME = queryTimer("findIdempotencyKey");
+	private static final Metrics.Histogram UPDATE_IDEMPOTENCY_KEY_TIME = queryTimer("updateIdempotencyKey");
+	private static final Metrics.Histogram DELETE_IDEMPOTENCY_KEYS_TIME = queryTimer("deleteIdempotencyKeys");
+	private static final Metrics.Histogram RELEASE_IDEMPOTENCY_CLAIM_TIME = queryTimer("releaseIdempotencyClaim");
+	private static final Metrics.Histogram COUNT_DEVICES_TIME = queryTimer("countDevices");
+	private static final Metrics.Histogram INSERT_SCHEDULED_SEND_TIME = queryTimer("insertScheduledSend");
+	private static final Metrics.Histogram GET_SCHEDULED_SENDS_TIME = queryTimer("getScheduledSends");
+	private static final Metrics.Histogram UPDATE_SCHEDULED_SEND_TIME = queryTimer("updateScheduledSend");
+	private static final Metrics.Histogram CLAIM_SCHEDULED_SEND_TIME = queryTimer("claimScheduledSend");
+	private static final Metrics.Histogram CHECKPOINT_SCHEDULED_SEND_TIME = queryTimer("checkpointScheduledSend");
+	private static final Metrics.Histogram RELEASE_SCHEDULED_SENDS_TIME = queryTimer("releaseScheduledSends");
+	private static final Metrics.Histogram GET_DEVICE_IDS_TIME = queryTimer("getDeviceIds");
+	private static final Metrics.Histogram INSERT_BROADCAST_TIME = queryTimer("insertBroadcast");
+	private static final Metrics.Histogram CLAIM_BROADCAST_UNIT_TIME = queryTimer("claimBroadcastUnit");
+	private static final Metrics.Histogram UPDATE_BROADCAST_UNIT_TIME = queryTimer("updateBroadcastUnit");
+	private static final Metrics.Histogram GET_BROADCAST_TOKENS_TIME = queryTimer("getBroadcastTokens");
+	private static final Metrics.Histogram GET_BROADCAST_PROGRESS_TIME = queryTimer("getBroadcastProgress");
+	private static final Metrics.Histogram DELETE_BROADCASTS_TIME = queryTimer("deleteBroadcasts");
+
+	private final DataSource dataSource;
+	private final int tokenPageSize;
+	private final List<DeviceListener> deviceListeners = new CopyOnWriteArrayList<>();
+
+	/** Told about every committed change to the device table made through this helper. */
+	public interface DeviceListener {
+		/** Devices inserted or updated, as stored after the write, with their ids. */
+		void upserted(List<DeviceDto> devices);
+
+		/** Tokens deleted; some of them may not have been stored. */
+		void deleted(List<String> tokens);
+
+		/** The table changed, but the stored rows could not be read back. */
+		void changed();
+	}
 
 	public DatabaseHelper() {
-		ConfigLoader.loadOnce();
-		this.url = ConfigLoader.get("db.url");
-		this.user = ConfigLoader.get("db.user");
-		this.password = ConfigLoader.get("db.password");
+		this(ConnectionPool.get());
+	}
+
+	public DatabaseHelper(DataSource dataSource) {
+		this.dataSource = dataSource;
+		this.tokenPageSize = ConfigLoader.getInt("db.tokenPageSize", 1000);
+	}
+
+	static Metrics.Histogram queryTimer(String method) {
+		return Metrics.histogram("db_query_duration_seconds", "DatabaseHelper call time, including connection checkout",
+				Metrics.LATENCY_BUCKETS, "method", method);
 	}
 
 	private Connection getConnection() throws SQLException {
-		return DriverManager.getConnection(url, user, password);
+		return dataSource.getConnection();
+	}
+
+	public void addDeviceListener(DeviceListener listener) {
+		deviceListeners.add(listener);
+	}
+
+	/** Reads the upserted rows back, for their ids, only when someone listens. */
+	private void afterUpsert(Collection<String> tokens) {
+		if (deviceListeners.isEmpty()) return;
+		List<DeviceDto> devices;
+		try {
+			devices = getDevicesByTokens(tokens);
+		} catch (SQLException e) {
+			for (DeviceListener listener : deviceListeners) listener.changed();
+			return;
+		}
+		for (DeviceListener listener : deviceListeners) listener.upserted(devices);
 	}
 
-	public void upsertDeviceToken(String token, String label) throws SQLException {
-		String sql = "INSERT INTO device(token, label) VALUES(?, ?) ON DUPLICATE KEY UPDATE label = VALUES(label)";
+	private List<DeviceDto> getDevicesByTokens(Collection<String> tokens) throws SQLException {
+		StringBuilder sql = new StringBuilder("SELECT id, token, COALESCE(label, ''), project FROM device WHERE token IN (");
+		for (int i = 0; i < tokens.size(); i++) {
+			if (i > 0) sql.append(',');
+			sql.append('?');
+		}
+		sql.append(')');
+		List<DeviceDto> devices = new ArrayList<>(tokens.size());
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+			int i = 1;
+			for (String token : tokens) ps.setString(i++, token);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					devices.add(new DeviceDto(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4)));
+				}
+			}
+		} finally {
+			GET_DEVICES_BY_TOKENS_TIME.observeSince(start);
+		}
+		return devices;
+	}
+
+	public void upsertDeviceToken(String token, String label, String project) throws SQLException {
+		String sql = "INSERT INTO device(token, label, project) VALUES(?, ?, ?)"
+				+ " ON DUPLICATE KEY UPDATE label = VALUES(label), project = VALUES(project)";
+		long start = System.nanoTime();
 		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
 			ps.setString(1, token);
 			ps.setString(2, label);
+			ps.setString(3, project);
 			ps.executeUpdate();
+		} finally {
+			UPSERT_DEVICE_TOKEN_TIME.observeSince(start);
 		}
+		afterUpsert(List.of(token));
+	}
+
+	/**
+	 * Upserts many devices in one multi-row statement; the ids of {@code devices} are ignored.
+	 */
+	public void upsertDeviceTokens(Collection<DeviceDto> devices) throws SQLException {
+		if (devices.isEmpty()) return;
+		StringBuilder sql = new StringBuilder("INSERT INTO device(token, label, project) VALUES ");
+		for (int i = 0; i < devices.size(); i++) {
+			if (i > 0) sql.append(',');
+			sql.append("(?, ?, ?)");
+		}
+		sql.append(" ON DUPLICATE KEY UPDATE label = VALUES(label), project = VALUES(project)");
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+			int i = 1;
+			for (DeviceDto d : devices) {
+				ps.setString(i++, d.token);
+				ps.setString(i++, d.label);
+				ps.setString(i++, d.project);
+			}
+			ps.executeUpdate();
+		} finally {
+			UPSERT_DEVICE_TOKENS_TIME.observeSince(start);
+		}
+		List<String> tokens = new ArrayList<>(devices.size());
+		for (DeviceDto d : devices) tokens.add(d.token);
+		afterUpsert(tokens);
+	}
+
+	/**
+	 * Streams all tokens of a project by id keyset pages, from the first device after {@code afterId}; the
+	 * caller must close the cursor.
+	 */
+	public TokenCursor streamAllTokens(String project, int afterId) {
+		return new TokenCursor(dataSource, project, null, afterId, tokenPageSize, PREFETCH);
+	}
+
+	/**
+	 * Streams the tokens of one segment through the label index; the caller must close the cursor.
+	 */
+	public TokenCursor streamTokensByLabel(String project, String label) {
+		return new TokenCursor(dataSource, project, label, 0, tokenPageSize, PREFETCH);
+	}
+
+	/**
+	 * Device count per non-empty label within a project, largest segment first.
+	 */
+	public Map<String, Integer> getSegmentSizes(String project) throws SQLException {
+		String sql = "SELECT label, COUNT(*) FROM device WHERE project = ? AND label IS NOT NULL AND label <> ''"
+				+ " GROUP BY label ORDER BY COUNT(*) DESC";
+		Map<String, Integer> sizes = new LinkedHashMap<>();
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setString(1, project);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					sizes.put(rs.getString(1), rs.getInt(2));
+				}
+			}
+		} finally {
+			GET_SEGMENT_SIZES_TIME.observeSince(start);
+		}
+		return sizes;
+	}
+
+	public int countByLabel(String project, String label) throws SQLException {
+		String sql = "SELECT COUNT(*) FROM device WHERE project = ? AND label = ?";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setString(1, project);
+			ps.setString(2, label);
+			try (ResultSet rs = ps.executeQuery()) {
+				return rs.next() ? rs.getInt(1) : 0;
+			}
+		} finally {
+			COUNT_BY_LABEL_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Tokens of the project with the given label that are not yet recorded as subscribed to its topic.
+	 */
+	public List<String> getTokensToSubscribe(String project, String topic, String label, int limit) throws SQLException {
+		String sql = "SELECT d.token FROM device d"
+				+ " LEFT JOIN topic_subscription s ON s.project = d.project AND s.topic = ? AND s.token = d.token"
+				+ " WHERE d.project = ? AND d.label = ? AND s.token IS NULL ORDER BY d.id LIMIT ?";
+		return topicQuery(sql, GET_TOKENS_TO_SUBSCRIBE_TIME, limit, topic, project, label);
 	}
 
-	public List<String> getAllTokens() throws SQLException {
-		String sql = "SELECT token FROM device";
+	/**
+	 * Tokens recorded as subscribed to the project's topic whose device is gone, has moved to another project
+	 * or no longer has the label.
+	 */
+	public List<String> getTokensToUnsubscribe(String project, String topic, String label, int limit) throws SQLException {
+		String sql = "SELECT s.token FROM topic_subscription s LEFT JOIN device d ON d.token = s.token"
+				+ " WHERE s.project = ? AND s.topic = ? AND (d.id IS NULL OR d.project <> s.project OR d.label IS NULL OR d.label <> ?) LIMIT ?";
+		return topicQuery(sql, GET_TOKENS_TO_UNSUBSCRIBE_TIME, limit, project, topic, label);
+	}
+
+	/** @param params the string parameters in statement order, followed by {@code limit} */
+	private List<String> topicQuery(String sql, Metrics.Histogram timer, int limit, String... params) throws SQLException {
 		List<String> tokens = new ArrayList<>();
+		long start = System.nanoTime();
 		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			for (int i = 0; i < params.length; i++) {
+				ps.setString(i + 1, params[i]);
+			}
+			ps.setInt(params.length + 1, limit);
 			try (ResultSet rs = ps.executeQuery()) {
 				while (rs.next()) {
 					tokens.add(rs.getString(1));
 				}
 			}
+		} finally {
+			timer.observeSince(start);
 		}
 		return tokens;
 	}
 
+	public void addTopicSubscriptions(String project, String topic, List<String> tokens) throws SQLException {
+		if (tokens.isEmpty()) return;
+		StringBuilder sql = new StringBuilder("INSERT IGNORE INTO topic_subscription(project, topic, token) VALUES ");
+		for (int i = 0; i < tokens.size(); i++) {
+			if (i > 0) sql.append(',');
+			sql.append("(?, ?, ?)");
+		}
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+			int p = 1;
+			for (String token : tokens) {
+				ps.setString(p++, project);
+				ps.setString(p++, topic);
+				ps.setString(p++, token);
+			}
+			ps.executeUpdate();
+		} finally {
+			ADD_TOPIC_SUBSCRIPTIONS_TIME.observeSince(start);
+		}
+	}
+
+	public void removeTopicSubscriptions(String project, String topic, List<String> tokens) throws SQLException {
+		if (tokens.isEmpty()) return;
+		StringBuilder placeholders = new StringBuilder();
+		for (int i = 0; i < tokens.size(); i++) {
+			if (i > 0) placeholders.append(',');
+			placeholders.append('?');
+		}
+		String sql = "DELETE FROM topic_subscription WHERE project = ? AND topic = ? AND token IN (" + placeholders + ")";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setString(1, project);
+			ps.setString(2, topic);
+			for (int i = 0; i < tokens.size(); i++) {
+				ps.setString(i + 3, tokens.get(i));
+			}
+			ps.executeUpdate();
+		} finally {
+			REMOVE_TOPIC_SUBSCRIPTIONS_TIME.observeSince(start);
+		}
+	}
+
 	public List<DeviceDto> getAllDevices() throws SQLException {
-		String sql = "SELECT id, token, COALESCE(label, '') FROM device ORDER BY id DESC";
+		String sql = "SELECT id, token, COALESCE(label, ''), project FROM device ORDER BY id DESC";
 		List<DeviceDto> devices = new ArrayList<>();
+		long start = System.nanoTime();
 		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
 			try (ResultSet rs = ps.executeQuery()) {
 				while (rs.next()) {
-					devices.add(new DeviceDto(rs.getInt(1), rs.getString(2), rs.getString(3)));
+					devices.add(new DeviceDto(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4)));
 				}
 			}
+		} finally {
+			GET_ALL_DEVICES_TIME.observeSince(start);
 		}
 		return devices;
 	}
 
-	public List<String> getTokensByIds(List<Integer> ids) throws SQLException {
-		if (ids == null || ids.isEmpty()) return List.of();
+	/**
+	 * Devices with {@code id < beforeId} (all when beforeId is 0), newest first, at most {@code limit}
+	 * of them (all when limit is 0).
+	 */
+	public DevicePage getDevicesPage(int beforeId, int limit) throws SQLException {
+		String sql = "SELECT id, token, COALESCE(label, ''), project FROM device WHERE id < ? ORDER BY id DESC"
+				+ (limit > 0 ? " LIMIT ?" : "");
+		List<DeviceDto> devices = new ArrayList<>();
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setInt(1, beforeId > 0 ? beforeId : Integer.MAX_VALUE);
+			// One extra row tells us whether another page follows
+			if (limit > 0) ps.setInt(2, limit + 1);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					devices.add(new DeviceDto(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4)));
+				}
+			}
+		} finally {
+			GET_DEVICES_PAGE_TIME.observeSince(start);
+		}
+		if (limit > 0 && devices.size() > limit) {
+			devices = devices.subList(0, limit);
+			return new DevicePage(devices, devices.get(limit - 1).id, null);
+		}
+		return new DevicePage(devices, 0, null);
+	}
+
+	/** The given devices in id order; ids of devices that belong to another project are skipped. */
+	public List<DeviceDto> getDevicesByIds(String project, int[] ids) throws SQLException {
+		if (ids == null || ids.length == 0) return List.of();
 		StringBuilder placeholders = new StringBuilder();
-		for (int i = 0; i < ids.size(); i++) {
+		for (int i = 0; i < ids.length; i++) {
 			if (i > 0) placeholders.append(',');
 			placeholders.append('?');
 		}
-		String sql = "SELECT token FROM device WHERE id IN (" + placeholders + ")";
-		List<String> tokens = new ArrayList<>();
+		String sql = "SELECT id, token, label FROM device WHERE project = ? AND id IN (" + placeholders + ") ORDER BY id";
+		List<DeviceDto> devices = new ArrayList<>();
+		long start = System.nanoTime();
 		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
-			for (int i = 0; i < ids.size(); i++) {
-				ps.setInt(i + 1, ids.get(i));
+			ps.setString(1, project);
+			for (int i = 0; i < ids.length; i++) {
+				ps.setInt(i + 2, ids[i]);
 			}
 			try (ResultSet rs = ps.executeQuery()) {
 				while (rs.next()) {
-					tokens.add(rs.getString(1));
+					devices.add(new DeviceDto(rs.getInt(1), rs.getString(2), rs.getString(3), project));
 				}
 			}
+		} finally {
+			GET_DEVICES_BY_IDS_TIME.observeSince(start);
+		}
+		return devices;
+	}
+
+	public int deleteTokens(List<String> tokens) throws SQLException {
+		if (tokens == null || tokens.isEmpty()) return 0;
+		StringBuilder placeholders = new StringBuilder();
+		for (int i = 0; i < tokens.size(); i++) {
+			if (i > 0) placeholders.append(',');
+			placeholders.append('?');
+		}
+		String sql = "DELETE FROM device WHERE token IN (" + placeholders + ")";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			for (int i = 0; i < tokens.size(); i++) {
+				ps.setString(i + 1, tokens.get(i));
+			}
+			int deleted = ps.executeUpdate();
+			if (deleted > 0) {
+				for (DeviceListener listener : deviceListeners) listener.deleted(tokens);
+			}
+			return deleted;
+		} finally {
+			DELETE_TOKENS_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Inserts the key unless it already exists, leased for {@code leaseMs} by the database's clock.
+	 *
+	 * @return true if this call created the row and so owns the request
+	 */
+	public boolean claimIdempotencyKey(String key, String fingerprint, long leaseMs) throws SQLException {
+		String sql = "INSERT IGNORE INTO idempotency_key(idem_key, fingerprint, lease_until)"
+				+ " VALUES(?, ?, TIMESTAMPADD(MICROSECOND, ?, NOW(3)))";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setString(1, key);
+			ps.setString(2, fingerprint);
+			ps.setLong(3, leaseMs * 1000);
+			return ps.executeUpdate() == 1;
+		} finally {
+			CLAIM_IDEMPOTENCY_KEY_TIME.observeSince(start);
+		}
+	}
+
+	/** The key's row, with its lease and its {@code ttlMs} checked against the database's clock. */
+	public IdempotencyRecord findIdempotencyKey(String key, long ttlMs) throws SQLException {
+		String sql = "SELECT fingerprint, job_id, response, schedule_id, lease_until <= NOW(3),"
+				+ " created_at <= TIMESTAMPADD(MICROSECOND, ?, NOW(3)) FROM idempotency_key WHERE idem_key = ?";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setLong(1, -ttlMs * 1000);
+			ps.setString(2, key);
+			try (ResultSet rs = ps.executeQuery()) {
+				if (!rs.next()) return null;
+				return new IdempotencyRecord(rs.getString(1), rs.getString(2), rs.getString(3), rs.getLong(4), rs.getBoolean(5),
+						rs.getBoolean(6));
+			}
+		} finally {
+			FIND_IDEMPOTENCY_KEY_TIME.observeSince(start);
+		}
+	}
+
+	/** Records the job started for a claimed key and, once it has finished, its final status. */
+	public void updateIdempotencyKey(String key, String jobId, String response) throws SQLException {
+		String sql = "UPDATE idempotency_key SET job_id = ?, response = ? WHERE idem_key = ?";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setString(1, jobId);
+			ps.setString(2, response);
+			ps.setString(3, key);
+			ps.executeUpdate();
+		} finally {
+			UPDATE_IDEMPOTENCY_KEY_TIME.observeSince(start);
+		}
+	}
+
+	/** Records the scheduled send stored for a claimed key. */
+	public void updateIdempotencySchedule(String key, long scheduleId) throws SQLException {
+		String sql = "UPDATE idempotency_key SET schedule_id = ? WHERE idem_key = ?";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setLong(1, scheduleId);
+			ps.setString(2, key);
+			ps.executeUpdate();
+		} finally {
+			UPDATE_IDEMPOTENCY_KEY_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Deletes keys created at least {@code olderThanMs} ago by the database's clock: one key, or with a null
+	 * key every one. 0 deletes the key whatever its age.
+	 */
+	public int deleteIdempotencyKeys(String key, long olderThanMs) throws SQLException {
+		String sql = "DELETE FROM idempotency_key WHERE created_at <= TIMESTAMPADD(MICROSECOND, ?, NOW(3))"
+				+ (key != null ? " AND idem_key = ?" : "");
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setLong(1, -olderThanMs * 1000);
+			if (key != null) ps.setString(2, key);
+			return ps.executeUpdate();
+		} finally {
+			DELETE_IDEMPOTENCY_KEYS_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Deletes a claim whose job (or schedule) was never recorded and whose lease has run out by the database's clock. A
+	 * fresh claim of the same key made in between is still leased and is left alone.
+	 *
+	 * @return true if the stale claim was deleted
+	 */
+	public boolean releaseIdempotencyClaim(String key) throws SQLException {
+		String sql = "DELETE FROM idempotency_key WHERE idem_key = ? AND job_id IS NULL AND schedule_id IS NULL"
+				+ " AND lease_until <= NOW(3)";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setString(1, key);
+			return ps.executeUpdate() == 1;
+		} finally {
+			RELEASE_IDEMPOTENCY_CLAIM_TIME.observeSince(start);
+		}
+	}
+
+	/** Devices of the project with an id above {@code afterId}. */
+	public int countDevices(String project, int afterId) throws SQLException {
+		long start = System.nanoTime();
+		try (Connection conn = getConnection();
+				PreparedStatement ps = conn.prepareStatement("SELECT COUNT(*) FROM device WHERE project = ? AND id > ?")) {
+			ps.setString(1, project);
+			ps.setInt(2, afterId);
+			try (ResultSet rs = ps.executeQuery()) {
+				return rs.next() ? rs.getInt(1) : 0;
+			}
+		} finally {
+			COUNT_DEVICES_TIME.observeSince(start);
+		}
+	}
+
+	/** @return the new row's id */
+	public long insertScheduledSend(String type, String project, String title, String body, int[] deviceIds, long sendAt,
+			long spreadMs) throws SQLException {
+		String sql = "INSERT INTO scheduled_send(type, project, title, body, device_ids, send_at, spread_ms) VALUES(?, ?, ?, ?, ?, ?, ?)";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+			ps.setString(1, type);
+			ps.setString(2, project);
+			ps.setString(3, title);
+			ps.setString(4, body);
+			if (deviceIds == null) {
+				ps.setNull(5, Types.VARCHAR);
+			} else {
+				StringBuilder ids = new StringBuilder(deviceIds.length * 6);
+				for (int i = 0; i < deviceIds.length; i++) {
+					if (i > 0) ids.append(',');
+					ids.append(deviceIds[i]);
+				}
+				ps.setString(5, ids.toString());
+			}
+			ps.setTimestamp(6, new Timestamp(sendAt));
+			ps.setLong(7, spreadMs);
+			ps.executeUpdate();
+			try (ResultSet keys = ps.getGeneratedKeys()) {
+				if (!keys.next()) throw new SQLException("no id generated for scheduled_send");
+				return keys.getLong(1);
+			}
+		} finally {
+			INSERT_SCHEDULED_SEND_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * With {@code id > 0}, that row (if any); otherwise pending rows due before {@code dueBefore} (all pending
+	 * rows when it is 0), earliest first.
+	 */
+	public List<ScheduledSend> getScheduledSends(long id, long dueBefore) throws SQLException {
+		String sql = "SELECT id, type, title, body, device_ids, send_at, spread_ms, status, job_id, project, started_at, last_device_id"
+				+ " FROM scheduled_send WHERE "
+				+ (id > 0 ? "id = ?" : "status = 'PENDING'" + (dueBefore > 0 ? " AND send_at < ?" : "") + " ORDER BY send_at");
+		List<ScheduledSend> rows = new ArrayList<>();
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			if (id > 0) ps.setLong(1, id);
+			else if (dueBefore > 0) ps.setTimestamp(1, new Timestamp(dueBefore));
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					String ids = rs.getString(5);
+					int[] deviceIds = null;
+					if (ids != null) {
+						String[] parts = ids.isEmpty() ? new String[0] : ids.split(",");
+						deviceIds = new int[parts.length];
+						for (int i = 0; i < parts.length; i++) deviceIds[i] = Integer.parseInt(parts[i]);
+					}
+					Timestamp startedAt = rs.getTimestamp(11);
+					rows.add(new ScheduledSend(rs.getLong(1), rs.getString(2), rs.getString(10), rs.getString(3), rs.getString(4), deviceIds,
+							rs.getTimestamp(6).getTime(), rs.getLong(7), ScheduledSend.Status.valueOf(rs.getString(8)), rs.getString(9),
+							startedAt != null ? startedAt.getTime() : 0, rs.getInt(12)));
+				}
+			}
+		} finally {
+			GET_SCHEDULED_SENDS_TIME.observeSince(start);
+		}
+		return rows;
+	}
+
+	/**
+	 * Moves a row from one status to another, setting its job id when {@code jobId} is not null. The status
+	 * check makes this a claim: of several servers firing the same row, only one gets true.
+	 */
+	public boolean updateScheduledSend(long id, ScheduledSend.Status from, ScheduledSend.Status to, String jobId) throws SQLException {
+		String sql = "UPDATE scheduled_send SET status = ?, job_id = COALESCE(?, job_id) WHERE id = ? AND status = ?";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setString(1, to.name());
+			ps.setString(2, jobId);
+			ps.setLong(3, id);
+			ps.setString(4, from.name());
+			return ps.executeUpdate() == 1;
+		} finally {
+			UPDATE_SCHEDULED_SEND_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Moves a PENDING row to STARTED for {@code owner}, with a fresh heartbeat; {@code started_at} keeps the
+	 * time of the first start when a send is resumed. Of several servers firing the same row, only one gets true.
+	 */
+	public boolean claimScheduledSend(long id, String owner) throws SQLException {
+		String sql = "UPDATE scheduled_send SET status = 'STARTED', owner = ?, started_at = COALESCE(started_at, NOW(3)),"
+				+ " heartbeat_at = NOW(3) WHERE id = ? AND status = 'PENDING'";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setString(1, owner);
+			ps.setLong(2, id);
+			return ps.executeUpdate() == 1;
+		} finally {
+			CLAIM_SCHEDULED_SEND_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Records how far a STARTED row owned by {@code owner} has got and renews its heartbeat, moving it to
+	 * {@code to} and setting its job id when {@code jobId} is not null.
+	 *
+	 * @return false if the row is no longer this owner's (it was released to another server)
+	 */
+	public boolean checkpointScheduledSend(long id, String owner, int lastDeviceId, ScheduledSend.Status to, String jobId)
+			throws SQLException {
+		String sql = "UPDATE scheduled_send SET status = ?, last_device_id = ?, job_id = COALESCE(?, job_id), heartbeat_at = NOW(3)"
+				+ " WHERE id = ? AND owner = ? AND status = 'STARTED'";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setString(1, to.name());
+			ps.setInt(2, lastDeviceId);
+			ps.setString(3, jobId);
+			ps.setLong(4, id);
+			ps.setString(5, owner);
+			return ps.executeUpdate() == 1;
+		} finally {
+			CHECKPOINT_SCHEDULED_SEND_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Moves STARTED rows whose heartbeat is older than {@code leaseMs} back to PENDING, so they are fired again
+	 * and resumed after their last checkpoint. Heartbeats are compared on the database clock.
+	 *
+	 * @return the number of rows released
+	 */
+	public int releaseStaleScheduledSends(long leaseMs) throws SQLException {
+		String sql = "UPDATE scheduled_send SET status = 'PENDING', owner = NULL"
+				+ " WHERE status = 'STARTED' AND heartbeat_at < TIMESTAMPADD(MICROSECOND, ?, NOW(3))";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setLong(1, -leaseMs * 1000);
+			return ps.executeUpdate();
+		} finally {
+			RELEASE_SCHEDULED_SENDS_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Ids of up to {@code limit} devices of the project (with the label, when not null) after {@code afterId},
+	 * in id order.
+	 */
+	public int[] getDeviceIds(String project, String label, int afterId, int limit) throws SQLException {
+		String sql = "SELECT id FROM device WHERE project = ?" + (label != null ? " AND label = ?" : "")
+				+ " AND id > ? ORDER BY id LIMIT ?";
+		int[] ids = new int[limit];
+		int n = 0;
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			int p = 1;
+			ps.setString(p++, project);
+			if (label != null) ps.setString(p++, label);
+			ps.setInt(p++, afterId);
+			ps.setInt(p, limit);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) ids[n++] = rs.getInt(1);
+			}
+		} finally {
+			GET_DEVICE_IDS_TIME.observeSince(start);
+		}
+		return n == limit ? ids : Arrays.copyOf(ids, n);
+	}
+
+	/**
+	 * Stores a broadcast and its units in one transaction.
+	 *
+	 * @param units {@code {afterId, lastId, devices}} of each unit
+	 * @return the broadcast's id
+	 */
+	public long insertBroadcast(String jobId, String project, String label, String title, String body, List<int[]> units)
+			throws SQLException {
+		String sql = "INSERT INTO broadcast(job_id, project, label, title, body) VALUES(?, ?, ?, ?, ?)";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection()) {
+			conn.setAutoCommit(false);
+			try {
+				long id;
+				try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+					ps.setString(1, jobId);
+					ps.setString(2, project);
+					ps.setString(3, label);
+					ps.setString(4, title);
+					ps.setString(5, body);
+					ps.executeUpdate();
+					try (ResultSet keys = ps.getGeneratedKeys()) {
+						if (!keys.next()) throw new SQLException("no id generated for broadcast");
+						id = keys.getLong(1);
+					}
+				}
+				try (PreparedStatement ps = conn.prepareStatement(
+						"INSERT INTO broadcast_unit(broadcast_id, project, after_id, last_id, devices) VALUES(?, ?, ?, ?, ?)")) {
+					for (int[] unit : units) {
+						ps.setLong(1, id);
+						ps.setString(2, project);
+						ps.setInt(3, unit[0]);
+						ps.setInt(4, unit[1]);
+						ps.setInt(5, unit[2]);
+						ps.addBatch();
+					}
+					ps.executeBatch();
+				}
+				conn.commit();
+				return id;
+			} catch (SQLException | RuntimeException e) {
+				conn.rollback();
+				throw e;
+			} finally {
+				conn.setAutoCommit(true);
+			}
+		} finally {
+			INSERT_BROADCAST_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Fails unless the database has {@code SELECT ... FOR UPDATE SKIP LOCKED} with the semantics unit claims
+	 * rely on: MySQL 8.0+ or MariaDB 10.6+. MySQL 5.7 rejects the syntax, so every claim would fail.
+	 *
+	 * @throws IllegalStateException on an older server
+	 */
+	public void requireSkipLocked() throws SQLException {
+		String version;
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement("SELECT VERSION()");
+				ResultSet rs = ps.executeQuery()) {
+			rs.next();
+			version = rs.getString(1);
+		}
+		boolean mariaDb = version.contains("MariaDB");
+		String[] parts = version.split("[.-]");
+		int major;
+		int minor;
+		try {
+			major = Integer.parseInt(parts[0]);
+			minor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+		} catch (NumberFormatException e) {
+			throw new IllegalStateException("Unrecognized database version " + version);
+		}
+		boolean supported = mariaDb ? major > 10 || (major == 10 && minor >= 6) : major >= 8;
+		if (!supported) {
+			throw new IllegalStateException("Sharded broadcasts need MySQL 8.0+ or MariaDB 10.6+ for SKIP LOCKED, found " + version);
+		}
+	}
+
+	/**
+	 * Claims the project's open unit whose lease ran out first, for {@code leaseMs}. {@code SKIP LOCKED} lets
+	 * servers claiming at the same time each take a different unit instead of queueing on the same row; the
+	 * locking read touches only {@code broadcast_unit}, so claimers never wait on the shared broadcast row.
+	 *
+	 * @return null if no unit of the project is open and unleased
+	 */
+	public BroadcastUnit claimBroadcastUnit(String project, String owner, long leaseMs) throws SQLException {
+		String select = "SELECT id, broadcast_id, after_id, last_id, devices, attempts FROM broadcast_unit"
+				+ " WHERE project = ? AND status = 'OPEN' AND lease_until <= NOW(3) ORDER BY lease_until LIMIT 1"
+				+ " FOR UPDATE SKIP LOCKED";
+		String broadcast = "SELECT label, title, body FROM broadcast WHERE id = ?";
+		String update = "UPDATE broadcast_unit SET owner = ?, attempts = attempts + 1,"
+				+ " lease_until = TIMESTAMPADD(MICROSECOND, ?, NOW(3)) WHERE id = ?";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection()) {
+			conn.setAutoCommit(false);
+			try {
+				long id;
+				long broadcastId;
+				int afterId;
+				int lastId;
+				int devices;
+				int attempts;
+				try (PreparedStatement ps = conn.prepareStatement(select)) {
+					ps.setString(1, project);
+					try (ResultSet rs = ps.executeQuery()) {
+						if (!rs.next()) {
+							conn.commit();
+							return null;
+						}
+						id = rs.getLong(1);
+						broadcastId = rs.getLong(2);
+						afterId = rs.getInt(3);
+						lastId = rs.getInt(4);
+						devices = rs.getInt(5);
+						attempts = rs.getInt(6) + 1;
+					}
+				}
+				BroadcastUnit unit;
+				try (PreparedStatement ps = conn.prepareStatement(broadcast)) {
+					ps.setLong(1, broadcastId);
+					try (ResultSet rs = ps.executeQuery()) {
+						// The foreign key keeps the broadcast while the unit is locked
+						if (!rs.next()) throw new SQLException("broadcast " + broadcastId + " of unit " + id + " not found");
+						unit = new BroadcastUnit(id, broadcastId, afterId, lastId, devices, owner, attempts, project, rs.getString(1),
+								rs.getString(2), rs.getString(3));
+					}
+				}
+				try (PreparedStatement ps = conn.prepareStatement(update)) {
+					ps.setString(1, owner);
+					ps.setLong(2, leaseMs * 1000);
+					ps.setLong(3, id);
+					ps.executeUpdate();
+				}
+				conn.commit();
+				return unit;
+			} catch (SQLException | RuntimeException e) {
+				conn.rollback();
+				throw e;
+			} finally {
+				conn.setAutoCommit(true);
+			}
+		} finally {
+			CLAIM_BROADCAST_UNIT_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Records a claimed unit's counts and either extends its lease by {@code leaseMs} or, with {@code done},
+	 * closes it.
+	 *
+	 * @return false if the claim has been lost to another server
+	 */
+	public boolean updateBroadcastUnit(BroadcastUnit unit, boolean done, long leaseMs, int success, int failed, int retries,
+			int pruned) throws SQLException {
+		String sql = "UPDATE broadcast_unit SET success = ?, failed = ?, retries = ?, pruned = ?, "
+				+ (done ? "status = 'DONE'" : "lease_until = TIMESTAMPADD(MICROSECOND, ?, NOW(3))")
+				+ " WHERE id = ? AND owner = ? AND attempts = ? AND status = 'OPEN'";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			int p = 1;
+			ps.setInt(p++, success);
+			ps.setInt(p++, failed);
+			ps.setInt(p++, retries);
+			ps.setInt(p++, pruned);
+			if (!done) ps.setLong(p++, leaseMs * 1000);
+			ps.setLong(p++, unit.id);
+			ps.setString(p++, unit.owner);
+			ps.setInt(p, unit.attempts);
+			return ps.executeUpdate() == 1;
+		} finally {
+			UPDATE_BROADCAST_UNIT_TIME.observeSince(start);
+		}
+	}
+
+	/** Tokens of the unit's devices that still exist, in id order. */
+	public List<String> getBroadcastTokens(BroadcastUnit unit) throws SQLException {
+		String sql = "SELECT token FROM device WHERE project = ?" + (unit.label != null ? " AND label = ?" : "")
+				+ " AND id > ? AND id <= ? ORDER BY id";
+		List<String> tokens = new ArrayList<>(unit.devices);
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			int p = 1;
+			ps.setString(p++, unit.project);
+			if (unit.label != null) ps.setString(p++, unit.label);
+			ps.setInt(p++, unit.afterId);
+			ps.setInt(p, unit.lastId);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) tokens.add(rs.getString(1));
+			}
+		} finally {
+			GET_BROADCAST_TOKENS_TIME.observeSince(start);
 		}
 		return tokens;
 	}
+
+	public BroadcastProgress getBroadcastProgress(long broadcastId) throws SQLException {
+		String sql = "SELECT COUNT(*), COALESCE(SUM(status = 'DONE'), 0), COALESCE(SUM(devices), 0), COALESCE(SUM(success), 0),"
+				+ " COALESCE(SUM(failed), 0), COALESCE(SUM(retries), 0), COALESCE(SUM(pruned), 0), COUNT(DISTINCT owner)"
+				+ " FROM broadcast_unit WHERE broadcast_id = ?";
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setLong(1, broadcastId);
+			try (ResultSet rs = ps.executeQuery()) {
+				rs.next();
+				return new BroadcastProgress(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getInt(5), rs.getInt(6),
+						rs.getInt(7), rs.getInt(8));
+			}
+		} finally {
+			GET_BROADCAST_PROGRESS_TIME.observeSince(start);
+		}
+	}
+
+	/** Deletes broadcasts created before {@code createdBefore}, with their units. */
+	public int deleteBroadcasts(long createdBefore) throws SQLException {
+		long start = System.nanoTime();
+		try (Connection conn = getConnection(); PreparedStatement ps = conn.prepareStatement("DELETE FROM broadcast WHERE created_at < ?")) {
+			ps.setTimestamp(1, new Timestamp(createdBefore));
+			return ps.executeUpdate();
+		} finally {
+			DELETE_BROADCASTS_TIME.observeSince(start);
+		}
+	}
 }
@@ -4,12 +4,16 @@ public class DeviceDto {
     public final int id;
     public final String token;
     public final String label;
+    public final String project;
 
     public DeviceDto(int id, String token, String label) {
+        this(id, token, label, FCMSenderRegistry.DEFAULT_PROJECT);
+    }
+
+    public DeviceDto(int id, String token, String label, String project) {
         this.id = id;
         this.token = token;
         this.label = label;
+        this.project = project;
     }
 }
-
-
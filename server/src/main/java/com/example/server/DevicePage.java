@@ -0,0 +1,20 @@
+package com.example.server;
+
+import java.util.List;
+
+/**
+ * One page of {@code /devices}, newest first. {@code nextCursor} is the id to pass as {@code cursor} for
+ * the following page, or 0 on the last page.
+ */
+public class DevicePage {
+	public final List<DeviceDto> devices;
+	public final int nextCursor;
+	/** Validator for the page contents, or null when the caller must derive one from the body. */
+	public final String etag;
+
+	public DevicePage(List<DeviceDto> devices, int nextCursor, String etag) {
+		this.devices = devices;
+		this.nextCursor = nextCursor;
+		this.etag = etag;
+	}
+}
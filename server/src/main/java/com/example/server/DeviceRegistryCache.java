@@ -0,0 +1,350 @@
+package com.example.server;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * In-process copy of the device table. Reads are served from an immutable snapshot without locking.
+ * Registrations and prunes through {@link DatabaseHelper} are recorded per token and folded into a new
+ * snapshot by the next read, which copies the device array once however many changes piled up. Only the
+ * first read loads the whole table while callers wait; after that, when the TTL (which bounds staleness
+ * from writes made outside this process) runs out or a change could not be read back, the table is
+ * reloaded in the background while the previous snapshot is still served, and changes made during the
+ * load are applied on top of it. The id-to-device index uses open addressing on primitive ints; segments
+ * are also indexed per project. Full broadcasts do not read from here: they stream pages from the table
+ * ({@link TokenCursor}).
+ */
+public class DeviceRegistryCache {
+	private static final Log LOG = Log.get(DeviceRegistryCache.class);
+	private static final ExecutorService RELOADER = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "device-cache-reload");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final DatabaseHelper db;
+	private final long ttlMs;
+	/** Bumped under {@link #lock} with every recorded change; a snapshot is current when it has this version. */
+	private final AtomicLong version = new AtomicLong();
+	/** Bumped by {@link #invalidate()}; a snapshot loaded before the last bump is reloaded. */
+	private final AtomicLong generation = new AtomicLong();
+	private final AtomicBoolean reloading = new AtomicBoolean();
+	private volatile Snapshot snapshot;
+
+	private final Object lock = new Object();
+	/** Stored state per token (null: deleted) not yet applied to {@link #snapshot}. */
+	private Map<String, DeviceDto> pending = new HashMap<>();
+	/** Changes recorded since the running reload began; null when none is running. */
+	private Map<String, DeviceDto> sinceReload;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder updates = new LongAdder();
+	private final LongAdder reloads = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	public DeviceRegistryCache(DatabaseHelper db, long ttlMs) {
+		this.db = db;
+		this.ttlMs = ttlMs;
+		db.addDeviceListener(new DatabaseHelper.DeviceListener() {
+			@Override
+			public void upserted(List<DeviceDto> devices) {
+				synchronized (lock) {
+					for (DeviceDto d : devices) record(d.token, d);
+					version.incrementAndGet();
+				}
+				updates.add(devices.size());
+			}
+
+			@Override
+			public void deleted(List<String> tokens) {
+				synchronized (lock) {
+					for (String token : tokens) record(token, null);
+					version.incrementAndGet();
+				}
+				updates.add(tokens.size());
+			}
+
+			@Override
+			public void changed() {
+				LOG.warn("could not read back changed devices; reloading the cache");
+				invalidate();
+			}
+		});
+	}
+
+	/** Reloads the whole table in the background; reads keep the current snapshot until it is done. */
+	public void invalidate() {
+		generation.incrementAndGet();
+		invalidations.increment();
+		reloadInBackground();
+	}
+
+	private void record(String token, DeviceDto device) {
+		pending.put(token, device);
+		if (sinceReload != null) sinceReload.put(token, device);
+	}
+
+	/** Devices ordered by id descending, as {@link DatabaseHelper#getAllDevices()} returns them. */
+	public List<DeviceDto> getAllDevices() throws SQLException {
+		return Collections.unmodifiableList(Arrays.asList(current().devicesDesc));
+	}
+
+	/**
+	 * Same contract as {@link DatabaseHelper#getDevicesPage}, with an ETag derived from the snapshot so a
+	 * 304 can be answered without serializing anything.
+	 */
+	public DevicePage getDevicesPage(int beforeId, int limit) throws SQLException {
+		Snapshot s = current();
+		DeviceDto[] devices = s.devicesDesc;
+		int start = 0;
+		if (beforeId > 0) {
+			// Ids are descending: find the first one below the cursor
+			int lo = 0, hi = devices.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (devices[mid].id >= beforeId) lo = mid + 1; else hi = mid;
+			}
+			start = lo;
+		}
+		int end = limit > 0 ? (int) Math.min((long) start + limit, devices.length) : devices.length;
+		int next = end < devices.length && end > start ? devices[end - 1].id : 0;
+		String etag = "W/\"" + Long.toHexString(s.contentHash) + "-" + beforeId + "-" + limit + "\"";
+		return new DevicePage(Collections.unmodifiableList(Arrays.asList(devices).subList(start, end)), next, etag);
+	}
+
+	/** Same contract as {@link DatabaseHelper#getDevicesByIds}. */
+	public List<DeviceDto> getDevicesByIds(String project, int[] ids) throws SQLException {
+		if (ids == null || ids.length == 0) return List.of();
+		Snapshot s = current();
+		// Match the SQL IN semantics: each device once, however often its id was passed
+		int[] sorted = ids.clone();
+		Arrays.sort(sorted);
+		List<DeviceDto> devices = new ArrayList<>(sorted.length);
+		for (int i = 0; i < sorted.length; i++) {
+			if (i > 0 && sorted[i] == sorted[i - 1]) continue;
+			DeviceDto d = s.deviceFor(sorted[i]);
+			if (d != null && d.project.equals(project)) devices.add(d);
+		}
+		return devices;
+	}
+
+	/** Same contract as {@link DatabaseHelper#getSegmentSizes}. */
+	public Map<String, Integer> getSegmentSizes(String project) throws SQLException {
+		Snapshot s = current();
+		String prefix = segmentKey(project, "");
+		List<Map.Entry<String, int[]>> entries = new ArrayList<>();
+		for (Map.Entry<String, int[]> e : s.labelIndex.entrySet()) {
+			if (e.getKey().startsWith(prefix)) entries.add(e);
+		}
+		entries.sort((a, b) -> Integer.compare(b.getValue().length, a.getValue().length));
+		Map<String, Integer> sizes = new LinkedHashMap<>();
+		for (Map.Entry<String, int[]> e : entries) sizes.put(e.getKey().substring(prefix.length()), e.getValue().length);
+		return sizes;
+	}
+
+	public int countByLabel(String project, String label) throws SQLException {
+		int[] positions = current().labelIndex.get(segmentKey(project, label));
+		return positions == null ? 0 : positions.length;
+	}
+
+	/** Project names cannot contain NUL, so this key never collides across projects. */
+	private static String segmentKey(String project, String label) {
+		return project + '\0' + label;
+	}
+
+	public String statsJson() {
+		Snapshot s = snapshot;
+		return "{\"hits\":" + hits.sum()
+				+ ",\"misses\":" + misses.sum()
+				+ ",\"updates\":" + updates.sum()
+				+ ",\"reloads\":" + reloads.sum()
+				+ ",\"invalidations\":" + invalidations.sum()
+				+ ",\"size\":" + (s == null ? 0 : s.devicesDesc.length)
+				+ ",\"ageMs\":" + (s == null ? -1 : System.currentTimeMillis() - s.loadedAt) + "}";
+	}
+
+	private Snapshot current() throws SQLException {
+		Snapshot s = snapshot;
+		if (s == null) {
+			synchronized (this) {
+				s = snapshot;
+				if (s == null) {
+					misses.increment();
+					s = reload();
+				}
+			}
+		}
+		if (s.generation != generation.get() || System.currentTimeMillis() - s.loadedAt >= ttlMs) reloadInBackground();
+		if (s.version != version.get()) {
+			synchronized (lock) {
+				s = snapshot;
+				if (!pending.isEmpty()) {
+					s = s.apply(pending, version.get());
+					pending = new HashMap<>();
+					snapshot = s;
+				}
+			}
+		}
+		hits.increment();
+		return s;
+	}
+
+	private void reloadInBackground() {
+		if (snapshot == null || !reloading.compareAndSet(false, true)) return;
+		try {
+			RELOADER.execute(() -> {
+				try {
+					reload();
+				} catch (SQLException | RuntimeException e) {
+					LOG.warn("device cache reload failed; serving the previous snapshot", "error", e.getMessage());
+				} finally {
+					reloading.set(false);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			reloading.set(false);
+		}
+	}
+
+	/** Loads the whole table without holding {@link #lock}, then applies the changes recorded meanwhile. */
+	private Snapshot reload() throws SQLException {
+		long g = generation.get();
+		synchronized (lock) {
+			sinceReload = new HashMap<>();
+		}
+		List<DeviceDto> devices;
+		try {
+			devices = db.getAllDevices();
+		} catch (SQLException | RuntimeException e) {
+			synchronized (lock) {
+				sinceReload = null;
+			}
+			throw e;
+		}
+		Snapshot loaded = new Snapshot(devices.toArray(new DeviceDto[0]), 0, System.currentTimeMillis(), g);
+		synchronized (lock) {
+			// Changes made before the load began are in it; later ones are replayed on top
+			Snapshot s = loaded.apply(sinceReload, version.get());
+			sinceReload = null;
+			pending = new HashMap<>();
+			snapshot = s;
+			reloads.increment();
+			return s;
+		}
+	}
+
+	private static final class Snapshot {
+		final DeviceDto[] devicesDesc;
+		final long version;
+		/** When the whole table was last loaded; incremental changes keep it. */
+		final long loadedAt;
+		final long generation;
+		final long contentHash;
+		/** Positions in {@link #devicesDesc} per project and non-empty label, in ascending id order. */
+		final Map<String, int[]> labelIndex;
+		private final int[] keys;
+		private final DeviceDto[] slots;
+		private final int mask;
+
+		Snapshot(DeviceDto[] devicesDesc, long version, long loadedAt, long generation) {
+			this.devicesDesc = devicesDesc;
+			this.version = version;
+			this.loadedAt = loadedAt;
+			this.generation = generation;
+			int capacity = Integer.highestOneBit(Math.max(4, devicesDesc.length * 2 - 1)) << 1;
+			this.keys = new int[capacity];
+			this.slots = new DeviceDto[capacity];
+			this.mask = capacity - 1;
+			long hash = 1125899906842597L;
+			for (DeviceDto d : devicesDesc) {
+				hash = 31 * hash + d.id;
+				hash = 31 * hash + d.token.hashCode();
+				hash = 31 * hash + d.label.hashCode();
+				hash = 31 * hash + d.project.hashCode();
+				// AUTO_INCREMENT ids start at 1, so 0 marks an empty slot
+				int slot = mix(d.id) & mask;
+				while (keys[slot] != 0) slot = (slot + 1) & mask;
+				keys[slot] = d.id;
+				slots[slot] = d;
+			}
+			this.contentHash = hash;
+			this.labelIndex = buildIndex(devicesDesc, d -> d.label.isEmpty() ? null : segmentKey(d.project, d.label));
+		}
+
+		/**
+		 * A copy with {@code changes} (stored state per token, null for deleted) applied: unchanged devices
+		 * are kept in place and changed ones merged in by id, so the order stays id descending.
+		 */
+		Snapshot apply(Map<String, DeviceDto> changes, long version) {
+			if (changes.isEmpty()) return new Snapshot(devicesDesc, version, loadedAt, generation);
+			List<DeviceDto> stored = new ArrayList<>(changes.size());
+			Set<Integer> ids = new HashSet<>();
+			for (DeviceDto d : changes.values()) {
+				if (d != null && ids.add(d.id)) stored.add(d);
+			}
+			stored.sort((a, b) -> Integer.compare(b.id, a.id));
+			DeviceDto[] merged = new DeviceDto[devicesDesc.length + stored.size()];
+			int n = 0, next = 0;
+			for (DeviceDto d : devicesDesc) {
+				if (changes.containsKey(d.token) || ids.contains(d.id)) continue;
+				while (next < stored.size() && stored.get(next).id > d.id) merged[n++] = stored.get(next++);
+				merged[n++] = d;
+			}
+			while (next < stored.size()) merged[n++] = stored.get(next++);
+			return new Snapshot(n == merged.length ? merged : Arrays.copyOf(merged, n), version, loadedAt, generation);
+		}
+
+		/** Positions of the devices per {@code key}; devices whose key is null are left out. */
+		private static Map<String, int[]> buildIndex(DeviceDto[] devices, Function<DeviceDto, String> key) {
+			Map<String, int[]> counts = new HashMap<>();
+			for (DeviceDto d : devices) {
+				String k = key.apply(d);
+				if (k != null) counts.computeIfAbsent(k, c -> new int[1])[0]++;
+			}
+			Map<String, int[]> index = new HashMap<>(counts.size() * 2);
+			for (Map.Entry<String, int[]> e : counts.entrySet()) {
+				index.put(e.getKey(), new int[e.getValue()[0]]);
+				e.getValue()[0] = 0;
+			}
+			// Walk from the end so each entry lists positions in ascending id order
+			for (int i = devices.length - 1; i >= 0; i--) {
+				String k = key.apply(devices[i]);
+				if (k == null) continue;
+				index.get(k)[counts.get(k)[0]++] = i;
+			}
+			return index;
+		}
+
+		DeviceDto deviceFor(int id) {
+			if (id <= 0) return null;
+			int slot = mix(id) & mask;
+			while (keys[slot] != 0) {
+				if (keys[slot] == id) return slots[slot];
+				slot = (slot + 1) & mask;
+			}
+			return null;
+		}
+
+		private static int mix(int x) {
+			// Spread ids so strided or clustered ids do not pile up into long probe runs
+			x *= 0x9E3779B9;
+			return x ^ (x >>> 16);
+		}
+	}
+}
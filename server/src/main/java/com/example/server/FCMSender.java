@@ -1,108 +1,190 @@
 package com.example.server;
 
-import com.google.auth.oauth2.GoogleCredentials;
-
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.nio.charset.StandardCharsets;
-import java.util.Collections;
+import java.time.Duration;
+import java.util.Iterator;
 import java.util.List;
 
 public class FCMSender {
-	private final HttpClient httpClient = HttpClient.newHttpClient();
+	private static final Log LOG = Log.get(FCMSender.class);
+
+	private final String project;
 	private final String projectId;
+	private final String baseUrl;
 	private final String serviceAccountFile;
+	private final FanOutSender fanOut;
+	private final AccessTokenProvider tokenProvider;
+	private final int failureSamples;
+	private volatile TokenPruner pruner;
 
 	public FCMSender() {
+		this(FCMSenderRegistry.DEFAULT_PROJECT);
+	}
+
+	/**
+	 * Sender for one Firebase project, configured by {@code fcm.project.<project>.<key>} with the shared
+	 * {@code fcm.<key>} as fallback.
+	 */
+	public FCMSender(String project) {
 		ConfigLoader.loadOnce();
-		this.projectId = ConfigLoader.get("fcm.projectId");
-		this.serviceAccountFile = ConfigLoader.get("fcm.serviceAccountFile");
+		this.project = project;
+		this.projectId = setting(project, "projectId", null);
+		if (projectId == null) throw new IllegalStateException("Missing config key: fcm.project." + project + ".projectId");
+		this.baseUrl = stripTrailingSlash(setting(project, "baseUrl", "https://fcm.googleapis.com"));
+		this.serviceAccountFile = setting(project, "serviceAccountFile", null);
+		if (serviceAccountFile == null) throw new IllegalStateException("Missing config key: fcm.project." + project + ".serviceAccountFile");
+		this.tokenProvider = AccessTokenProvider.forServiceAccount(serviceAccountFile);
+		HttpClient httpClient = FanOutSender.newHttpClient(Duration.ofMillis(intSetting(project, "connectTimeoutMs", 5000)));
+		this.fanOut = new FanOutSender(httpClient,
+				intSetting(project, "maxInFlight", 64),
+				Duration.ofMillis(intSetting(project, "requestTimeoutMs", 10000)),
+				RetryPolicy.fromConfig(),
+				intSetting(project, "projectMaxInFlight", 256),
+				intSetting(project, "maxPerSecond", 0));
+		this.failureSamples = ConfigLoader.getInt("fcm.result.failureSamples", 20);
 	}
 
-	public String sendToTokens(List<String> tokens, String title, String body) throws IOException, InterruptedException {
-		String url = "https://fcm.googleapis.com/v1/projects/" + projectId + "/messages:send";
+	private static String setting(String project, String key, String defaultValue) {
+		return ConfigLoader.get("fcm.project." + project + "." + key, ConfigLoader.get("fcm." + key, defaultValue));
+	}
+
+	private static int intSetting(String project, String key, int defaultValue) {
+		return ConfigLoader.getInt("fcm.project." + project + "." + key, ConfigLoader.getInt("fcm." + key, defaultValue));
+	}
+
+	public String getProject() {
+		return project;
+	}
+
+	/**
+	 * Enables deletion of tokens that FCM reports as unregistered or invalid.
+	 */
+	public void setTokenPruner(TokenPruner pruner) {
+		this.pruner = pruner;
+	}
+
+	public SendResult sendToTokens(List<String> tokens, String title, String body) throws IOException, InterruptedException {
+		return sendToTokens(tokens.iterator(), title, body, SendProgress.NONE);
+	}
+
+	public SendResult sendToTokens(Iterator<String> tokens, String title, String body, SendProgress progress)
+			throws IOException, InterruptedException {
+		return sendToTokens(tokens, title, body, progress, null);
+	}
+
+	/**
+	 * @param pacer spreads the requests over time, e.g. {@link FanOutSender#spread}; null sends at full speed
+	 */
+	public SendResult sendToTokens(Iterator<String> tokens, String title, String body, SendProgress progress, FanOutSender.Pacer pacer)
+			throws IOException, InterruptedException {
+		String url = baseUrl + "/v1/projects/" + projectId + "/messages:send";
 		String accessToken = getAccessToken();
 		
-		// Debug logging
-		System.out.println("=== FCM Debug Info ===");
-		System.out.println("Project ID: " + projectId);
-		System.out.println("Tokens count: " + tokens.size());
-		for (int i = 0; i < tokens.size(); i++) {
-			System.out.println("Token " + i + ": " + tokens.get(i));
-		}
-		System.out.println("Access token length: " + (accessToken != null ? accessToken.length() : "null"));
-		System.out.println("=====================");
-		
-		// Send to each token individually
-		StringBuilder results = new StringBuilder();
-		int successCount = 0;
-		int failCount = 0;
+		LOG.debug("send started", "projectId", projectId, "accessTokenLength", accessToken != null ? accessToken.length() : -1);
+		long start = System.nanoTime();
 		
-		for (int i = 0; i < tokens.size(); i++) {
-			String token = tokens.get(i);
-			String json = buildJsonForSingleToken(token, title, body);
-			
-			System.out.println("Sending to token " + i + ": " + token);
-			System.out.println("JSON payload: " + json);
-			
-			try {
-				HttpRequest request = HttpRequest.newBuilder()
-						.uri(URI.create(url))
-						.header("Content-Type", "application/json; charset=UTF-8")
-						.header("Authorization", "Bearer " + accessToken)
-						.POST(HttpRequest.BodyPublishers.ofString(json, StandardCharsets.UTF_8))
-						.build();
-				HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-				
-				if (response.statusCode() == 200) {
-					successCount++;
-					System.out.println("Success for token " + i + ": " + response.body());
-				} else {
-					failCount++;
-					System.out.println("Failed for token " + i + ": " + response.statusCode() + " - " + response.body());
-				}
-				
-				if (results.length() > 0) results.append("; ");
-				results.append("Token ").append(i).append(": ").append(response.statusCode()).append(":").append(response.body());
-				
-			} catch (Exception e) {
-				failCount++;
-				System.err.println("Exception for token " + i + ": " + e.getMessage());
-				if (results.length() > 0) results.append("; ");
-				results.append("Token ").append(i).append(": ERROR:").append(e.getMessage());
-			}
-		}
+		// Send to every token concurrently, bounded by fcm.maxInFlight
+		final SendResult result = new SendResult(null, failureSamples);
+		final TokenPruner.Session deadTokens = pruner != null ? pruner.newSession(progress) : null;
 		
-		String summary = String.format("Sent to %d devices: %d success, %d failed. Details: %s", 
-				tokens.size(), successCount, failCount, results.toString());
-		System.out.println("=== FCM Send Summary ===");
-		System.out.println(summary);
-		System.out.println("========================");
+		// A paced send can outlast the access token, so it reads the current one per request
+		FanOutSender.AccessTokenSource bearer = pacer == null ? () -> accessToken : this::getAccessToken;
+		FanOutSender.Result outcome = fanOut.send(URI.create(url), bearer, tokens, MessageTemplate.notification(title, body)::publisherFor,
+				new FanOutSender.Callback() {
+					@Override
+					public void onResponse(int i, String token, HttpResponse<String> response, long latencyNanos) {
+						if (response.statusCode() == 200) {
+							result.recordSuccess(latencyNanos);
+							progress.onSuccess();
+							if (Log.sampleToken()) LOG.debug("token sent", "index", i, "token", Log.redact(token));
+						} else {
+							FcmError error = FcmError.parse(response.body());
+							result.recordFailure(i, token, response.statusCode(), error, response.body(), latencyNanos);
+							progress.onFailure();
+							if (Log.sampleToken()) {
+								LOG.info("token failed", "index", i, "token", Log.redact(token), "status", response.statusCode(), "body", response.body());
+							}
+							if (deadTokens != null && TokenPruner.isDeadToken(response.statusCode(), error)) {
+								deadTokens.add(token);
+							}
+						}
+					}
+
+					@Override
+					public void onRetry(int i, String token, int attempt, long delayMs) {
+						progress.onRetry();
+						if (Log.sampleToken()) LOG.debug("token retry", "index", i, "attempt", attempt, "delayMs", delayMs);
+					}
+
+					@Override
+					public void onError(int i, String token, Throwable e, long latencyNanos) {
+						result.recordFailure(i, token, 0, null, e.getMessage(), latencyNanos);
+						progress.onFailure();
+						if (Log.sampleToken()) LOG.info("token error", "index", i, "token", Log.redact(token), "error", e.getMessage());
+						// A malformed stored token never reaches FCM, so FCM never reports it dead; prune it here
+						if (deadTokens != null && e instanceof IllegalArgumentException) deadTokens.add(token);
+					}
+				}, pacer);
 		
-		return "200:" + summary;
+		int pruned = deadTokens != null ? deadTokens.finish() : 0;
+		long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+		result.finish(outcome.getTokenCount(), outcome.getRetryCount(), pruned, elapsedMs);
+		LOG.info("send finished", "project", project, "sent", outcome.getTokenCount(), "success", result.getSuccessCount(), "failed", result.getFailureCount(),
+				"retries", outcome.getRetryCount(), "pruned", pruned, "elapsedMs", elapsedMs);
+		return result;
 	}
 
 	public String getAccessToken() throws IOException {
-		try (FileInputStream fis = new FileInputStream(serviceAccountFile)) {
-			GoogleCredentials creds = GoogleCredentials.fromStream(fis)
-					.createScoped(Collections.singletonList("https://www.googleapis.com/auth/firebase.messaging"));
-			creds.refreshIfExpired();
-			String token = creds.getAccessToken().getTokenValue();
-			System.out.println("Access token obtained: " + (token != null ? "SUCCESS" : "FAILED"));
-			System.out.println("Access token length: " + (token != null ? token.length() : "null"));
-			return token;
-		} catch (Exception e) {
-			System.err.println("Failed to get access token: " + e.getMessage());
-			e.printStackTrace();
-			throw e;
-		}
+		return tokenProvider.getAccessToken();
+	}
+
+	public AccessTokenProvider getTokenProvider() {
+		return tokenProvider;
 	}
 
-	private String buildJsonForSingleToken(String token, String title, String body) {
+	/**
+	 * Sends one message addressed to an FCM topic, which FCM delivers to every subscribed device.
+	 */
+	public SendResult sendToTopic(String topic, String title, String body, SendProgress progress)
+			throws IOException, InterruptedException {
+		String url = baseUrl + "/v1/projects/" + projectId + "/messages:send";
+		String accessToken = getAccessToken();
+		long start = System.nanoTime();
+		SendResult result = new SendResult(topic, 1);
+		FanOutSender.Result outcome = fanOut.send(URI.create(url), accessToken, List.of(topic).iterator(), MessageTemplate.topicNotification(title, body)::publisherFor,
+				new FanOutSender.Callback() {
+					@Override
+					public void onResponse(int i, String target, HttpResponse<String> response, long latencyNanos) {
+						if (response.statusCode() == 200) {
+							result.recordSuccess(latencyNanos);
+							progress.onSuccess();
+						} else {
+							result.recordFailure(i, target, response.statusCode(), FcmError.parse(response.body()), response.body(), latencyNanos);
+							progress.onFailure();
+						}
+					}
+
+					@Override
+					public void onRetry(int i, String target, int attempt, long delayMs) {
+						progress.onRetry();
+					}
+
+					@Override
+					public void onError(int i, String target, Throwable e, long latencyNanos) {
+						result.recordFailure(i, target, 0, null, e.getMessage(), latencyNanos);
+						progress.onFailure();
+					}
+				});
+		long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+		result.finish(outcome.getTokenCount(), outcome.getRetryCount(), 0, elapsedMs);
+		LOG.info("topic send finished", "project", project, "topic", topic, "success", result.getSuccessCount() == 1, "elapsedMs", elapsedMs);
+		return result;
+	}
+
+	static String buildJsonForSingleToken(String token, String title, String body) {
 		// Validate token
 		if (token == null || token.trim().isEmpty()) {
 			throw new IllegalArgumentException("No token provided");
@@ -113,10 +195,10 @@ public class FCMSender {
 		
 		StringBuilder sb = new StringBuilder();
 		sb.append("{\"message\":{")
-				.append("\"token\":\"").append(escape(token)).append("\",")
+				.append("\"token\":\"").append(Json.escape(token)).append("\",")
 				.append("\"notification\":{")
-				.append("\"title\":\"").append(escape(title)).append("\",")
-				.append("\"body\":\"").append(escape(body)).append("\"")
+				.append("\"title\":\"").append(Json.escape(title)).append("\",")
+				.append("\"body\":\"").append(Json.escape(body)).append("\"")
 				.append("}")
 				.append("}}");
 		return sb.toString();
@@ -131,15 +213,27 @@ public class FCMSender {
 		return buildJsonForSingleToken(tokens.get(0), title, body);
 	}
 	
-	public boolean isValidFCMToken(String token) {
+	public static boolean isValidFCMToken(String token) {
 		if (token == null || token.trim().isEmpty()) {
 			return false;
 		}
 		// FCM token should be at least 140 characters and contain valid characters including colons
-		return token.length() >= 140 && token.matches("[A-Za-z0-9_:.-]+");
+		if (token.length() < 140) {
+			return false;
+		}
+		// Same as matching [A-Za-z0-9_:.-]+, without compiling a pattern for every token of a broadcast
+		for (int i = 0; i < token.length(); i++) {
+			char c = token.charAt(i);
+			boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| c == '_' || c == ':' || c == '.' || c == '-';
+			if (!ok) {
+				return false;
+			}
+		}
+		return true;
 	}
 
-	private String escape(String s) {
-		return s == null ? "" : s.replace("\\", "\\\\").replace("\"", "\\\"");
+	private static String stripTrailingSlash(String url) {
+		return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
 	}
 }
@@ -0,0 +1,74 @@
+package com.example.server;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One {@link FCMSender} per Firebase project named in {@code fcm.projects}. Each has its own cached
+ * credentials, HTTP connections, in-flight budget and send rate, so a large broadcast for one app cannot
+ * take connections or quota from another. A project's settings are {@code fcm.project.<name>.<key>},
+ * falling back to the shared {@code fcm.<key>}. The list must include {@value #DEFAULT_PROJECT}, the project of
+ * requests that name none and of every row the {@code project} columns default.
+ */
+public class FCMSenderRegistry {
+	/** Project of devices registered without one, and of rows created before projects existed. */
+	public static final String DEFAULT_PROJECT = "default";
+
+	private final Map<String, FCMSender> senders;
+
+	public FCMSenderRegistry() {
+		Map<String, FCMSender> byName = new LinkedHashMap<>();
+		for (String name : ConfigLoader.get("fcm.projects", DEFAULT_PROJECT).split(",")) {
+			String project = name.trim();
+			if (project.isEmpty()) continue;
+			if (!isValidName(project)) throw new IllegalStateException("Invalid project name in fcm.projects: " + project);
+			byName.put(project, new FCMSender(project));
+		}
+		// Rows from before projects existed are tagged with it, and no other project would ever send to them
+		if (!byName.containsKey(DEFAULT_PROJECT)) {
+			throw new IllegalStateException("fcm.projects must list " + DEFAULT_PROJECT + ", the project of devices registered without one");
+		}
+		this.senders = Collections.unmodifiableMap(byName);
+	}
+
+	/** Names are what the {@code device.project} column holds: 1 to 64 of letters, digits, '-' and '_'. */
+	public static boolean isValidName(String project) {
+		if (project == null || project.isEmpty() || project.length() > 64) return false;
+		for (int i = 0; i < project.length(); i++) {
+			char c = project.charAt(i);
+			boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+			if (!ok) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param project a project name, or null or blank for the default project
+	 * @return null if no such project is configured
+	 */
+	public FCMSender get(String project) {
+		return senders.get(resolve(project));
+	}
+
+	/** The project a request means: {@code project} itself, or the default one when it is null or blank. */
+	public String resolve(String project) {
+		return project == null || project.isBlank() ? DEFAULT_PROJECT : project.trim();
+	}
+
+	public String getDefaultProject() {
+		return DEFAULT_PROJECT;
+	}
+
+	public Set<String> projects() {
+		return senders.keySet();
+	}
+
+	/**
+	 * Enables deletion of tokens that FCM reports as unregistered or invalid, for every project.
+	 */
+	public void setTokenPruner(TokenPruner pruner) {
+		for (FCMSender sender : senders.values()) sender.setTokenPruner(pruner);
+	}
+}
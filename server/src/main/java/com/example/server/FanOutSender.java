@@ -0,0 +1,330 @@
+package com.example.server;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Dispatches one FCM request per token with {@link HttpClient#sendAsync}, keeping at most
+ * {@code maxInFlight} requests outstanding so HTTP/2 can multiplex them over a few connections.
+ * Payload publishers must be re-subscribable, as retries send the same one again.
+ * Transient failures are retried according to a {@link RetryPolicy}; a waiting retry sits on a shared
+ * timer and holds neither a thread nor an in-flight permit. An instance can also cap requests in flight and
+ * started per second across all of its concurrent sends, which gives each Firebase project its own budget.
+ */
+public class FanOutSender {
+	/**
+	 * Final outcome per token. {@code latencyNanos} runs from the token's first dispatch to that outcome,
+	 * retry delays included.
+	 */
+	public interface Callback {
+		void onResponse(int index, String token, HttpResponse<String> response, long latencyNanos);
+
+		void onError(int index, String token, Throwable error, long latencyNanos);
+
+		default void onRetry(int index, String token, int attempt, long delayMs) {}
+	}
+
+	/** Bearer token for each request; read per request so a long, paced send outlives token expiry. */
+	public interface AccessTokenSource {
+		String get() throws IOException;
+	}
+
+	/** Release schedule for the tokens of one send. */
+	public interface Pacer {
+		/** Nanoseconds until the token at {@code index} may be dispatched; zero or less once it is due. */
+		long nanosUntil(int index);
+	}
+
+	public static final class Result {
+		private final int tokenCount;
+		private final int retryCount;
+
+		Result(int tokenCount, int retryCount) {
+			this.tokenCount = tokenCount;
+			this.retryCount = retryCount;
+		}
+
+		public int getTokenCount() {
+			return tokenCount;
+		}
+
+		public int getRetryCount() {
+			return retryCount;
+		}
+	}
+
+	private static final ScheduledExecutorService RETRY_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "fcm-retry-timer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static final Metrics.UpDown IN_FLIGHT = new Metrics.UpDown();
+	private static final Metrics.Histogram REQUEST_TIME = Metrics.histogram("fcm_request_duration_seconds",
+			"FCM send request latency, one observation per attempt", Metrics.LATENCY_BUCKETS);
+	private static final Metrics.Counter REQUEST_ERRORS = requestCounter("error");
+	private static final Metrics.Counter[] REQUESTS_BY_STATUS = new Metrics.Counter[600];
+
+	static {
+		Metrics.gauge("fcm_requests_in_flight", "FCM send requests awaiting a response", IN_FLIGHT);
+	}
+
+	private final HttpClient httpClient;
+	private final int maxInFlight;
+	private final Duration requestTimeout;
+	private final RetryPolicy retryPolicy;
+	/** Shared by every send through this instance; null when unlimited. */
+	private final Semaphore sharedPermits;
+	private final long nanosPerRequest;
+	private final AtomicLong nextRequestNanos = new AtomicLong(System.nanoTime());
+
+	public FanOutSender(HttpClient httpClient, int maxInFlight, Duration requestTimeout) {
+		this(httpClient, maxInFlight, requestTimeout, RetryPolicy.none());
+	}
+
+	public FanOutSender(HttpClient httpClient, int maxInFlight, Duration requestTimeout, RetryPolicy retryPolicy) {
+		this(httpClient, maxInFlight, requestTimeout, retryPolicy, 0, 0);
+	}
+
+	/**
+	 * @param totalMaxInFlight requests outstanding across all concurrent sends, on top of the per-send
+	 *                         {@code maxInFlight}; 0 for no shared limit
+	 * @param maxPerSecond     request attempts started per second across all sends, retries included; 0 for
+	 *                         no limit
+	 */
+	public FanOutSender(HttpClient httpClient, int maxInFlight, Duration requestTimeout, RetryPolicy retryPolicy,
+			int totalMaxInFlight, int maxPerSecond) {
+		if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be >= 1");
+		this.httpClient = httpClient;
+		this.maxInFlight = maxInFlight;
+		this.requestTimeout = requestTimeout;
+		this.retryPolicy = retryPolicy;
+		this.sharedPermits = totalMaxInFlight > 0 ? new Semaphore(totalMaxInFlight, true) : null;
+		this.nanosPerRequest = maxPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / maxPerSecond : 0;
+	}
+
+	public static HttpClient newHttpClient(Duration connectTimeout) {
+		return HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.connectTimeout(connectTimeout)
+				.build();
+	}
+
+	private static Metrics.Counter requestCounter(String status) {
+		return Metrics.counter("fcm_requests_total", "FCM send attempts by HTTP status, or error for I/O failures", "status", status);
+	}
+
+	private static Metrics.Counter requestsWithStatus(int status) {
+		if (status < 100 || status >= REQUESTS_BY_STATUS.length) return requestCounter(Integer.toString(status));
+		Metrics.Counter c = REQUESTS_BY_STATUS[status];
+		if (c == null) {
+			// Racing threads get the same counter back from the registry
+			c = requestCounter(Integer.toString(status));
+			REQUESTS_BY_STATUS[status] = c;
+		}
+		return c;
+	}
+
+	/**
+	 * Releases {@code expectedTokens} evenly over {@code windowMs} from now; any tokens beyond the
+	 * expected count go out as soon as the window has passed.
+	 */
+	public static Pacer spread(int expectedTokens, long windowMs) {
+		long start = System.nanoTime();
+		long window = TimeUnit.MILLISECONDS.toNanos(windowMs);
+		int expected = Math.max(1, expectedTokens);
+		return index -> start + (index >= expected ? window : (long) ((double) index * window / expected)) - System.nanoTime();
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Sends to every token and returns once each one has a final response (or error) delivered to the
+	 * callback. Callbacks run on the client's executor and may be invoked concurrently. Tokens are pulled
+	 * from the iterator only as permits free up, so a streaming source is never read ahead of the sender.
+	 * A token whose payload the builder rejects with {@link IllegalArgumentException} is not sent; that
+	 * exception goes to {@link Callback#onError} and the send continues.
+	 */
+	public Result send(URI uri, String accessToken, Iterator<String> tokens, Function<String, HttpRequest.BodyPublisher> payloadBuilder,
+			Callback callback) throws InterruptedException {
+		return send(uri, () -> accessToken, tokens, payloadBuilder, callback, null);
+	}
+
+	/**
+	 * As {@link #send(URI, String, Iterator, Function, Callback)}, taking each token only once
+	 * {@code pacer} says it is due (null sends as fast as permits allow).
+	 */
+	public Result send(URI uri, AccessTokenSource accessToken, Iterator<String> tokens, Function<String, HttpRequest.BodyPublisher> payloadBuilder,
+			Callback callback, Pacer pacer) throws InterruptedException {
+		Run run = new Run(uri, accessToken, callback);
+		int count = 0;
+		try {
+			while (true) {
+				// Due retries go first so they are not starved by a long token stream
+				Attempt attempt = run.ready.poll();
+				if (attempt == Attempt.WAKE_UP) continue;
+				if (attempt == null && tokens.hasNext()) {
+					long waitNanos = pacer == null ? 0 : pacer.nanosUntil(count);
+					if (waitNanos > 0) {
+						// Not due yet: serve retries while waiting for the token's release time
+						attempt = run.ready.poll(Math.min(waitNanos, TimeUnit.MILLISECONDS.toNanos(100)), TimeUnit.NANOSECONDS);
+						if (attempt == null || attempt == Attempt.WAKE_UP) continue;
+					} else {
+						String token = tokens.next();
+						// Build before acquiring so an invalid token fails fast without holding a permit
+						HttpRequest.BodyPublisher payload;
+						try {
+							payload = payloadBuilder.apply(token);
+						} catch (IllegalArgumentException e) {
+							// One malformed token fails on its own; the rest of the send carries on
+							callback.onError(count++, token, e, 0);
+							continue;
+						}
+						attempt = new Attempt(count, token, payload);
+						count++;
+						run.outstanding.incrementAndGet();
+					}
+				}
+				if (attempt == null) {
+					if (run.outstanding.get() == 0) break;
+					attempt = run.ready.poll(100, TimeUnit.MILLISECONDS);
+					if (attempt == null || attempt == Attempt.WAKE_UP) continue;
+				}
+				throttle();
+				run.permits.acquire();
+				if (sharedPermits != null) {
+					try {
+						sharedPermits.acquire();
+					} catch (InterruptedException e) {
+						run.permits.release();
+						throw e;
+					}
+				}
+				run.dispatch(attempt, count);
+			}
+		} finally {
+			// Requests are bounded by requestTimeout, so draining cannot hang indefinitely
+			run.permits.acquireUninterruptibly(maxInFlight);
+		}
+		return new Result(count, run.budget.used());
+	}
+
+	/** Waits for this instance's next request slot under {@code maxPerSecond}. */
+	private void throttle() throws InterruptedException {
+		if (nanosPerRequest == 0) return;
+		long now = System.nanoTime();
+		// Each caller takes the next slot; an idle sender does not bank slots for a later burst
+		long slot = nextRequestNanos.getAndAccumulate(now, (next, t) -> Math.max(next, t) + nanosPerRequest);
+		long waitNanos = Math.max(slot, now) - now;
+		if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+	}
+
+	private static final class Attempt {
+		static final Attempt WAKE_UP = new Attempt(-1, null, null);
+
+		final int index;
+		final String token;
+		final HttpRequest.BodyPublisher payload;
+		int number = 1;
+		long firstDispatchNanos;
+
+		Attempt(int index, String token, HttpRequest.BodyPublisher payload) {
+			this.index = index;
+			this.token = token;
+			this.payload = payload;
+		}
+	}
+
+	/** State for one {@link #send} call. */
+	private final class Run {
+		final URI uri;
+		final AccessTokenSource accessToken;
+		final Callback callback;
+		final Semaphore permits = new Semaphore(maxInFlight);
+		final BlockingQueue<Attempt> ready = new LinkedBlockingQueue<>();
+		final AtomicInteger outstanding = new AtomicInteger();
+		final RetryPolicy.Budget budget = retryPolicy.newBudget();
+
+		Run(URI uri, AccessTokenSource accessToken, Callback callback) {
+			this.uri = uri;
+			this.accessToken = accessToken;
+			this.callback = callback;
+		}
+
+		void dispatch(Attempt attempt, int dispatched) {
+			long start = System.nanoTime();
+			if (attempt.number == 1) attempt.firstDispatchNanos = start;
+			IN_FLIGHT.inc();
+			CompletableFuture<HttpResponse<String>> call;
+			try {
+				HttpRequest request = HttpRequest.newBuilder()
+						.uri(uri)
+						.timeout(requestTimeout)
+						.header("Content-Type", "application/json; charset=UTF-8")
+						.header("Authorization", "Bearer " + accessToken.get())
+						.POST(attempt.payload)
+						.build();
+				call = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+			} catch (IOException e) {
+				// No token right now: fail the attempt like an I/O error, so it is retried
+				call = CompletableFuture.failedFuture(e);
+			}
+			call.whenComplete((response, error) -> {
+				IN_FLIGHT.dec();
+				REQUEST_TIME.observeSince(start);
+				if (error != null) REQUEST_ERRORS.inc(); else requestsWithStatus(response.statusCode()).inc();
+				try {
+					Throwable cause = error == null ? null : unwrap(error);
+					boolean retryable = cause != null
+							? RetryPolicy.isRetryable(cause)
+							: RetryPolicy.isRetryable(response.statusCode());
+					if (retryable && scheduleRetry(attempt, response, dispatched)) return;
+					try {
+						long latency = System.nanoTime() - attempt.firstDispatchNanos;
+						if (cause != null) {
+							callback.onError(attempt.index, attempt.token, cause, latency);
+						} else {
+							callback.onResponse(attempt.index, attempt.token, response, latency);
+						}
+					} finally {
+						if (outstanding.decrementAndGet() == 0) ready.offer(Attempt.WAKE_UP);
+					}
+				} finally {
+					if (sharedPermits != null) sharedPermits.release();
+					permits.release();
+				}
+			});
+		}
+
+		private boolean scheduleRetry(Attempt attempt, HttpResponse<String> response, int dispatched) {
+			long delay = retryPolicy.delayBeforeRetry(attempt.number, response);
+			if (delay < 0 || !budget.tryAcquire(dispatched)) return false;
+			attempt.number++;
+			callback.onRetry(attempt.index, attempt.token, attempt.number, delay);
+			RETRY_TIMER.schedule(() -> ready.offer(attempt), delay, TimeUnit.MILLISECONDS);
+			return true;
+		}
+	}
+
+	private static Throwable unwrap(Throwable t) {
+		return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+	}
+}
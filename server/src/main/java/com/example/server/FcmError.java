@@ -0,0 +1,52 @@
+package com.example.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * The {@code error} object of a failed FCM v1 response. {@code code} is the FCM error code from
+ * {@code details[].errorCode} (e.g. {@code UNREGISTERED}) when present, else the generic {@code status}.
+ */
+public final class FcmError {
+	public final String code;
+	public final String message;
+
+	private FcmError(String code, String message) {
+		this.code = code;
+		this.message = message;
+	}
+
+	/** @return null if {@code body} is not an FCM error response */
+	public static FcmError parse(String body) {
+		JsonObject error;
+		try {
+			JsonElement root = JsonParser.parseString(body);
+			if (!root.isJsonObject() || !root.getAsJsonObject().has("error")) return null;
+			JsonElement e = root.getAsJsonObject().get("error");
+			if (!e.isJsonObject()) return null;
+			error = e.getAsJsonObject();
+		} catch (RuntimeException e) {
+			return null;
+		}
+		return new FcmError(errorCode(error), stringField(error, "message"));
+	}
+
+	private static String errorCode(JsonObject error) {
+		JsonArray details = error.has("details") && error.get("details").isJsonArray() ? error.getAsJsonArray("details") : null;
+		if (details != null) {
+			for (JsonElement d : details) {
+				if (d.isJsonObject() && d.getAsJsonObject().has("errorCode")) {
+					return d.getAsJsonObject().get("errorCode").getAsString();
+				}
+			}
+		}
+		return stringField(error, "status");
+	}
+
+	private static String stringField(JsonObject o, String name) {
+		JsonElement e = o.get(name);
+		return e != null && e.isJsonPrimitive() ? e.getAsString() : null;
+	}
+}
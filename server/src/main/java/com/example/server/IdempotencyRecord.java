@@ -0,0 +1,29 @@
+package com.example.server;
+
+/**
+ * A row of {@code idempotency_key}. {@code jobId} (or {@code scheduleId}, for a scheduled send) is unset
+ * while the claiming request is still submitting its job; {@code response} holds the job's final status
+ * JSON once it has finished. Both flags are evaluated by the database, so servers with skewed clocks agree
+ * on them.
+ */
+public class IdempotencyRecord {
+	public final String fingerprint;
+	public final String jobId;
+	public final String response;
+	/** 0 unless the key stored a scheduled send. */
+	public final long scheduleId;
+	/** The claim's lease has run out, so a claim that never recorded its job may be taken over. */
+	public final boolean leaseExpired;
+	/** The key is older than the TTL and no longer deduplicates anything. */
+	public final boolean expired;
+
+	public IdempotencyRecord(String fingerprint, String jobId, String response, long scheduleId, boolean leaseExpired,
+			boolean expired) {
+		this.fingerprint = fingerprint;
+		this.jobId = jobId;
+		this.response = response;
+		this.scheduleId = scheduleId;
+		this.leaseExpired = leaseExpired;
+		this.expired = expired;
+	}
+}
@@ -0,0 +1,289 @@
+package com.example.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maps {@code Idempotency-Key}s of send requests to the job they started, or the scheduled send they
+ * stored, so a retried request gets the original back instead of broadcasting again. Recent keys live in a bounded LRU; every key is also
+ * claimed in {@code idempotency_key}, which covers keys evicted from memory, restarts and other server
+ * instances. Duplicates arriving together wait on the same entry, so only the first one submits a job.
+ * A claim whose job was never recorded (its server died, or the update failed) can be taken over once its
+ * {@code claimLeaseMs} lease has run out, instead of blocking the key for the whole TTL. Leases and the TTL
+ * of stored keys are judged by the database's clock, never by comparing it with this server's.
+ */
+public class IdempotencyStore {
+	private static final Log LOG = Log.get(IdempotencyStore.class);
+	private static final String HELP = "Send requests that carried an Idempotency-Key, by outcome";
+	private static final Metrics.Counter NEW = Metrics.counter("idempotency_requests_total", HELP, "outcome", "new");
+	private static final Metrics.Counter REPLAYED = Metrics.counter("idempotency_requests_total", HELP, "outcome", "replayed");
+	private static final Metrics.Counter MISMATCHED = Metrics.counter("idempotency_requests_total", HELP, "outcome", "mismatch");
+	private static final Metrics.Counter IN_PROGRESS = Metrics.counter("idempotency_requests_total", HELP, "outcome", "in_progress");
+	/** Expired rows are deleted once per this many new keys. */
+	private static final int PURGE_EVERY = 1024;
+
+	public enum Kind {
+		/** The key was new; {@code job} was just submitted, or {@code schedule} just stored. */
+		NEW,
+		/**
+		 * The key was seen before; {@code job} is the original one if still retained, else {@code response} may
+		 * hold its final status. For a scheduled send, {@code scheduleId} is set instead.
+		 */
+		REPLAYED,
+		/** The key was used before with different parameters. */
+		MISMATCH,
+		/** Another server instance holds a live lease on the key and has not recorded its job yet. */
+		IN_PROGRESS
+	}
+
+	public static final class Outcome {
+		public final Kind kind;
+		public final SendJob job;
+		public final String jobId;
+		public final String response;
+		public final ScheduledSend schedule;
+		/** 0 unless the key stored a scheduled send. */
+		public final long scheduleId;
+
+		Outcome(Kind kind, SendJob job, String jobId, String response) {
+			this(kind, job, jobId, response, null, 0);
+		}
+
+		Outcome(Kind kind, SendJob job, String jobId, String response, ScheduledSend schedule, long scheduleId) {
+			this.kind = kind;
+			this.job = job;
+			this.jobId = jobId;
+			this.response = response;
+			this.schedule = schedule;
+			this.scheduleId = scheduleId;
+		}
+	}
+
+	/** Stores a scheduled send; see {@link ScheduledSends#schedule}. */
+	public interface Scheduler {
+		ScheduledSend schedule() throws SQLException;
+	}
+
+	/** Starts the work of a key this instance has just claimed. */
+	private interface Starter {
+		Outcome start(Entry entry) throws SQLException;
+	}
+
+	private static final class Entry {
+		final String fingerprint;
+		final long createdAt = System.currentTimeMillis();
+		String jobId;
+		String response;
+		long scheduleId;
+
+		Entry(String fingerprint) {
+			this.fingerprint = fingerprint;
+		}
+
+		boolean started() {
+			return jobId != null || scheduleId > 0;
+		}
+	}
+
+	private final DatabaseHelper db;
+	private final SendJobManager jobs;
+	private final long ttlMs;
+	private final long claimLeaseMs;
+	private final Map<String, Entry> entries;
+	private final AtomicInteger claims = new AtomicInteger();
+
+	/**
+	 * @param claimLeaseMs how long a claim without a recorded job holds the key; longer than it can take
+	 *                     a request to submit its job
+	 */
+	public IdempotencyStore(DatabaseHelper db, SendJobManager jobs, int capacity, long ttlMs, long claimLeaseMs) {
+		this.db = db;
+		this.jobs = jobs;
+		this.ttlMs = ttlMs;
+		this.claimLeaseMs = claimLeaseMs;
+		this.entries = new LinkedHashMap<>(Math.min(capacity, 1024), 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/** Keys are 1 to 255 visible ASCII characters. */
+	public static boolean isValidKey(String key) {
+		if (key == null || key.isEmpty() || key.length() > 255) return false;
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			if (c < 0x21 || c > 0x7e) return false;
+		}
+		return true;
+	}
+
+	/** SHA-256 over the request type and its parameters in name order, ignoring {@code idempotencyKey}. */
+	public static String fingerprint(String type, Map<String, String[]> params) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(type.getBytes(StandardCharsets.UTF_8));
+			for (Map.Entry<String, String[]> p : new TreeMap<>(params).entrySet()) {
+				if ("idempotencyKey".equals(p.getKey())) continue;
+				digest.update((byte) 0);
+				digest.update(p.getKey().getBytes(StandardCharsets.UTF_8));
+				for (String value : p.getValue()) {
+					digest.update((byte) 1);
+					digest.update(value.getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			StringBuilder hex = new StringBuilder(64);
+			for (byte b : digest.digest()) hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Submits {@code task} unless {@code key} already started a job.
+	 *
+	 * @throws RejectedExecutionException if the project's job queue is full; the key is released so a retry can run
+	 */
+	public Outcome submit(String key, String fingerprint, String project, String type, SendJobManager.Task task) throws SQLException {
+		return start(key, fingerprint, entry -> {
+			SendJob job;
+			try {
+				job = jobs.submit(project, type, task, finished -> finish(key, entry, finished));
+			} catch (RejectedExecutionException e) {
+				forget(key, entry);
+				db.deleteIdempotencyKeys(key, 0);
+				throw e;
+			}
+			entry.jobId = job.getId();
+			NEW.inc();
+			try {
+				db.updateIdempotencyKey(key, job.getId(), null);
+			} catch (SQLException e) {
+				// The job is already queued; this instance still deduplicates the key from memory
+				LOG.warn("could not record idempotency key", "jobId", job.getId(), "error", e.getMessage());
+			}
+			return new Outcome(Kind.NEW, job, job.getId(), null);
+		});
+	}
+
+	/**
+	 * Stores a scheduled send through {@code scheduler} unless {@code key} already stored one, so a retried
+	 * request gets the original schedule back instead of storing (and later sending) a second one.
+	 */
+	public Outcome schedule(String key, String fingerprint, Scheduler scheduler) throws SQLException {
+		return start(key, fingerprint, entry -> {
+			ScheduledSend s;
+			try {
+				s = scheduler.schedule();
+			} catch (SQLException | RuntimeException e) {
+				forget(key, entry);
+				db.deleteIdempotencyKeys(key, 0);
+				throw e;
+			}
+			entry.scheduleId = s.id;
+			NEW.inc();
+			try {
+				db.updateIdempotencySchedule(key, s.id);
+			} catch (SQLException e) {
+				// The send is already stored; this instance still deduplicates the key from memory
+				LOG.warn("could not record idempotency key", "scheduleId", s.id, "error", e.getMessage());
+			}
+			return new Outcome(Kind.NEW, null, null, null, s, s.id);
+		});
+	}
+
+	private Outcome start(String key, String fingerprint, Starter starter) throws SQLException {
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry == null || System.currentTimeMillis() - entry.createdAt > ttlMs) {
+				entry = new Entry(fingerprint);
+				entries.put(key, entry);
+			}
+		}
+		synchronized (entry) {
+			if (!entry.fingerprint.equals(fingerprint)) {
+				MISMATCHED.inc();
+				return new Outcome(Kind.MISMATCH, null, null, null);
+			}
+			if (entry.started()) return replay(entry);
+
+			IdempotencyRecord stored = claim(key, fingerprint);
+			if (stored != null) {
+				if (!stored.fingerprint.equals(fingerprint)) {
+					forget(key, entry);
+					MISMATCHED.inc();
+					return new Outcome(Kind.MISMATCH, null, null, null);
+				}
+				if (stored.jobId == null && stored.scheduleId == 0) {
+					forget(key, entry);
+					IN_PROGRESS.inc();
+					return new Outcome(Kind.IN_PROGRESS, null, null, null);
+				}
+				entry.jobId = stored.jobId;
+				entry.response = stored.response;
+				entry.scheduleId = stored.scheduleId;
+				return replay(entry);
+			}
+			return starter.start(entry);
+		}
+	}
+
+	/**
+	 * @return null if this call claimed the key, else the existing row
+	 */
+	private IdempotencyRecord claim(String key, String fingerprint) throws SQLException {
+		if (claims.incrementAndGet() % PURGE_EVERY == 0) {
+			db.deleteIdempotencyKeys(null, ttlMs);
+		}
+		for (int attempt = 0; attempt < 2; attempt++) {
+			if (db.claimIdempotencyKey(key, fingerprint, claimLeaseMs)) return null;
+			IdempotencyRecord stored = db.findIdempotencyKey(key, ttlMs);
+			if (stored == null) continue;
+			if (stored.jobId == null && stored.scheduleId == 0 && stored.leaseExpired) {
+				// The claiming request never recorded its job or schedule; take the key over
+				LOG.warn("taking over abandoned idempotency claim", "leaseMs", claimLeaseMs);
+				db.releaseIdempotencyClaim(key);
+				continue;
+			}
+			if (!stored.expired) return stored;
+			// Expired: drop it and claim afresh
+			db.deleteIdempotencyKeys(key, ttlMs);
+		}
+		return db.findIdempotencyKey(key, ttlMs);
+	}
+
+	private Outcome replay(Entry entry) {
+		REPLAYED.inc();
+		if (entry.scheduleId > 0) return new Outcome(Kind.REPLAYED, null, null, null, null, entry.scheduleId);
+		return new Outcome(Kind.REPLAYED, jobs.get(entry.jobId), entry.jobId, entry.response);
+	}
+
+	private void finish(String key, Entry entry, SendJob job) {
+		String response = job.toJson();
+		// Waits for submit() to record the job id first, so the final status is not overwritten
+		synchronized (entry) {
+			entry.response = response;
+			try {
+				db.updateIdempotencyKey(key, job.getId(), response);
+			} catch (SQLException e) {
+				LOG.warn("could not record idempotent job result", "jobId", job.getId(), "error", e.getMessage());
+			}
+		}
+	}
+
+	private void forget(String key, Entry entry) {
+		synchronized (entries) {
+			entries.remove(key, entry);
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package com.example.server;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-Sent Events for send job progress ({@code GET /jobs/{id}/events}). One ticker thread samples
+ * every watched job at a fixed rate and pushes a {@code progress} event only when its counters moved,
+ * however many devices finished in between, so a 100k-device fan-out streams no more than a small one.
+ * Writes are non-blocking: a client that is not keeping up skips ticks and gets the latest snapshot once
+ * it drains. The stream ends with a {@code done} event carrying the job's final status.
+ */
+public class JobEventStream {
+	private static final Log LOG = Log.get(JobEventStream.class);
+	private static final byte[] HEARTBEAT = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+
+	private final class Stream implements WriteListener, AsyncListener {
+		final SendJob job;
+		final AsyncContext ctx;
+		final ServletOutputStream out;
+		boolean started;
+		int lastSuccess;
+		int lastFailed;
+		int lastRetries;
+		int lastPruned;
+		SendJob.State lastState;
+		long lastEventMs;
+		long lastWriteMs;
+
+		Stream(SendJob job, AsyncContext ctx, ServletOutputStream out) {
+			this.job = job;
+			this.ctx = ctx;
+			this.out = out;
+		}
+
+		/** Only called on the ticker thread, so writes never overlap. */
+		void push(long now) throws IOException {
+			// The previous event is still draining; the next tick sends whatever is current by then
+			if (!out.isReady()) return;
+			boolean finished = job.isFinished();
+			int success = job.getSuccessCount();
+			int failed = job.getFailureCount();
+			int retries = job.getRetryCount();
+			int pruned = job.getPrunedCount();
+			SendJob.State state = job.getState();
+			boolean changed = !started || success != lastSuccess || failed != lastFailed || retries != lastRetries
+					|| pruned != lastPruned || state != lastState;
+			if (!finished && !changed) {
+				if (now - lastWriteMs >= heartbeatMs) {
+					out.write(HEARTBEAT);
+					flush(now);
+				}
+				return;
+			}
+			double rate = started && now > lastEventMs ? (success + failed - lastSuccess - lastFailed) * 1000.0 / (now - lastEventMs) : 0;
+			StringBuilder event = new StringBuilder(384);
+			if (!started) event.append("retry: 2000\n");
+			event.append("event: ").append(finished ? "done" : "progress").append('\n')
+					.append("data: ").append(job.toJson(rate)).append("\n\n");
+			out.write(event.toString().getBytes(StandardCharsets.UTF_8));
+			started = true;
+			lastSuccess = success;
+			lastFailed = failed;
+			lastRetries = retries;
+			lastPruned = pruned;
+			lastState = state;
+			lastEventMs = now;
+			if (finished) {
+				close();
+			} else {
+				flush(now);
+			}
+		}
+
+		private void flush(long now) throws IOException {
+			lastWriteMs = now;
+			if (out.isReady()) out.flush();
+		}
+
+		void close() {
+			streams.remove(this);
+			try {
+				ctx.complete();
+			} catch (IllegalStateException alreadyCompleted) {
+				// Completed by an error or the container shutting down
+			}
+		}
+
+		@Override
+		public void onWritePossible() {
+			// Nothing queued here; the ticker writes the newest snapshot on its next pass
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			close();
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			streams.remove(this);
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			close();
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			close();
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+		}
+	}
+
+	private final Set<Stream> streams = ConcurrentHashMap.newKeySet();
+	private final long heartbeatMs;
+	private final int maxStreams;
+	private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "job-events");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * @param tickMs      interval between samples; at most one event per stream per tick
+	 * @param heartbeatMs an idle stream gets a comment line this often, so proxies keep it open and a gone
+	 *                    client is noticed
+	 */
+	public JobEventStream(long tickMs, long heartbeatMs, int maxStreams) {
+		this.heartbeatMs = heartbeatMs;
+		this.maxStreams = maxStreams;
+		Metrics.gauge("job_event_streams", "Open job progress event streams", streams::size);
+		ticker.scheduleAtFixedRate(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts streaming {@code job} on this request. The first event follows within one tick.
+	 *
+	 * @return false, leaving the response untouched, if {@code maxStreams} streams are open already
+	 */
+	public boolean open(HttpServletRequest req, HttpServletResponse resp, SendJob job) throws IOException {
+		if (streams.size() >= maxStreams) return false;
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentType("text/event-stream; charset=UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+		// Keeps nginx-style proxies from buffering the stream
+		resp.setHeader("X-Accel-Buffering", "no");
+		AsyncContext ctx = req.startAsync();
+		ctx.setTimeout(0);
+		Stream stream = new Stream(job, ctx, resp.getOutputStream());
+		ctx.addListener(stream);
+		streams.add(stream);
+		stream.out.setWriteListener(stream);
+		return true;
+	}
+
+	public void shutdown() {
+		ticker.shutdownNow();
+		for (Stream s : streams) s.close();
+	}
+
+	private void tick() {
+		long now = System.currentTimeMillis();
+		for (Stream s : streams) {
+			try {
+				s.push(now);
+			} catch (IOException | IllegalStateException e) {
+				LOG.debug("job event stream closed", "jobId", s.job.getId(), "error", e.getMessage());
+				s.close();
+			} catch (RuntimeException e) {
+				LOG.warn("job event stream failed", "jobId", s.job.getId(), "error", e.getMessage());
+				s.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package com.example.server;
+
+/**
+ * The one JSON string escaper of the server, for responses, stored job results and FCM message bodies
+ * alike, which are all built by string concatenation.
+ */
+public final class Json {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private Json() {
+	}
+
+	/**
+	 * The contents of a JSON string literal for {@code s}, without the quotes; null gives an empty string.
+	 * Escapes quotes, backslashes and every control character, and also U+2028 and U+2029, which are valid
+	 * in JSON but end a line in JavaScript.
+	 */
+	public static String escape(String s) {
+		if (s == null) return "";
+		int i = 0;
+		// Tokens and most labels need no escaping; return them without copying
+		while (i < s.length() && !needsEscape(s.charAt(i))) i++;
+		if (i == s.length()) return s;
+		StringBuilder sb = new StringBuilder(s.length() + 16).append(s, 0, i);
+		for (; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				case '\b': sb.append("\\b"); break;
+				case '\f': sb.append("\\f"); break;
+				default:
+					if (needsEscape(c)) {
+						sb.append("\\u").append(HEX[c >> 12]).append(HEX[(c >> 8) & 0xf]).append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+					} else {
+						sb.append(c);
+					}
+			}
+		}
+		return sb.toString();
+	}
+
+	private static boolean needsEscape(char c) {
+		return c < 0x20 || c == '"' || c == '\\' || c == 0x2028 || c == 0x2029;
+	}
+}
@@ -0,0 +1,237 @@
+package com.example.server;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Minimal structured logger. Callers only enqueue a record into a bounded lock-free ring; formatting and
+ * console I/O happen on one appender thread, so hot paths never wait on stdout. When the ring is full the
+ * record is dropped and counted instead of blocking. Lines look like
+ * {@code 2024-01-01T00:00:00.000Z INFO  FCMSender send finished sent=10 success=10}.
+ *
+ * <p>Configured with {@code log.level}, {@code log.bufferSize} and {@code log.tokenSampleRate}; the
+ * latter is the fraction of per-token events that {@link #sampleToken()} lets through.
+ */
+public final class Log {
+	public enum Level { DEBUG, INFO, WARN, ERROR }
+
+	private static final Level THRESHOLD = parseLevel(ConfigLoader.get("log.level", "INFO"));
+	private static final double TOKEN_SAMPLE_RATE = parseRate(ConfigLoader.get("log.tokenSampleRate", "0.001"));
+	private static final Ring RING = new Ring(ConfigLoader.getInt("log.bufferSize", 8192));
+	private static final LongAdder DROPPED = new LongAdder();
+	private static volatile long written;
+	private static final Thread APPENDER = new Thread(Log::runAppender, "log-appender");
+
+	static {
+		APPENDER.setDaemon(true);
+		APPENDER.start();
+	}
+
+	private final String name;
+
+	private Log(String name) {
+		this.name = name;
+	}
+
+	public static Log get(Class<?> type) {
+		return new Log(type.getSimpleName());
+	}
+
+	public boolean isEnabled(Level level) {
+		return level.ordinal() >= THRESHOLD.ordinal();
+	}
+
+	/** True for roughly {@code log.tokenSampleRate} of calls; guards per-token events in send loops. */
+	public static boolean sampleToken() {
+		return TOKEN_SAMPLE_RATE > 0 && ThreadLocalRandom.current().nextDouble() < TOKEN_SAMPLE_RATE;
+	}
+
+	/** Last characters of a registration token, enough to correlate without leaking it. */
+	public static String redact(String token) {
+		if (token == null) return "null";
+		return token.length() <= 8 ? "***" : "..." + token.substring(token.length() - 6);
+	}
+
+	public static long droppedCount() {
+		return DROPPED.sum();
+	}
+
+	/** Fields are alternating keys and values. */
+	public void debug(String message, Object... fields) {
+		log(Level.DEBUG, message, null, fields);
+	}
+
+	public void info(String message, Object... fields) {
+		log(Level.INFO, message, null, fields);
+	}
+
+	public void warn(String message, Object... fields) {
+		log(Level.WARN, message, null, fields);
+	}
+
+	public void error(String message, Throwable error, Object... fields) {
+		log(Level.ERROR, message, error, fields);
+	}
+
+	public void log(Level level, String message, Throwable error, Object... fields) {
+		if (!isEnabled(level)) return;
+		if (!RING.offer(new Record(System.currentTimeMillis(), level, name, message, error, fields))) {
+			DROPPED.increment();
+		}
+	}
+
+	/** Waits briefly for queued records to be written; called on shutdown. */
+	public static void flush() {
+		long target = RING.tail.get();
+		long deadline = System.nanoTime() + 2_000_000_000L;
+		while (written < target && System.nanoTime() < deadline) {
+			LockSupport.unpark(APPENDER);
+			LockSupport.parkNanos(1_000_000);
+		}
+	}
+
+	private static void runAppender() {
+		StringBuilder out = new StringBuilder(8192);
+		StringBuilder err = new StringBuilder(1024);
+		long reportedDrops = 0;
+		while (true) {
+			Record r;
+			int drained = 0;
+			while ((r = RING.poll()) != null) {
+				StringBuilder sb = r.level.ordinal() >= Level.WARN.ordinal() ? err : out;
+				format(r, sb);
+				if (out.length() > 64 * 1024) write(System.out, out);
+				drained++;
+			}
+			long dropped = DROPPED.sum();
+			if (dropped != reportedDrops) {
+				format(new Record(System.currentTimeMillis(), Level.WARN, "Log", "log records dropped", null,
+						new Object[] {"count", dropped - reportedDrops}), err);
+				reportedDrops = dropped;
+			}
+			write(System.out, out);
+			write(System.err, err);
+			written = RING.head;
+			// Only sleep once the ring is drained, so a burst is written at full speed
+			if (drained == 0) LockSupport.parkNanos(5_000_000);
+		}
+	}
+
+	private static void write(PrintStream stream, StringBuilder sb) {
+		if (sb.length() == 0) return;
+		stream.print(sb);
+		stream.flush();
+		sb.setLength(0);
+	}
+
+	private static void format(Record r, StringBuilder sb) {
+		sb.append(Instant.ofEpochMilli(r.timestamp)).append(' ');
+		String level = r.level.name();
+		sb.append(level);
+		for (int i = level.length(); i < 6; i++) sb.append(' ');
+		sb.append(r.logger).append(' ').append(r.message);
+		Object[] f = r.fields;
+		for (int i = 0; f != null && i + 1 < f.length; i += 2) {
+			sb.append(' ').append(f[i]).append('=');
+			String value = String.valueOf(f[i + 1]);
+			if (value.indexOf(' ') >= 0 || value.indexOf('"') >= 0 || value.isEmpty()) {
+				appendQuoted(sb, value);
+			} else {
+				sb.append(value);
+			}
+		}
+		if (r.error != null) {
+			// The whole trace, cause chain included, kept on the record's line
+			StringWriter trace = new StringWriter();
+			r.error.printStackTrace(new PrintWriter(trace));
+			sb.append(" error=");
+			appendQuoted(sb, trace.toString().stripTrailing());
+		}
+		sb.append(System.lineSeparator());
+	}
+
+	private static void appendQuoted(StringBuilder sb, String value) {
+		sb.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\r", "").replace("\n", "\\n")
+				.replace("\t", "\\t")).append('"');
+	}
+
+	private static Level parseLevel(String value) {
+		try {
+			return Level.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return Level.INFO;
+		}
+	}
+
+	private static double parseRate(String value) {
+		try {
+			return Math.max(0, Math.min(1, Double.parseDouble(value.trim())));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static final class Record {
+		final long timestamp;
+		final Level level;
+		final String logger;
+		final String message;
+		final Throwable error;
+		final Object[] fields;
+
+		Record(long timestamp, Level level, String logger, String message, Throwable error, Object[] fields) {
+			this.timestamp = timestamp;
+			this.level = level;
+			this.logger = logger;
+			this.message = message;
+			this.error = error;
+			this.fields = fields;
+		}
+	}
+
+	/**
+	 * Bounded multi-producer, single-consumer ring. Producers claim a sequence with CAS and then publish
+	 * the slot; the consumer waits for the slot at its head, so records come out in claim order.
+	 */
+	private static final class Ring {
+		private final AtomicReferenceArray<Record> slots;
+		private final int mask;
+		private final AtomicLong tail = new AtomicLong();
+		private volatile long head;
+
+		Ring(int capacity) {
+			int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+			this.slots = new AtomicReferenceArray<>(size);
+			this.mask = size - 1;
+		}
+
+		boolean offer(Record r) {
+			while (true) {
+				long t = tail.get();
+				if (t - head >= slots.length()) return false;
+				if (tail.compareAndSet(t, t + 1)) {
+					slots.set((int) t & mask, r);
+					return true;
+				}
+			}
+		}
+
+		Record poll() {
+			long h = head;
+			int index = (int) h & mask;
+			Record r = slots.get(index);
+			// Null also covers a claimed slot whose producer has not published yet
+			if (r == null) return null;
+			slots.set(index, null);
+			head = h + 1;
+			return r;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.example.server;
+
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Flow;
+
+/**
+ * A notification message with everything but the token already serialized. Title and body are escaped
+ * and encoded to UTF-8 once per broadcast; each request then only encodes its token and is published as
+ * three buffers (prefix, token, suffix) that share the template's bytes.
+ */
+public final class MessageTemplate {
+	private final boolean topic;
+	private final ByteBuffer prefix;
+	private final ByteBuffer suffix;
+
+	private MessageTemplate(boolean topic, String prefix, String suffix) {
+		this.topic = topic;
+		this.prefix = ByteBuffer.wrap(prefix.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+		this.suffix = ByteBuffer.wrap(suffix.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+	}
+
+	public static MessageTemplate notification(String title, String body) {
+		return new MessageTemplate(false, "{\"message\":{\"token\":\"", notificationSuffix(title, body));
+	}
+
+	/** The same message addressed to an FCM topic; {@link #publisherFor} then takes topic names. */
+	public static MessageTemplate topicNotification(String title, String body) {
+		return new MessageTemplate(true, "{\"message\":{\"topic\":\"", notificationSuffix(title, body));
+	}
+
+	private static String notificationSuffix(String title, String body) {
+		return "\",\"notification\":{\"title\":\"" + Json.escape(title) + "\",\"body\":\"" + Json.escape(body) + "\"}}}";
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the target is not a valid FCM registration token (or topic name)
+	 */
+	public HttpRequest.BodyPublisher publisherFor(String target) {
+		boolean valid = topic ? TopicSync.isValidTopicName(target) : FCMSender.isValidFCMToken(target);
+		if (!valid) {
+			throw new IllegalArgumentException((topic ? "Invalid FCM topic name: " : "Invalid FCM token format: ") + target);
+		}
+		// Valid tokens and topic names are plain ASCII and need no escaping
+		return new Publisher(target.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/** Re-subscribable, so a retried request can publish the same body again. */
+	private final class Publisher implements HttpRequest.BodyPublisher {
+		private final byte[] token;
+
+		Publisher(byte[] token) {
+			this.token = token;
+		}
+
+		@Override
+		public long contentLength() {
+			return prefix.remaining() + token.length + suffix.remaining();
+		}
+
+		@Override
+		public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+			subscriber.onSubscribe(new Subscription(subscriber, token));
+		}
+	}
+
+	private final class Subscription implements Flow.Subscription {
+		private final Flow.Subscriber<? super ByteBuffer> subscriber;
+		private final byte[] token;
+		private volatile boolean cancelled;
+		private int next;
+		private long demand;
+		private boolean emitting;
+
+		Subscription(Flow.Subscriber<? super ByteBuffer> subscriber, byte[] token) {
+			this.subscriber = subscriber;
+			this.token = token;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				cancel();
+				subscriber.onError(new IllegalArgumentException("non-positive request: " + n));
+				return;
+			}
+			synchronized (this) {
+				demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				// request() may be called re-entrantly from onNext; the outer call keeps emitting
+				if (emitting) return;
+				emitting = true;
+			}
+			while (true) {
+				ByteBuffer buffer;
+				synchronized (this) {
+					if (cancelled || demand == 0 || next == 3) {
+						emitting = false;
+						if (next == 3 && !cancelled) {
+							cancelled = true;
+							break;
+						}
+						return;
+					}
+					demand--;
+					// Duplicates share the template's bytes but keep their own position
+					buffer = next == 0 ? prefix.duplicate() : next == 1 ? ByteBuffer.wrap(token) : suffix.duplicate();
+					next++;
+				}
+				subscriber.onNext(buffer);
+			}
+			subscriber.onComplete();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+}
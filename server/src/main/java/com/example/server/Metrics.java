@@ -0,0 +1,199 @@
+package com.example.server;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Process-wide metrics rendered in the Prometheus text format by {@code GET /metrics}. Counters and
+ * histogram buckets are {@link LongAdder}s, so recording is a striped increment with no lock; the
+ * registry lookup happens once, when a call site first asks for its metric. Labels are passed as
+ * alternating names and values.
+ */
+public final class Metrics {
+	/** Latency buckets in seconds, from 0.5 ms to 30 s. */
+	public static final double[] LATENCY_BUCKETS = {
+			0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+	private static final Map<String, Family> FAMILIES = new ConcurrentSkipListMap<>();
+
+	private Metrics() {
+	}
+
+	public static Counter counter(String name, String help, String... labels) {
+		return (Counter) family(name, help, "counter").children.computeIfAbsent(labelString(labels), k -> new Counter());
+	}
+
+	public static Histogram histogram(String name, String help, double[] bounds, String... labels) {
+		return (Histogram) family(name, help, "histogram").children.computeIfAbsent(labelString(labels), k -> new Histogram(bounds));
+	}
+
+	/** Registers (or replaces) a gauge whose value is read at scrape time. */
+	public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+		family(name, help, "gauge").children.put(labelString(labels), new Gauge(value));
+	}
+
+	public static String scrape() {
+		StringBuilder sb = new StringBuilder(4096);
+		for (Map.Entry<String, Family> e : FAMILIES.entrySet()) {
+			String name = e.getKey();
+			Family f = e.getValue();
+			sb.append("# HELP ").append(name).append(' ').append(f.help).append('\n');
+			sb.append("# TYPE ").append(name).append(' ').append(f.type).append('\n');
+			for (Map.Entry<String, Object> child : f.children.entrySet()) {
+				String labels = child.getKey();
+				Object m = child.getValue();
+				if (m instanceof Histogram) {
+					((Histogram) m).render(sb, name, labels);
+				} else {
+					double value = m instanceof Counter ? ((Counter) m).get() : ((Gauge) m).value.getAsDouble();
+					sample(sb, name, labels, null, value);
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private static Family family(String name, String help, String type) {
+		Family f = FAMILIES.computeIfAbsent(name, k -> new Family(help, type));
+		if (!f.type.equals(type)) throw new IllegalArgumentException(name + " is already registered as a " + f.type);
+		return f;
+	}
+
+	private static String labelString(String[] labels) {
+		if (labels.length == 0) return "";
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i + 1 < labels.length; i += 2) {
+			if (sb.length() > 0) sb.append(',');
+			sb.append(labels[i]).append("=\"")
+					.append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+		}
+		return sb.toString();
+	}
+
+	private static void sample(StringBuilder sb, String name, String labels, String extraLabel, double value) {
+		sb.append(name);
+		if (!labels.isEmpty() || extraLabel != null) {
+			sb.append('{').append(labels);
+			if (extraLabel != null) sb.append(labels.isEmpty() ? "" : ",").append(extraLabel);
+			sb.append('}');
+		}
+		sb.append(' ');
+		if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+			sb.append((long) value);
+		} else {
+			sb.append(String.format(Locale.ROOT, "%.6g", value));
+		}
+		sb.append('\n');
+	}
+
+	private static final class Family {
+		final String help;
+		final String type;
+		final Map<String, Object> children = new ConcurrentSkipListMap<>();
+
+		Family(String help, String type) {
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	public static final class Counter {
+		private final LongAdder value = new LongAdder();
+
+		public void inc() {
+			value.increment();
+		}
+
+		public void add(long n) {
+			value.add(n);
+		}
+
+		public long get() {
+			return value.sum();
+		}
+	}
+
+	/** Current value that goes up and down, such as requests in flight. */
+	public static final class UpDown implements DoubleSupplier {
+		private final LongAdder value = new LongAdder();
+
+		public void inc() {
+			value.increment();
+		}
+
+		public void dec() {
+			value.decrement();
+		}
+
+		@Override
+		public double getAsDouble() {
+			return value.sum();
+		}
+	}
+
+	private static final class Gauge {
+		final DoubleSupplier value;
+
+		Gauge(DoubleSupplier value) {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Fixed-bucket histogram. Each bucket is a separate adder (non-cumulative); cumulative counts are
+	 * summed at scrape time, so recording touches exactly one bucket.
+	 */
+	public static final class Histogram {
+		private final double[] bounds;
+		private final LongAdder[] buckets;
+		private final LongAdder count = new LongAdder();
+		private final DoubleAdder sum = new DoubleAdder();
+
+		Histogram(double[] bounds) {
+			this.bounds = bounds.clone();
+			this.buckets = new LongAdder[bounds.length + 1];
+			for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+		}
+
+		public void observe(double value) {
+			int lo = 0, hi = bounds.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (bounds[mid] < value) lo = mid + 1; else hi = mid;
+			}
+			buckets[lo].increment();
+			count.increment();
+			sum.add(value);
+		}
+
+		public void observeNanos(long nanos) {
+			observe(nanos / (double) TimeUnit.SECONDS.toNanos(1));
+		}
+
+		/** Records the time since {@code startNanos}, a {@link System#nanoTime()} reading. */
+		public void observeSince(long startNanos) {
+			observeNanos(System.nanoTime() - startNanos);
+		}
+
+		void render(StringBuilder sb, String name, String labels) {
+			long cumulative = 0;
+			for (int i = 0; i < bounds.length; i++) {
+				cumulative += buckets[i].sum();
+				sample(sb, name + "_bucket", labels, "le=\"" + formatBound(bounds[i]) + "\"", cumulative);
+			}
+			cumulative += buckets[bounds.length].sum();
+			sample(sb, name + "_bucket", labels, "le=\"+Inf\"", cumulative);
+			sample(sb, name + "_sum", labels, null, sum.sum());
+			sample(sb, name + "_count", labels, null, count.sum());
+		}
+
+		private static String formatBound(double b) {
+			return b == Math.rint(b) ? Long.toString((long) b) : Double.toString(b);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.example.server;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit for {@code /register}. Upserts from concurrent requests are queued and written by one
+ * flusher thread as multi-row statements, flushed when {@code maxBatch} rows are waiting or
+ * {@code lingerMs} after the first one arrived. A single writer also keeps concurrent multi-row upserts
+ * from deadlocking on the token index. Each caller's future completes once its own row is committed.
+ */
+public class RegistrationBuffer {
+	private static final Log LOG = Log.get(RegistrationBuffer.class);
+
+	private static final class Pending {
+		final String token;
+		final String label;
+		final String project;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		Pending(String token, String label, String project) {
+			this.token = token;
+			this.label = label;
+			this.project = project;
+		}
+	}
+
+	private final DatabaseHelper db;
+	private final int maxBatch;
+	private final long lingerNanos;
+	private final BlockingQueue<Pending> queue;
+	private final Thread flusher;
+	private volatile boolean running = true;
+
+	public RegistrationBuffer(DatabaseHelper db, int maxBatch, long lingerMs, int queueCapacity) {
+		this.db = db;
+		this.maxBatch = Math.max(1, maxBatch);
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+		this.queue = new ArrayBlockingQueue<>(queueCapacity);
+		this.flusher = new Thread(this::runFlusher, "db-register-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * @throws RejectedExecutionException if the buffer is full
+	 */
+	public CompletableFuture<Void> submit(String token, String label, String project) {
+		Pending p = new Pending(token, label, project);
+		if (!running || !queue.offer(p)) {
+			throw new RejectedExecutionException("registration buffer full");
+		}
+		return p.done;
+	}
+
+	public void shutdown() {
+		running = false;
+		flusher.interrupt();
+	}
+
+	private void runFlusher() {
+		List<Pending> batch = new ArrayList<>(maxBatch);
+		while (running) {
+			try {
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + lingerNanos;
+				while (batch.size() < maxBatch) {
+					if (queue.drainTo(batch, maxBatch - batch.size()) > 0) continue;
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) break;
+					Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next == null) break;
+					batch.add(next);
+				}
+				flush(batch);
+			} catch (RuntimeException e) {
+				for (Pending p : batch) p.done.completeExceptionally(e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				for (Pending p : batch) p.done.completeExceptionally(new SQLException("registration buffer shut down"));
+				break;
+			} finally {
+				batch.clear();
+			}
+		}
+		// Fail anything left so no caller waits for a flusher that has gone away
+		List<Pending> rest = new ArrayList<>();
+		queue.drainTo(rest);
+		for (Pending p : rest) p.done.completeExceptionally(new SQLException("registration buffer shut down"));
+	}
+
+	private void flush(List<Pending> batch) {
+		// Last write wins within a batch, the same as applying the upserts one by one
+		Map<String, DeviceDto> rows = new LinkedHashMap<>();
+		for (Pending p : batch) rows.put(p.token, new DeviceDto(0, p.token, p.label, p.project));
+		try {
+			db.upsertDeviceTokens(rows.values());
+			for (Pending p : batch) p.done.complete(null);
+		} catch (SQLException e) {
+			// One bad row fails the whole statement; retry individually so only that caller sees the error
+			LOG.warn("batched registration failed, retrying singly", "rows", rows.size(), "error", e.getMessage());
+			for (Pending p : batch) {
+				try {
+					db.upsertDeviceToken(p.token, p.label, p.project);
+					p.done.complete(null);
+				} catch (SQLException single) {
+					p.done.completeExceptionally(single);
+				}
+			}
+		}
+	}
+}
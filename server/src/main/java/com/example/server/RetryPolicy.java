@@ -0,0 +1,117 @@
+package com.example.server;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether a failed FCM request is retried and how long to wait. Transient answers (429 and 5xx)
+ * and I/O errors are retried with jittered exponential backoff, or after {@code Retry-After} when FCM
+ * sends one. Each broadcast gets a {@link Budget} so a struggling backend cannot multiply the load.
+ */
+public class RetryPolicy {
+	private final int maxAttempts;
+	private final long baseDelayMs;
+	private final long maxDelayMs;
+	private final int budgetMin;
+	private final int budgetPercent;
+
+	public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs, int budgetMin, int budgetPercent) {
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.baseDelayMs = baseDelayMs;
+		this.maxDelayMs = maxDelayMs;
+		this.budgetMin = budgetMin;
+		this.budgetPercent = budgetPercent;
+	}
+
+	public static RetryPolicy fromConfig() {
+		return new RetryPolicy(
+				ConfigLoader.getInt("fcm.retry.maxAttempts", 4),
+				ConfigLoader.getInt("fcm.retry.baseDelayMs", 500),
+				ConfigLoader.getInt("fcm.retry.maxDelayMs", 60000),
+				ConfigLoader.getInt("fcm.retry.budgetMin", 100),
+				ConfigLoader.getInt("fcm.retry.budgetPercent", 20));
+	}
+
+	public static RetryPolicy none() {
+		return new RetryPolicy(1, 0, 0, 0, 0);
+	}
+
+	public Budget newBudget() {
+		return new Budget();
+	}
+
+	public static boolean isRetryable(int statusCode) {
+		return statusCode == 429 || statusCode == 500 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+	}
+
+	public static boolean isRetryable(Throwable error) {
+		// Covers connect failures, resets and HttpTimeoutException
+		return error instanceof IOException;
+	}
+
+	/**
+	 * @param attempt the attempt that just failed, starting at 1
+	 * @return the delay before the next attempt, or -1 if the request should not be retried
+	 */
+	public long delayBeforeRetry(int attempt, HttpResponse<?> response) {
+		if (attempt >= maxAttempts) return -1;
+		long delay = backoffMs(attempt);
+		if (response != null) {
+			long retryAfter = parseRetryAfter(response.headers().firstValue("Retry-After"));
+			if (retryAfter > maxDelayMs) return -1;
+			if (retryAfter >= 0) delay = Math.max(delay, retryAfter);
+		}
+		return delay;
+	}
+
+	long backoffMs(int attempt) {
+		long cap = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt - 1, 20));
+		// "Equal jitter": keep half the backoff and randomise the rest so retries do not synchronise
+		long half = cap / 2;
+		return half + ThreadLocalRandom.current().nextLong(cap - half + 1);
+	}
+
+	static long parseRetryAfter(Optional<String> header) {
+		if (header.isEmpty()) return -1;
+		String value = header.get().trim();
+		try {
+			return Duration.ofSeconds(Long.parseLong(value)).toMillis();
+		} catch (NumberFormatException ignored) {
+			// Otherwise an HTTP-date
+		}
+		try {
+			ZonedDateTime at = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+			return Math.max(0, at.toInstant().toEpochMilli() - System.currentTimeMillis());
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Per-broadcast retry allowance: {@code budgetMin} retries plus {@code budgetPercent}% of the tokens
+	 * dispatched so far. It grows with the broadcast, so streaming sources need no up-front count.
+	 */
+	public final class Budget {
+		private final AtomicInteger used = new AtomicInteger();
+
+		public boolean tryAcquire(int dispatched) {
+			long allowed = budgetMin + (long) dispatched * budgetPercent / 100;
+			while (true) {
+				int current = used.get();
+				if (current >= allowed) return false;
+				if (used.compareAndSet(current, current + 1)) return true;
+			}
+		}
+
+		public int used() {
+			return used.get();
+		}
+	}
+}
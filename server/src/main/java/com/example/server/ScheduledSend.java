@@ -0,0 +1,54 @@
+package com.example.server;
+
+/**
+ * A row of {@code scheduled_send}: a {@code /send} ({@code deviceIds} null) or {@code /send-selected}
+ * broadcast due at {@code sendAt}, released over {@code spreadMs}. A started send records the last device id
+ * it dispatched, in id order, so it can be resumed after that device.
+ */
+public class ScheduledSend {
+	public enum Status { PENDING, STARTED, COMPLETED, FAILED, CANCELLED }
+
+	public final long id;
+	public final String type;
+	public final String project;
+	public final String title;
+	public final String body;
+	public final int[] deviceIds;
+	public final long sendAt;
+	public final long spreadMs;
+	public final Status status;
+	public final String jobId;
+	/** When the send first started; 0 until then. */
+	public final long startedAt;
+	public final int lastDeviceId;
+
+	public ScheduledSend(long id, String type, String project, String title, String body, int[] deviceIds, long sendAt, long spreadMs,
+			Status status, String jobId, long startedAt, int lastDeviceId) {
+		this.id = id;
+		this.type = type;
+		this.project = project;
+		this.title = title;
+		this.body = body;
+		this.deviceIds = deviceIds;
+		this.sendAt = sendAt;
+		this.spreadMs = spreadMs;
+		this.status = status;
+		this.jobId = jobId;
+		this.startedAt = startedAt;
+		this.lastDeviceId = lastDeviceId;
+	}
+
+	public String toJson() {
+		StringBuilder sb = new StringBuilder(160);
+		sb.append("{\"scheduleId\":").append(id)
+				.append(",\"type\":\"").append(type).append('"')
+				.append(",\"project\":\"").append(project).append('"')
+				.append(",\"sendAt\":").append(sendAt)
+				.append(",\"spreadSec\":").append(spreadMs / 1000)
+				.append(",\"status\":\"").append(status).append('"')
+				.append(",\"statusUrl\":\"/scheduled/").append(id).append('"');
+		if (startedAt > 0) sb.append(",\"startedAt\":").append(startedAt).append(",\"lastDeviceId\":").append(lastDeviceId);
+		if (jobId != null) sb.append(",\"jobId\":\"").append(jobId).append("\",\"jobUrl\":\"/jobs/").append(jobId).append('"');
+		return sb.append('}').toString();
+	}
+}
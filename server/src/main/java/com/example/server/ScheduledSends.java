@@ -0,0 +1,253 @@
+package com.example.server;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Sends requested for later. Each one is stored in {@code scheduled_send} and armed on a
+ * {@link TimerWheel}; when it fires, the row is claimed and the broadcast queued as a normal send job.
+ * Pending rows are re-armed at startup and by a periodic rescan, which also picks up rows scheduled
+ * through other servers, so scheduled sends survive a restart.
+ * <p>
+ * A started send dispatches its devices in id order and renews a heartbeat on its row every third of
+ * {@code leaseMs}, recording the last device id it dispatched. If its server dies, the rescan moves the row
+ * back to PENDING once the heartbeat is older than {@code leaseMs}, and it is fired again, here or on another
+ * server, resuming after that device over what is left of its spread window. Devices dispatched after the
+ * last heartbeat are sent twice; requests still in flight when the server died are not sent again.
+ */
+public class ScheduledSends {
+	private static final Log LOG = Log.get(ScheduledSends.class);
+	private static final Metrics.Counter FIRED = Metrics.counter("scheduled_sends_fired_total",
+			"Scheduled sends that came due and were queued as send jobs");
+	private static final Metrics.Counter RESUMED = Metrics.counter("scheduled_sends_resumed_total",
+			"Scheduled sends fired again to finish a send whose server stopped");
+	private static final long REQUEUE_DELAY_MS = 1000;
+
+	/** How far a running scheduled send has got. */
+	public static final class Checkpoint {
+		public final ScheduledSend send;
+		private volatile int lastDeviceId;
+		/** Set once the row has passed to another server, or this one is stopping. */
+		private volatile boolean stopped;
+
+		Checkpoint(ScheduledSend send) {
+			this.send = send;
+			this.lastDeviceId = send.lastDeviceId;
+		}
+
+		/** The device id to resume after; 0 for a send that has not run before. */
+		public int resumeAfter() {
+			return send.lastDeviceId;
+		}
+
+		/**
+		 * The tokens of {@code items}, which must be in device id order, recording the id of each one taken and
+		 * ending early once the send is stopped.
+		 */
+		public <T> Iterator<String> track(Iterator<T> items, ToIntFunction<T> id, Function<T, String> token) {
+			return new Iterator<String>() {
+				@Override
+				public boolean hasNext() {
+					return !stopped && items.hasNext();
+				}
+
+				@Override
+				public String next() {
+					T item = items.next();
+					lastDeviceId = id.applyAsInt(item);
+					return token.apply(item);
+				}
+			};
+		}
+	}
+
+	private final DatabaseHelper db;
+	private final SendJobManager jobs;
+	private final long leaseMs;
+	private final Function<Checkpoint, SendJobManager.Task> tasks;
+	/** Unique per process, so a restarted server never takes its predecessor's rows for its own. */
+	private final String owner = ManagementFactory.getRuntimeMXBean().getName() + "-" + Long.toString(System.currentTimeMillis(), 36);
+	private final Map<Long, Checkpoint> running = new ConcurrentHashMap<>();
+	private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "scheduled-send-dispatch");
+		t.setDaemon(true);
+		return t;
+	});
+	private final TimerWheel wheel;
+	private final Map<Long, TimerWheel.Timeout> armed = new ConcurrentHashMap<>();
+	private volatile long rescanMs;
+
+	/**
+	 * @param leaseMs how long a started send's heartbeat may be silent before another server resumes it
+	 * @param tasks   builds the send for a row when it fires; it must report its devices through
+	 *                {@link Checkpoint#track} and start after {@link Checkpoint#resumeAfter}
+	 */
+	public ScheduledSends(DatabaseHelper db, SendJobManager jobs, long tickMs, int wheelSize, long leaseMs,
+			Function<Checkpoint, SendJobManager.Task> tasks) {
+		this.db = db;
+		this.jobs = jobs;
+		this.leaseMs = Math.max(3000, leaseMs);
+		this.tasks = tasks;
+		// The wheel only hands due sends to the dispatcher, so its DB round trips never hold up a tick
+		this.wheel = new TimerWheel("scheduled-send-wheel", tickMs, wheelSize, dispatcher);
+		Metrics.gauge("scheduled_sends_armed", "Scheduled sends waiting on the timer wheel", armed::size);
+		Metrics.gauge("scheduled_sends_running", "Scheduled sends this server is sending", running::size);
+	}
+
+	/**
+	 * Arms every pending row (and every started one whose server stopped), then rescans for rows from other
+	 * servers every {@code rescanMs}.
+	 */
+	public void start(long rescanMs) {
+		this.rescanMs = rescanMs;
+		try {
+			releaseStale();
+			for (ScheduledSend s : db.getScheduledSends(0, 0)) arm(s);
+			LOG.info("scheduled sends armed", "count", armed.size());
+		} catch (SQLException e) {
+			// Each rescan arms whatever is due soon, so nothing is lost while the database is away
+			LOG.warn("could not load scheduled sends", "error", e.getMessage());
+		}
+		wheel.schedule(this::rescan, System.currentTimeMillis() + rescanMs);
+		wheel.schedule(this::heartbeat, System.currentTimeMillis() + leaseMs / 3);
+	}
+
+	/** Stops the running sends and hands their rows back as PENDING, so they resume without waiting out the lease. */
+	public void shutdown() {
+		wheel.shutdown();
+		dispatcher.shutdownNow();
+		for (Checkpoint cp : running.values()) {
+			cp.stopped = true;
+			try {
+				db.checkpointScheduledSend(cp.send.id, owner, cp.lastDeviceId, ScheduledSend.Status.PENDING, null);
+			} catch (SQLException e) {
+				LOG.warn("scheduled send not handed back", "scheduleId", cp.send.id, "error", e.getMessage());
+			}
+		}
+	}
+
+	public ScheduledSend schedule(String type, String project, String title, String body, int[] deviceIds, long sendAt,
+			long spreadMs) throws SQLException {
+		long id = db.insertScheduledSend(type, project, title, body, deviceIds, sendAt, spreadMs);
+		ScheduledSend s = new ScheduledSend(id, type, project, title, body, deviceIds, sendAt, spreadMs,
+				ScheduledSend.Status.PENDING, null, 0, 0);
+		arm(s);
+		return s;
+	}
+
+	public ScheduledSend get(long id) throws SQLException {
+		List<ScheduledSend> rows = db.getScheduledSends(id, 0);
+		return rows.isEmpty() ? null : rows.get(0);
+	}
+
+	/** @return false if the send has already started (or was cancelled) */
+	public boolean cancel(long id) throws SQLException {
+		if (!db.updateScheduledSend(id, ScheduledSend.Status.PENDING, ScheduledSend.Status.CANCELLED, null)) return false;
+		TimerWheel.Timeout timeout = armed.remove(id);
+		if (timeout != null) timeout.cancel();
+		return true;
+	}
+
+	private void arm(ScheduledSend s) {
+		armed.computeIfAbsent(s.id, id -> wheel.schedule(() -> fire(s), s.sendAt));
+	}
+
+	private void fire(ScheduledSend s) {
+		armed.remove(s.id);
+		try {
+			// Cancelled, or already started by another server
+			if (!db.claimScheduledSend(s.id, owner)) return;
+		} catch (SQLException e) {
+			// The row is still PENDING, so the next rescan picks it up again
+			LOG.warn("scheduled send could not be claimed", "scheduleId", s.id, "error", e.getMessage());
+			return;
+		}
+		Checkpoint cp = new Checkpoint(s);
+		running.put(s.id, cp);
+		try {
+			SendJob job;
+			try {
+				// A spread send waits out its window on a worker of its own, not one that immediate sends need
+				job = s.spreadMs > 0 ? jobs.submitPaced(s.project, s.type, tasks.apply(cp), finished -> finish(cp, finished))
+						: jobs.submit(s.project, s.type, tasks.apply(cp), finished -> finish(cp, finished));
+			} catch (RejectedExecutionException e) {
+				running.remove(s.id);
+				db.checkpointScheduledSend(s.id, owner, s.lastDeviceId, ScheduledSend.Status.PENDING, null);
+				LOG.warn("send queue full, retrying scheduled send", "scheduleId", s.id);
+				armed.computeIfAbsent(s.id, id -> wheel.schedule(() -> fire(s), System.currentTimeMillis() + REQUEUE_DELAY_MS));
+				return;
+			}
+			db.checkpointScheduledSend(s.id, owner, s.lastDeviceId, ScheduledSend.Status.STARTED, job.getId());
+			FIRED.inc();
+			if (s.startedAt > 0) RESUMED.inc();
+			LOG.info(s.startedAt > 0 ? "scheduled send resumed" : "scheduled send started", "scheduleId", s.id, "jobId", job.getId(),
+					"lateMs", System.currentTimeMillis() - s.sendAt, "spreadMs", s.spreadMs, "afterDeviceId", s.lastDeviceId);
+		} catch (SQLException e) {
+			// A queued job runs regardless and its heartbeats keep the row; a rejected one is released once stale
+			LOG.warn("scheduled send start not recorded", "scheduleId", s.id, "error", e.getMessage());
+		}
+	}
+
+	private void finish(Checkpoint cp, SendJob job) {
+		running.remove(cp.send.id, cp);
+		if (cp.stopped) return;
+		ScheduledSend.Status status = job.getState() == SendJob.State.COMPLETED
+				? ScheduledSend.Status.COMPLETED : ScheduledSend.Status.FAILED;
+		try {
+			if (db.checkpointScheduledSend(cp.send.id, owner, cp.lastDeviceId, status, null)) {
+				LOG.info("scheduled send finished", "scheduleId", cp.send.id, "status", status, "lastDeviceId", cp.lastDeviceId);
+			} else {
+				LOG.warn("scheduled send finished after another server took it over", "scheduleId", cp.send.id);
+			}
+		} catch (SQLException e) {
+			// Still STARTED, so once its heartbeat is stale it is fired again and finds nothing left to send
+			LOG.warn("scheduled send outcome not recorded", "scheduleId", cp.send.id, "error", e.getMessage());
+		}
+	}
+
+	private void heartbeat() {
+		try {
+			for (Checkpoint cp : running.values()) {
+				try {
+					if (!db.checkpointScheduledSend(cp.send.id, owner, cp.lastDeviceId, ScheduledSend.Status.STARTED, null)) {
+						// Our heartbeats were late and the row was released; stop before both servers send it
+						cp.stopped = true;
+						running.remove(cp.send.id, cp);
+						LOG.warn("scheduled send taken over by another server", "scheduleId", cp.send.id);
+					}
+				} catch (SQLException e) {
+					// The next heartbeat may still make it before the lease runs out
+					LOG.warn("scheduled send heartbeat failed", "scheduleId", cp.send.id, "error", e.getMessage());
+				}
+			}
+		} finally {
+			wheel.schedule(this::heartbeat, System.currentTimeMillis() + leaseMs / 3);
+		}
+	}
+
+	private void releaseStale() throws SQLException {
+		int released = db.releaseStaleScheduledSends(leaseMs);
+		if (released > 0) LOG.warn("scheduled sends of stopped servers released", "count", released);
+	}
+
+	private void rescan() {
+		try {
+			releaseStale();
+			// Look a little past the next rescan, so a row from another server is armed before it is due
+			for (ScheduledSend s : db.getScheduledSends(0, System.currentTimeMillis() + 2 * rescanMs)) arm(s);
+		} catch (SQLException e) {
+			LOG.warn("scheduled send rescan failed", "error", e.getMessage());
+		} finally {
+			wheel.schedule(this::rescan, System.currentTimeMillis() + rescanMs);
+		}
+	}
+}
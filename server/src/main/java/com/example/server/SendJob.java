@@ -0,0 +1,144 @@
+package com.example.server;
+
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A queued broadcast. Counters are updated live by {@link FCMSender} so {@code GET /jobs/{id}} can report
+ * progress while the job is still running.
+ */
+public class SendJob implements SendProgress {
+	public enum State { QUEUED, RUNNING, COMPLETED, FAILED }
+
+	private final String id = UUID.randomUUID().toString();
+	private final String type;
+	private final long createdAt = System.currentTimeMillis();
+	private final AtomicInteger successCount = new AtomicInteger();
+	private final AtomicInteger failureCount = new AtomicInteger();
+	private final AtomicInteger retryCount = new AtomicInteger();
+	private final AtomicInteger prunedCount = new AtomicInteger();
+	private volatile State state = State.QUEUED;
+	private volatile long startedAt;
+	private volatile long finishedAt;
+	private volatile SendResult result;
+	private volatile String error;
+
+	public SendJob(String type) {
+		this.type = type;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public int getSuccessCount() {
+		return successCount.get();
+	}
+
+	public int getFailureCount() {
+		return failureCount.get();
+	}
+
+	public int getRetryCount() {
+		return retryCount.get();
+	}
+
+	public int getPrunedCount() {
+		return prunedCount.get();
+	}
+
+	public long getElapsedMs() {
+		long end = finishedAt != 0 ? finishedAt : System.currentTimeMillis();
+		return startedAt == 0 ? 0 : end - startedAt;
+	}
+
+	public boolean isFinished() {
+		return state == State.COMPLETED || state == State.FAILED;
+	}
+
+	@Override
+	public void onSuccess() {
+		successCount.incrementAndGet();
+	}
+
+	@Override
+	public void onFailure() {
+		failureCount.incrementAndGet();
+	}
+
+	@Override
+	public void onRetry() {
+		retryCount.incrementAndGet();
+	}
+
+	@Override
+	public void onPruned(int count) {
+		prunedCount.addAndGet(count);
+	}
+
+	/** Replaces the counters, for a job whose sends are counted elsewhere (a sharded broadcast). */
+	void setProgress(int success, int failed, int retries, int pruned) {
+		successCount.set(success);
+		failureCount.set(failed);
+		retryCount.set(retries);
+		prunedCount.set(pruned);
+	}
+
+	void markRunning() {
+		startedAt = System.currentTimeMillis();
+		state = State.RUNNING;
+	}
+
+	void complete(SendResult result) {
+		this.result = result;
+		finishedAt = System.currentTimeMillis();
+		state = State.COMPLETED;
+	}
+
+	void fail(String error) {
+		this.error = error;
+		finishedAt = System.currentTimeMillis();
+		state = State.FAILED;
+	}
+
+	public String toJson() {
+		return toJson(-1);
+	}
+
+	/**
+	 * @param ratePerSec recent send rate to include as {@code ratePerSec}, or negative to leave it out
+	 */
+	public String toJson(double ratePerSec) {
+		int success = successCount.get();
+		int failed = failureCount.get();
+		long elapsedMs = getElapsedMs();
+		double throughput = elapsedMs == 0 ? 0 : (success + failed) * 1000.0 / elapsedMs;
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("{\"jobId\":\"").append(id).append('"')
+				.append(",\"type\":\"").append(type).append('"')
+				.append(",\"status\":\"").append(state).append('"')
+				.append(",\"createdAt\":").append(createdAt)
+				.append(",\"startedAt\":").append(startedAt)
+				.append(",\"finishedAt\":").append(finishedAt)
+				.append(",\"success\":").append(success)
+				.append(",\"failed\":").append(failed)
+				.append(",\"processed\":").append(success + failed)
+				.append(",\"retries\":").append(retryCount.get())
+				.append(",\"pruned\":").append(prunedCount.get())
+				.append(",\"elapsedMs\":").append(elapsedMs)
+				.append(",\"throughputPerSec\":").append(String.format(Locale.ROOT, "%.1f", throughput));
+		if (ratePerSec >= 0) sb.append(",\"ratePerSec\":").append(String.format(Locale.ROOT, "%.1f", ratePerSec));
+		if (result != null) sb.append(",\"result\":").append(result.toJson());
+		if (error != null) sb.append(",\"error\":\"").append(Json.escape(error)).append('"');
+		return sb.append('}').toString();
+	}
+}
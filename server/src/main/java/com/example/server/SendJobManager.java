@@ -0,0 +1,169 @@
+package com.example.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs broadcasts on bounded worker pools so send requests can return a job id immediately. Each Firebase
+ * project gets its own pool and queue, so a project's long broadcasts (or its {@code fcm.maxPerSecond} limit)
+ * never keep another project's jobs waiting. Paced sends, which spend a spread window of up to a day mostly
+ * waiting for their next release time, run on a second pool per project so they never hold the workers of
+ * immediate sends. Finished jobs are kept for status queries until {@code maxRetained} is exceeded, oldest
+ * first.
+ */
+public class SendJobManager {
+	private static final Log LOG = Log.get(SendJobManager.class);
+	private static final double[] DURATION_BUCKETS = {0.1, 0.5, 1, 5, 10, 30, 60, 300, 900, 3600};
+	private static final double[] THROUGHPUT_BUCKETS = {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000};
+	private static final Metrics.Counter MESSAGES_SUCCESS = Metrics.counter("send_job_messages_total",
+			"Messages processed by send jobs", "result", "success");
+	private static final Metrics.Counter MESSAGES_FAILED = Metrics.counter("send_job_messages_total",
+			"Messages processed by send jobs", "result", "failure");
+
+	public interface Task {
+		SendResult run(SendJob job) throws Exception;
+	}
+
+	private final Map<String, ThreadPoolExecutor> pools = new ConcurrentHashMap<>();
+	private final Map<String, ThreadPoolExecutor> pacedPools = new ConcurrentHashMap<>();
+	private final Map<String, SendJob> jobs = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedQueue<SendJob> order = new ConcurrentLinkedQueue<>();
+	private final int workerCount;
+	private final int pacedWorkerCount;
+	private final int queueCapacity;
+	private final int maxRetained;
+
+	public SendJobManager(int workerCount, int queueCapacity, int maxRetained) {
+		this(workerCount, workerCount, queueCapacity, maxRetained);
+	}
+
+	/**
+	 * @param workerCount      jobs running at once for each project
+	 * @param pacedWorkerCount paced jobs running at once for each project, on top of {@code workerCount}
+	 * @param queueCapacity    jobs waiting for a worker, per project and pool
+	 */
+	public SendJobManager(int workerCount, int pacedWorkerCount, int queueCapacity, int maxRetained) {
+		this.workerCount = workerCount;
+		this.pacedWorkerCount = pacedWorkerCount;
+		this.queueCapacity = queueCapacity;
+		this.maxRetained = maxRetained;
+	}
+
+	/**
+	 * @throws RejectedExecutionException if the project's job queue is full
+	 */
+	public SendJob submit(String project, String type, Task task) {
+		return submit(project, type, task, null);
+	}
+
+	/**
+	 * @param onFinish called on the worker once the job has completed or failed; may be null
+	 * @throws RejectedExecutionException if the project's job queue is full
+	 */
+	public SendJob submit(String project, String type, Task task, Consumer<SendJob> onFinish) {
+		return submit(pools.computeIfAbsent(project, p -> newPool(p, false)), type, task, onFinish);
+	}
+
+	/**
+	 * As {@link #submit(String, String, Task, Consumer)}, on the project's pool for sends paced over a window.
+	 *
+	 * @throws RejectedExecutionException if the project's paced job queue is full
+	 */
+	public SendJob submitPaced(String project, String type, Task task, Consumer<SendJob> onFinish) {
+		return submit(pacedPools.computeIfAbsent(project, p -> newPool(p, true)), type, task, onFinish);
+	}
+
+	private SendJob submit(ThreadPoolExecutor workers, String type, Task task, Consumer<SendJob> onFinish) {
+		SendJob job = new SendJob(type);
+		jobs.put(job.getId(), job);
+		try {
+			workers.execute(() -> {
+				run(job, task);
+				if (onFinish != null) onFinish.accept(job);
+			});
+		} catch (RejectedExecutionException e) {
+			jobs.remove(job.getId());
+			throw e;
+		}
+		order.add(job);
+		evictFinished();
+		return job;
+	}
+
+	public SendJob get(String id) {
+		return id == null ? null : jobs.get(id);
+	}
+
+	public void shutdown() {
+		for (ThreadPoolExecutor workers : pools.values()) workers.shutdownNow();
+		for (ThreadPoolExecutor workers : pacedPools.values()) workers.shutdownNow();
+	}
+
+	private ThreadPoolExecutor newPool(String project, boolean paced) {
+		AtomicInteger seq = new AtomicInteger();
+		int size = paced ? pacedWorkerCount : workerCount;
+		String name = (paced ? "paced-send-job-" : "send-job-") + project + "-";
+		ThreadPoolExecutor workers = new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), r -> {
+					Thread t = new Thread(r, name + seq.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		String pool = paced ? "paced" : "send";
+		Metrics.gauge("send_jobs_queued", "Send jobs waiting for a worker", () -> workers.getQueue().size(), "project", project, "pool", pool);
+		Metrics.gauge("send_jobs_running", "Send jobs currently running", workers::getActiveCount, "project", project, "pool", pool);
+		return workers;
+	}
+
+	private void run(SendJob job, Task task) {
+		job.markRunning();
+		try {
+			job.complete(task.run(job));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			job.fail("interrupted");
+		} catch (Exception e) {
+			LOG.error("send job failed", e, "jobId", job.getId());
+			job.fail(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+		}
+		recordMetrics(job);
+		LOG.info("send job finished", "jobId", job.getId(), "type", job.getType(), "status", job.getState(),
+				"success", job.getSuccessCount(), "failed", job.getFailureCount(), "retries", job.getRetryCount(),
+				"pruned", job.getPrunedCount(), "elapsedMs", job.getElapsedMs());
+	}
+
+	private static void recordMetrics(SendJob job) {
+		Metrics.counter("send_jobs_total", "Finished send jobs by type and outcome",
+				"type", job.getType(), "status", job.getState().name()).inc();
+		long elapsedMs = job.getElapsedMs();
+		Metrics.histogram("send_job_duration_seconds", "Send job run time", DURATION_BUCKETS, "type", job.getType())
+				.observe(elapsedMs / 1000.0);
+		int processed = job.getSuccessCount() + job.getFailureCount();
+		MESSAGES_SUCCESS.add(job.getSuccessCount());
+		MESSAGES_FAILED.add(job.getFailureCount());
+		if (processed > 0 && elapsedMs > 0) {
+			Metrics.histogram("send_job_throughput_per_second", "Messages per second achieved by each send job",
+					THROUGHPUT_BUCKETS, "type", job.getType()).observe(processed * 1000.0 / elapsedMs);
+		}
+	}
+
+	private void evictFinished() {
+		if (jobs.size() <= maxRetained) return;
+		Iterator<SendJob> it = order.iterator();
+		while (jobs.size() > maxRetained && it.hasNext()) {
+			SendJob oldest = it.next();
+			if (oldest.isFinished()) {
+				it.remove();
+				jobs.remove(oldest.getId());
+			}
+		}
+	}
+}
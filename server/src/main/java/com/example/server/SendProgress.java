@@ -0,0 +1,31 @@
+package com.example.server;
+
+/**
+ * Receives per-token outcomes while {@link FCMSender} works through a broadcast. Implementations are
+ * called from HTTP client threads and must be thread-safe.
+ */
+public interface SendProgress {
+	SendProgress NONE = new SendProgress() {
+		@Override
+		public void onSuccess() {}
+
+		@Override
+		public void onFailure() {}
+
+		@Override
+		public void onRetry() {}
+
+		@Override
+		public void onPruned(int count) {}
+	};
+
+	void onSuccess();
+
+	void onFailure();
+
+	/** A transient failure was scheduled for another attempt; the token's final outcome comes later. */
+	void onRetry();
+
+	/** Dead tokens were deleted from the device table. */
+	void onPruned(int count);
+}
@@ -0,0 +1,211 @@
+package com.example.server;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Outcome of one send, recorded concurrently from the HTTP callbacks in constant memory whatever the
+ * audience size: counts per HTTP status and per FCM error code, per-token latency in log-scale buckets
+ * (percentiles within about 9%), and a uniform reservoir sample of the failures.
+ */
+public class SendResult {
+	/** Eight buckets per doubling of the latency in microseconds, up to about 2^32 us (over an hour). */
+	private static final int BUCKETS_PER_DOUBLING = 8;
+	private static final int LATENCY_BUCKETS = 32 * BUCKETS_PER_DOUBLING;
+	/** FCM has about ten error codes; anything past this many distinct ones is counted as OTHER. */
+	private static final int MAX_ERROR_CODES = 32;
+	private static final int MAX_MESSAGE_LENGTH = 200;
+
+	private static final class Failure {
+		final int index;
+		final String token;
+		final int status;
+		final String errorCode;
+		final String message;
+
+		Failure(int index, String token, int status, String errorCode, String message) {
+			this.index = index;
+			this.token = token;
+			this.status = status;
+			this.errorCode = errorCode;
+			this.message = message;
+		}
+	}
+
+	private final String topic;
+	private final AtomicInteger success = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	/** Final HTTP status per token; index 0 counts I/O errors. */
+	private final AtomicIntegerArray statuses = new AtomicIntegerArray(600);
+	private final Map<String, AtomicInteger> errorCodes = new ConcurrentHashMap<>();
+	private final AtomicLongArray latency = new AtomicLongArray(LATENCY_BUCKETS);
+	private final AtomicLong maxLatencyMicros = new AtomicLong();
+	private final Failure[] samples;
+	private long failuresSeen;
+	private volatile int sent;
+	private volatile int retries;
+	private volatile int pruned;
+	private volatile long elapsedMs;
+
+	/**
+	 * @param topic          FCM topic the message went to, or null for a per-token send
+	 * @param failureSamples how many failures to keep as examples
+	 */
+	public SendResult(String topic, int failureSamples) {
+		this.topic = topic;
+		this.samples = new Failure[Math.max(0, failureSamples)];
+	}
+
+	public int getSuccessCount() {
+		return success.get();
+	}
+
+	public int getFailureCount() {
+		return failed.get();
+	}
+
+	public int getRetryCount() {
+		return retries;
+	}
+
+	public int getPrunedCount() {
+		return pruned;
+	}
+
+	/**
+	 * Adds outcomes known only as totals, such as those of a sharded broadcast sent by several servers;
+	 * they have no status, error code or latency breakdown.
+	 */
+	void addTotals(int success, int failed) {
+		this.success.addAndGet(success);
+		this.failed.addAndGet(failed);
+	}
+
+	public void recordSuccess(long latencyNanos) {
+		success.incrementAndGet();
+		statuses.incrementAndGet(200);
+		recordLatency(latencyNanos);
+	}
+
+	/**
+	 * @param status HTTP status, or 0 for an I/O error
+	 * @param error  parsed FCM error body; null if there was none
+	 */
+	public void recordFailure(int index, String token, int status, FcmError error, String detail, long latencyNanos) {
+		failed.incrementAndGet();
+		statuses.incrementAndGet(status > 0 && status < statuses.length() ? status : 0);
+		String code = error != null && error.code != null ? error.code : null;
+		if (code != null) {
+			AtomicInteger count = errorCodes.get(code);
+			if (count == null) {
+				if (errorCodes.size() >= MAX_ERROR_CODES) code = "OTHER";
+				count = errorCodes.computeIfAbsent(code, c -> new AtomicInteger());
+			}
+			count.incrementAndGet();
+		}
+		recordLatency(latencyNanos);
+		if (samples.length == 0) return;
+		String message = error != null && error.message != null ? error.message : detail;
+		if (message != null && message.length() > MAX_MESSAGE_LENGTH) message = message.substring(0, MAX_MESSAGE_LENGTH);
+		// Algorithm R: the n-th failure replaces a random slot with probability samples/n
+		synchronized (samples) {
+			long seen = ++failuresSeen;
+			int slot = seen <= samples.length ? (int) seen - 1 : (int) ThreadLocalRandom.current().nextLong(seen);
+			if (slot < samples.length) samples[slot] = new Failure(index, Log.redact(token), status, code, message);
+		}
+	}
+
+	void finish(int sent, int retries, int pruned, long elapsedMs) {
+		this.sent = sent;
+		this.retries = retries;
+		this.pruned = pruned;
+		this.elapsedMs = elapsedMs;
+	}
+
+	private void recordLatency(long nanos) {
+		long micros = Math.max(1, nanos / 1000);
+		int bucket = (int) Math.min(LATENCY_BUCKETS - 1, Math.floor(Math.log(micros) / Math.log(2) * BUCKETS_PER_DOUBLING));
+		latency.incrementAndGet(bucket);
+		maxLatencyMicros.accumulateAndGet(micros, Math::max);
+	}
+
+	/** Upper bound of the bucket holding the {@code q} quantile, in milliseconds. */
+	private double percentileMs(double q, long total) {
+		long rank = (long) Math.ceil(q * total);
+		long seen = 0;
+		for (int i = 0; i < LATENCY_BUCKETS; i++) {
+			seen += latency.get(i);
+			if (seen >= rank) {
+				double upperMicros = Math.pow(2, (i + 1) / (double) BUCKETS_PER_DOUBLING);
+				return Math.min(upperMicros, maxLatencyMicros.get()) / 1000.0;
+			}
+		}
+		return maxLatencyMicros.get() / 1000.0;
+	}
+
+	public String toJson() {
+		StringBuilder sb = new StringBuilder(512);
+		sb.append('{');
+		if (topic != null) sb.append("\"topic\":\"").append(Json.escape(topic)).append("\",");
+		sb.append("\"sent\":").append(sent)
+				.append(",\"success\":").append(success.get())
+				.append(",\"failed\":").append(failed.get())
+				.append(",\"retries\":").append(retries)
+				.append(",\"pruned\":").append(pruned)
+				.append(",\"elapsedMs\":").append(elapsedMs);
+		sb.append(",\"statuses\":{");
+		boolean first = true;
+		for (int s = 0; s < statuses.length(); s++) {
+			int n = statuses.get(s);
+			if (n == 0) continue;
+			if (!first) sb.append(',');
+			first = false;
+			sb.append('"').append(s == 0 ? "error" : Integer.toString(s)).append("\":").append(n);
+		}
+		sb.append("},\"errorCodes\":{");
+		first = true;
+		for (Map.Entry<String, AtomicInteger> e : new TreeMap<>(errorCodes).entrySet()) {
+			if (!first) sb.append(',');
+			first = false;
+			sb.append('"').append(Json.escape(e.getKey())).append("\":").append(e.getValue().get());
+		}
+		sb.append('}');
+		long total = 0;
+		for (int i = 0; i < LATENCY_BUCKETS; i++) total += latency.get(i);
+		if (total > 0) {
+			sb.append(",\"latencyMs\":{")
+					.append("\"p50\":").append(format(percentileMs(0.50, total)))
+					.append(",\"p90\":").append(format(percentileMs(0.90, total)))
+					.append(",\"p99\":").append(format(percentileMs(0.99, total)))
+					.append(",\"max\":").append(format(maxLatencyMicros.get() / 1000.0))
+					.append('}');
+		}
+		sb.append(",\"failureSamples\":[");
+		synchronized (samples) {
+			first = true;
+			for (Failure f : samples) {
+				if (f == null) continue;
+				if (!first) sb.append(',');
+				first = false;
+				sb.append("{\"index\":").append(f.index)
+						.append(",\"token\":\"").append(Json.escape(f.token)).append('"')
+						.append(",\"status\":").append(f.status);
+				if (f.errorCode != null) sb.append(",\"errorCode\":\"").append(Json.escape(f.errorCode)).append('"');
+				if (f.message != null) sb.append(",\"message\":\"").append(Json.escape(f.message)).append('"');
+				sb.append('}');
+			}
+		}
+		return sb.append("]}").toString();
+	}
+
+	private static String format(double ms) {
+		return String.format(Locale.ROOT, "%.1f", ms);
+	}
+}
@@ -1,190 +1,792 @@
 package com.example.server;
 
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
 
-@WebServlet(name = "ServerServlet", urlPatterns = {"/register", "/send", "/test-token", "/debug-token", "/test-service-account", "/devices", "/send-selected"})
+@WebServlet(name = "ServerServlet", asyncSupported = true, urlPatterns = {"/register", "/send", "/test-token", "/debug-token", "/test-service-account", "/devices", "/send-selected", "/pool-stats", "/cache-stats", "/metrics", "/send-segment", "/segments", "/jobs/*", "/scheduled/*"})
 public class ServerServlet extends HttpServlet {
+	private static final Log LOG = Log.get(ServerServlet.class);
+	private static final int GZIP_MIN_BYTES = 1024;
+
 	private transient DatabaseHelper db;
-	private transient FCMSender fcm;
+	private transient FCMSenderRegistry senders;
+	private transient SendJobManager jobs;
+	private transient RegistrationBuffer registrations;
+	private transient DeviceRegistryCache cache;
+	private transient TopicSync topics;
+	private transient IdempotencyStore idempotency;
+	private transient ScheduledSends scheduled;
+	private transient JobEventStream jobEvents;
+	/** Null unless broadcasts are split across servers. */
+	private transient ShardedBroadcasts shards;
+	/** Blocking work of POST requests, off the container threads: database claims and inserts, and FCM calls. */
+	private transient ThreadPoolExecutor dbCalls;
+	private transient ThreadPoolExecutor fcmCalls;
+	private long asyncTimeoutMs;
+	private int maxDevicePageSize;
+	private long registerTimeoutMs;
+	private long maxSpreadSec;
 
 	@Override
 	public void init() throws ServletException {
 		super.init();
 		this.db = new DatabaseHelper();
-		this.fcm = new FCMSender();
+		if (Boolean.parseBoolean(ConfigLoader.get("cache.enabled", "true"))) {
+			this.cache = new DeviceRegistryCache(db, ConfigLoader.getInt("cache.ttlMs", 30000));
+		}
+		this.senders = new FCMSenderRegistry();
+		if (Boolean.parseBoolean(ConfigLoader.get("fcm.pruneDeadTokens", "true"))) {
+			senders.setTokenPruner(new TokenPruner(db, ConfigLoader.getInt("fcm.pruneBatchSize", 500)));
+		}
+		this.registrations = new RegistrationBuffer(db,
+				ConfigLoader.getInt("register.batchMaxSize", 200),
+				ConfigLoader.getInt("register.lingerMs", 5),
+				ConfigLoader.getInt("register.queueCapacity", 10000));
+		this.maxDevicePageSize = ConfigLoader.getInt("devices.maxPageSize", 1000);
+		this.registerTimeoutMs = ConfigLoader.getInt("register.timeoutMs", 5000);
+		this.jobs = new SendJobManager(ConfigLoader.getInt("jobs.workers", 4),
+				ConfigLoader.getInt("jobs.pacedWorkers", 16),
+				ConfigLoader.getInt("jobs.queueCapacity", 100),
+				ConfigLoader.getInt("jobs.maxRetained", 1000));
+		this.jobEvents = new JobEventStream(ConfigLoader.getInt("jobs.events.tickMs", 250),
+				TimeUnit.SECONDS.toMillis(ConfigLoader.getInt("jobs.events.heartbeatSec", 15)),
+				ConfigLoader.getInt("jobs.events.maxStreams", 1000));
+		int asyncQueue = ConfigLoader.getInt("async.queueCapacity", 1000);
+		this.dbCalls = asyncPool("async-db", ConfigLoader.getInt("async.dbWorkers", 8), asyncQueue);
+		this.fcmCalls = asyncPool("async-fcm", ConfigLoader.getInt("async.fcmWorkers", 4), asyncQueue);
+		this.asyncTimeoutMs = ConfigLoader.getInt("async.timeoutMs", 30000);
+		// A claim outlives the request that made it by a margin, then a retry of the key may take it over
+		this.idempotency = new IdempotencyStore(db, jobs, ConfigLoader.getInt("idempotency.cacheSize", 10000),
+				TimeUnit.HOURS.toMillis(ConfigLoader.getInt("idempotency.ttlHours", 24)),
+				asyncTimeoutMs + TimeUnit.SECONDS.toMillis(ConfigLoader.getInt("idempotency.claimMarginSec", 30)));
+		this.maxSpreadSec = ConfigLoader.getInt("schedule.maxSpreadSec", 86400);
+		this.scheduled = new ScheduledSends(db, jobs, ConfigLoader.getInt("schedule.tickMs", 100),
+				ConfigLoader.getInt("schedule.wheelSize", 512),
+				TimeUnit.SECONDS.toMillis(ConfigLoader.getInt("schedule.leaseSec", 60)), this::scheduledTask);
+		scheduled.start(TimeUnit.SECONDS.toMillis(ConfigLoader.getInt("schedule.rescanSec", 60)));
+		if (Boolean.parseBoolean(ConfigLoader.get("broadcast.sharding.enabled", "false"))) {
+			this.shards = new ShardedBroadcasts(db, senders, ConfigLoader.get("broadcast.nodeId", ""),
+					ConfigLoader.getInt("broadcast.unitSize", 5000),
+					ConfigLoader.getInt("broadcast.minDevices", 10000),
+					TimeUnit.SECONDS.toMillis(ConfigLoader.getInt("broadcast.leaseSec", 60)),
+					ConfigLoader.getInt("broadcast.pollMs", 500),
+					ConfigLoader.getInt("broadcast.maxAttempts", 3));
+			shards.start(ConfigLoader.getInt("broadcast.workers", 2),
+					TimeUnit.HOURS.toMillis(ConfigLoader.getInt("broadcast.retainHours", 24)));
+		}
+		if (Boolean.parseBoolean(ConfigLoader.get("segment.topics.enabled", "true"))) {
+			this.topics = new TopicSync(db, senders, ConfigLoader.get("fcm.iidBaseUrl", "https://iid.googleapis.com"),
+					ConfigLoader.getInt("segment.topics.batchSize", 1000),
+					ConfigLoader.getInt("segment.topics.minSize", 1000));
+			topics.start(ConfigLoader.getInt("segment.topics.syncIntervalSec", 300));
+		}
+	}
+
+	@Override
+	public void destroy() {
+		dbCalls.shutdownNow();
+		fcmCalls.shutdownNow();
+		scheduled.shutdown();
+		jobEvents.shutdown();
+		jobs.shutdown();
+		if (topics != null) topics.shutdown();
+		if (shards != null) shards.shutdown();
+		registrations.shutdown();
+		ConnectionPool.close();
+		Log.flush();
+		super.destroy();
 	}
 
 	@Override
 	protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
 		String path = req.getServletPath();
-		// Basic request logging for debugging
-		System.out.println("[ServerServlet] Incoming POST " + path + " from " + req.getRemoteAddr());
+		LOG.debug("incoming POST", "path", path, "remote", req.getRemoteAddr());
 		resp.setContentType("application/json; charset=UTF-8");
-		try (PrintWriter out = resp.getWriter()) {
-			if ("/register".equals(path)) {
-				String token = req.getParameter("token");
-				String label = req.getParameter("label");
-				if (token == null || token.isBlank()) {
-					resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-					out.write("{\"error\":\"token required\"}");
-					return;
-				}
-				db.upsertDeviceToken(token, label);
-				out.write("{\"status\":\"ok\"}");
+		String project = project(req);
+		if (project == null) {
+			write(resp, badRequest("unknown project"));
+			return;
+		}
+		if ("/register".equals(path)) {
+			String token = req.getParameter("token");
+			String label = req.getParameter("label");
+			if (token == null || token.isBlank()) {
+				write(resp, badRequest("token required"));
 				return;
 			}
-			if ("/send".equals(path)) {
-				String title = req.getParameter("title");
-				String body = req.getParameter("body");
-				List<String> tokens = db.getAllTokens();
-				
-				if (tokens.isEmpty()) {
-					resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-					out.write("{\"error\":\"No registered tokens found\"}");
-					return;
-				}
-				
-				try {
-					String result = fcm.sendToTokens(tokens, title == null ? "" : title, body == null ? "" : body);
-					out.write("{\"result\":\"" + escapeForJson(result) + "\"}");
-				} catch (IllegalArgumentException e) {
-					resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-					out.write("{\"error\":\"" + escapeForJson(e.getMessage()) + "\"}");
-				}
+			register(req, resp, token, label, project);
+			return;
+		}
+		if ("/send".equals(path)) {
+			String title = req.getParameter("title");
+			String body = req.getParameter("body");
+			String t = title == null ? "" : title;
+			String b = body == null ? "" : body;
+			submitOrSchedule(req, resp, "send", project, null, t, b);
+			return;
+		}
+		if ("/send-selected".equals(path)) {
+			String title = req.getParameter("title");
+			String body = req.getParameter("body");
+			String[] idParams = req.getParameterValues("ids[]");
+			if (idParams == null) idParams = req.getParameterValues("ids");
+			if (idParams == null || idParams.length == 0) {
+				write(resp, badRequest("No device ids provided"));
 				return;
 			}
-			if ("/send-selected".equals(path)) {
-				String title = req.getParameter("title");
-				String body = req.getParameter("body");
-				String[] idParams = req.getParameterValues("ids[]");
-				if (idParams == null) idParams = req.getParameterValues("ids");
-				if (idParams == null || idParams.length == 0) {
-					resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-					out.write("{\"error\":\"No device ids provided\"}");
-					return;
+			int[] parsed = new int[idParams.length];
+			int n = 0;
+			for (String s : idParams) {
+				try { parsed[n] = Integer.parseInt(s); n++; } catch (NumberFormatException ignored) {}
+			}
+			int[] ids = n == parsed.length ? parsed : java.util.Arrays.copyOf(parsed, n);
+			if (ids.length == 0) {
+				write(resp, badRequest("No tokens found for ids"));
+				return;
+			}
+			String t = title == null ? "" : title;
+			String b = body == null ? "" : body;
+			submitOrSchedule(req, resp, "send-selected", project, ids, t, b);
+			return;
+		}
+		if ("/send-segment".equals(path)) {
+			String label = req.getParameter("label");
+			if (label == null || label.isBlank()) {
+				write(resp, badRequest("label required"));
+				return;
+			}
+			String title = req.getParameter("title");
+			String body = req.getParameter("body");
+			String t = title == null ? "" : title;
+			String b = body == null ? "" : body;
+			submitJob(req, resp, project, "send-segment", job -> sendToSegment(project, label, t, b, job));
+			return;
+		}
+		if ("/test-token".equals(path)) {
+			String token = req.getParameter("token");
+			if (token == null || token.isBlank()) {
+				write(resp, badRequest("token parameter required"));
+				return;
+			}
+			
+			// Test token validation
+			boolean isValid = FCMSender.isValidFCMToken(token);
+			write(resp, new Reply(HttpServletResponse.SC_OK, "{\"token\":\"" + Json.escape(token) + "\",\"valid\":" + isValid + ",\"length\":" + token.length() + "}"));
+			return;
+		}
+		if ("/debug-token".equals(path)) {
+			String token = req.getParameter("token");
+			if (token == null || token.isBlank()) {
+				write(resp, badRequest("token parameter required"));
+				return;
+			}
+			
+			// Test token by sending a real FCM request
+			async(req, resp, fcmCalls, () -> {
+				try {
+					List<String> tokens = List.of(token);
+					SendResult result = senders.get(project).sendToTokens(tokens, "Debug Test", "Testing token validity");
+					return new Reply(HttpServletResponse.SC_OK, "{\"result\":" + result.toJson() + "}");
+				} catch (Exception e) {
+					return badRequest(e.getMessage());
 				}
-				new java.util.ArrayList<Integer>();
-				java.util.List<Integer> ids = new java.util.ArrayList<>();
-				for (String s : idParams) {
-					try { ids.add(Integer.parseInt(s)); } catch (NumberFormatException ignored) {}
+			});
+			return;
+		}
+		if ("/test-service-account".equals(path)) {
+			// Test service account access
+			async(req, resp, fcmCalls, () -> {
+				try {
+					FCMSender fcm = senders.get(project);
+					String accessToken = fcm.getAccessToken();
+					AccessTokenProvider tokens = fcm.getTokenProvider();
+					return new Reply(HttpServletResponse.SC_OK, "{\"status\":\"success\",\"project\":\"" + project + "\""
+							+ ",\"accessTokenLength\":" + accessToken.length()
+							+ ",\"refreshCount\":" + tokens.getRefreshCount()
+							+ ",\"refreshFailures\":" + tokens.getRefreshFailures()
+							+ ",\"lastRefreshMs\":" + tokens.getLastRefreshMillis()
+							+ ",\"avgRefreshMs\":" + tokens.getAverageRefreshMillis() + "}");
+				} catch (Exception e) {
+					return new Reply(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "{\"error\":\"" + Json.escape(e.getMessage()) + "\"}");
 				}
-				List<String> tokens = db.getTokensByIds(ids);
-				if (tokens.isEmpty()) {
-					resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-					out.write("{\"error\":\"No tokens found for ids\"}");
+			});
+			return;
+		}
+		write(resp, new Reply(HttpServletResponse.SC_NOT_FOUND, "{\"error\":\"not found\"}"));
+	}
+
+	/**
+	 * Hands the row to the registration buffer and completes the request when its batch commits, so no
+	 * thread waits on the database for it.
+	 */
+	private void register(HttpServletRequest req, HttpServletResponse resp, String token, String label, String project)
+			throws IOException {
+		CompletableFuture<Void> committed;
+		try {
+			committed = registrations.submit(token, label, project);
+		} catch (RejectedExecutionException e) {
+			write(resp, unavailable("registration busy, retry later"));
+			return;
+		}
+		AsyncContext ctx = req.startAsync();
+		ctx.setTimeout(0);
+		finish(ctx, committed.orTimeout(registerTimeoutMs, TimeUnit.MILLISECONDS).handle((v, e) -> {
+			if (e == null) return new Reply(HttpServletResponse.SC_OK, "{\"status\":\"ok\"}");
+			if (unwrap(e) instanceof TimeoutException) return unavailable("registration busy, retry later");
+			return errorReply(e);
+		}));
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		String path = req.getServletPath();
+		resp.setContentType("application/json; charset=UTF-8");
+		if ("/devices".equals(path)) {
+			handleDevices(req, resp);
+			return;
+		}
+		if ("/jobs".equals(path) && req.getPathInfo() != null && req.getPathInfo().endsWith("/events")) {
+			handleJobEvents(req, resp);
+			return;
+		}
+		if ("/metrics".equals(path)) {
+			resp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+			try (PrintWriter out = resp.getWriter()) {
+				out.write(Metrics.scrape());
+			}
+			return;
+		}
+		try (PrintWriter out = resp.getWriter()) {
+			if ("/jobs".equals(path)) {
+				String id = req.getPathInfo() == null ? null : req.getPathInfo().substring(1);
+				SendJob job = jobs.get(id);
+				if (job == null) {
+					resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+					out.write("{\"error\":\"job not found\"}");
 					return;
 				}
-				try {
-					String result = fcm.sendToTokens(tokens, title == null ? "" : title, body == null ? "" : body);
-					out.write("{\"result\":\"" + escapeForJson(result) + "\"}");
-				} catch (IllegalArgumentException e) {
-					resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-					out.write("{\"error\":\"" + escapeForJson(e.getMessage()) + "\"}");
-				}
+				out.write(job.toJson());
 				return;
 			}
-			if ("/test-token".equals(path)) {
-				String token = req.getParameter("token");
-				if (token == null || token.isBlank()) {
-					resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-					out.write("{\"error\":\"token parameter required\"}");
+			if ("/scheduled".equals(path)) {
+				long id = scheduleId(req);
+				ScheduledSend s = id > 0 ? scheduled.get(id) : null;
+				if (s == null) {
+					resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+					out.write("{\"error\":\"scheduled send not found\"}");
 					return;
 				}
-				
-				// Test token validation
-				boolean isValid = fcm.isValidFCMToken(token);
-				out.write("{\"token\":\"" + escapeForJson(token) + "\",\"valid\":" + isValid + ",\"length\":" + token.length() + "}");
+				out.write(s.toJson());
 				return;
 			}
-			if ("/debug-token".equals(path)) {
-				String token = req.getParameter("token");
-				if (token == null || token.isBlank()) {
+			if ("/segments".equals(path)) {
+				String project = project(req);
+				if (project == null) {
 					resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-					out.write("{\"error\":\"token parameter required\"}");
+					out.write("{\"error\":\"unknown project\"}");
 					return;
 				}
-				
-				// Test token by sending a real FCM request
-				try {
-					List<String> tokens = List.of(token);
-					String result = fcm.sendToTokens(tokens, "Debug Test", "Testing token validity");
-					out.write("{\"result\":\"" + escapeForJson(result) + "\"}");
-				} catch (Exception e) {
-					resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-					out.write("{\"error\":\"" + escapeForJson(e.getMessage()) + "\"}");
+				Map<String, Integer> sizes = cache != null ? cache.getSegmentSizes(project) : db.getSegmentSizes(project);
+				StringBuilder sb = new StringBuilder("[");
+				for (Map.Entry<String, Integer> e : sizes.entrySet()) {
+					if (sb.length() > 1) sb.append(',');
+					sb.append("{\"label\":\"").append(Json.escape(e.getKey())).append("\",\"devices\":").append(e.getValue());
+					if (usesTopic(e.getValue())) sb.append(",\"topic\":\"").append(TopicSync.topicFor(e.getKey())).append('"');
+					sb.append('}');
 				}
+				out.write(sb.append(']').toString());
 				return;
 			}
-			if ("/test-service-account".equals(path)) {
-				// Test service account access
-				try {
-					String accessToken = fcm.getAccessToken();
-					out.write("{\"status\":\"success\",\"accessTokenLength\":" + accessToken.length() + "}");
-				} catch (Exception e) {
-					resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-					out.write("{\"error\":\"" + escapeForJson(e.getMessage()) + "\"}");
-				}
+			if ("/cache-stats".equals(path)) {
+				out.write(cache != null ? cache.statsJson() : "{\"status\":\"disabled\"}");
+				return;
+			}
+			if ("/pool-stats".equals(path)) {
+				out.write(ConnectionPool.statsJson());
 				return;
 			}
 			resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
 			out.write("{\"error\":\"not found\"}");
 		}
-		catch (SQLException e) {
-			resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-			resp.getWriter().write("{\"error\":\"db error\"}");
-		}
-		catch (InterruptedException e) {
-			Thread.currentThread().interrupt();
+		catch (Exception e) {
 			resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-			resp.getWriter().write("{\"error\":\"fcm interrupted\"}");
+			resp.getWriter().write("{\"error\":\"server error\"}");
 		}
 	}
 
 	@Override
-	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-		String path = req.getServletPath();
+	protected void doDelete(HttpServletRequest req, HttpServletResponse resp) throws IOException {
 		resp.setContentType("application/json; charset=UTF-8");
 		try (PrintWriter out = resp.getWriter()) {
-			if ("/devices".equals(path)) {
+			long id = "/scheduled".equals(req.getServletPath()) ? scheduleId(req) : 0;
+			if (id > 0 && scheduled.cancel(id)) {
+				out.write("{\"scheduleId\":" + id + ",\"status\":\"CANCELLED\"}");
+				return;
+			}
+			ScheduledSend s = id > 0 ? scheduled.get(id) : null;
+			if (s == null) {
+				resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+				out.write("{\"error\":\"scheduled send not found\"}");
+				return;
+			}
+			// Already started or cancelled
+			resp.setStatus(HttpServletResponse.SC_CONFLICT);
+			out.write(s.toJson());
+		} catch (SQLException e) {
+			resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			resp.getWriter().write("{\"error\":\"db error\"}");
+		}
+	}
+
+	/** {@code GET /jobs/{id}/events}: live progress of a send job as Server-Sent Events. */
+	private void handleJobEvents(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		String info = req.getPathInfo();
+		int end = info.length() - "/events".length();
+		SendJob job = end > 1 ? jobs.get(info.substring(1, end)) : null;
+		if (job == null) {
+			write(resp, new Reply(HttpServletResponse.SC_NOT_FOUND, "{\"error\":\"job not found\"}"));
+			return;
+		}
+		if (!jobEvents.open(req, resp, job)) {
+			write(resp, unavailable("too many event streams, poll /jobs/" + job.getId() + " instead"));
+		}
+	}
+
+	private static long scheduleId(HttpServletRequest req) {
+		String info = req.getPathInfo();
+		try {
+			return info == null || info.length() < 2 ? 0 : Long.parseLong(info.substring(1));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private void handleDevices(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		int cursor;
+		int limit;
+		try {
+			cursor = parseNonNegative(req.getParameter("cursor"));
+			limit = Math.min(parseNonNegative(req.getParameter("limit")), maxDevicePageSize);
+		} catch (NumberFormatException e) {
+			resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			resp.getWriter().write("{\"error\":\"cursor and limit must be non-negative integers\"}");
+			return;
+		}
+		DevicePage page;
+		try {
+			page = cache != null ? cache.getDevicesPage(cursor, limit) : db.getDevicesPage(cursor, limit);
+		} catch (SQLException e) {
+			resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			resp.getWriter().write("{\"error\":\"failed to load devices\"}");
+			return;
+		}
+		// Without a cache-derived validator, serialize first and hash the bytes
+		byte[] body = null;
+		String etag = page.etag;
+		if (etag == null) {
+			StringBuilder sb = new StringBuilder(page.devices.size() * 200 + 2);
+			writeDevicesJson(sb, page.devices);
+			body = sb.toString().getBytes(StandardCharsets.UTF_8);
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			etag = "W/\"" + Long.toHexString(crc.getValue()) + "-" + body.length + "\"";
+		}
+		resp.setHeader("ETag", etag);
+		resp.setHeader("Cache-Control", "no-cache");
+		resp.setHeader("Vary", "Accept-Encoding");
+		if (page.nextCursor > 0) {
+			resp.setHeader("X-Next-Cursor", Integer.toString(page.nextCursor));
+			resp.setHeader("Link", "</devices?cursor=" + page.nextCursor + "&limit=" + limit + ">; rel=\"next\"");
+		}
+		if (matchesIfNoneMatch(req.getHeader("If-None-Match"), etag)) {
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		String acceptEncoding = req.getHeader("Accept-Encoding");
+		boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip")
+				&& (body != null ? body.length >= GZIP_MIN_BYTES : page.devices.size() >= 8);
+		if (gzip) resp.setHeader("Content-Encoding", "gzip");
+		else if (body != null) resp.setContentLength(body.length);
+		OutputStream os = gzip ? new GZIPOutputStream(resp.getOutputStream(), 8192) : resp.getOutputStream();
+		try (os) {
+			if (body != null) {
+				os.write(body);
+			} else {
+				Writer w = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 8192);
+				writeDevicesJson(w, page.devices);
+				w.flush();
+			}
+		}
+	}
+
+	static void writeDevicesJson(Appendable out, List<DeviceDto> devices) throws IOException {
+		out.append('[');
+		for (int i = 0; i < devices.size(); i++) {
+			DeviceDto d = devices.get(i);
+			if (i > 0) out.append(',');
+			out.append("{\"id\":").append(Integer.toString(d.id))
+				.append(",\"token\":\"").append(Json.escape(d.token)).append('"')
+				.append(",\"label\":\"").append(Json.escape(d.label)).append('"')
+				.append(",\"project\":\"").append(d.project).append("\"}");
+		}
+		out.append(']');
+	}
+
+	private static boolean matchesIfNoneMatch(String header, String etag) {
+		if (header == null) return false;
+		for (String candidate : header.split(",")) {
+			String c = candidate.trim();
+			if (c.equals("*") || c.equals(etag)) return true;
+		}
+		return false;
+	}
+
+	private static int parseNonNegative(String s) {
+		if (s == null || s.isBlank()) return 0;
+		int v = Integer.parseInt(s.trim());
+		if (v < 0) throw new NumberFormatException("negative");
+		return v;
+	}
+
+	/**
+	 * Queues the send now, or stores it for later when the request has {@code sendAt} (epoch milliseconds or
+	 * an ISO-8601 instant) or {@code spreadSec}. {@code ids} is null for a send to every device. Either way an
+	 * {@code Idempotency-Key} makes a repeat of the request return the original job or schedule.
+	 */
+	private void submitOrSchedule(HttpServletRequest req, HttpServletResponse resp, String type, String project, int[] ids,
+			String title, String body) throws IOException {
+		String sendAtParam = req.getParameter("sendAt");
+		String spreadParam = req.getParameter("spreadSec");
+		boolean later = (sendAtParam != null && !sendAtParam.isBlank()) || (spreadParam != null && !spreadParam.isBlank());
+		if (!later) {
+			submitJob(req, resp, project, type, job -> ids == null ? sendToAll(project, title, body, 0, job, null)
+					: sendToSelected(project, ids, title, body, 0, job, null));
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long sendAt;
+		long spreadSec;
+		try {
+			sendAt = sendAtParam == null || sendAtParam.isBlank() ? now : parseInstant(sendAtParam.trim());
+			spreadSec = parseNonNegative(spreadParam);
+		} catch (DateTimeParseException | NumberFormatException e) {
+			write(resp, badRequest("sendAt must be epoch milliseconds or an ISO-8601 instant, spreadSec a non-negative integer"));
+			return;
+		}
+		if (spreadSec > maxSpreadSec) {
+			write(resp, badRequest("spreadSec must be at most " + maxSpreadSec));
+			return;
+		}
+		long at = Math.max(sendAt, now);
+		long spreadMs = TimeUnit.SECONDS.toMillis(spreadSec);
+		String key = idempotencyKey(req);
+		if (key != null && !IdempotencyStore.isValidKey(key)) {
+			write(resp, badRequest("Idempotency-Key must be 1-255 visible ASCII characters"));
+			return;
+		}
+		IdempotencyStore.Scheduler scheduler = () -> scheduled.schedule(type, project, title, body, ids, at, spreadMs);
+		if (key == null) {
+			async(req, resp, dbCalls, () -> new Reply(HttpServletResponse.SC_ACCEPTED, scheduler.schedule().toJson()));
+			return;
+		}
+		String fingerprint = IdempotencyStore.fingerprint(type, req.getParameterMap());
+		async(req, resp, dbCalls, () -> idempotentReply(idempotency.schedule(key, fingerprint, scheduler)));
+	}
+
+	private static long parseInstant(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) < '0' || s.charAt(i) > '9') return Instant.parse(s).toEpochMilli();
+		}
+		return Long.parseLong(s);
+	}
+
+	/** Builds the send for a scheduled row when it comes due, or when it is resumed after a restart. */
+	private SendJobManager.Task scheduledTask(ScheduledSends.Checkpoint checkpoint) {
+		ScheduledSend s = checkpoint.send;
+		return job -> {
+			// A resumed send keeps its original end time; if that has passed, the rest goes at full speed
+			long spreadMs = s.startedAt > 0 ? Math.max(0, s.startedAt + s.spreadMs - System.currentTimeMillis()) : s.spreadMs;
+			return s.deviceIds == null
+					? sendToAll(s.project, s.title, s.body, spreadMs, job, checkpoint)
+					: sendToSelected(s.project, s.deviceIds, s.title, s.body, spreadMs, job, checkpoint);
+		};
+	}
+
+	/** The request's {@code project} parameter, or the default project; null if it names no configured project. */
+	private String project(HttpServletRequest req) {
+		String project = senders.resolve(req.getParameter("project"));
+		return senders.get(project) != null ? project : null;
+	}
+
+	/** The sender of a stored project, which may have been removed from {@code fcm.projects} since. */
+	private FCMSender sender(String project) {
+		FCMSender sender = senders.get(project);
+		if (sender == null) throw new IllegalArgumentException("Unknown project " + project);
+		return sender;
+	}
+
+	/**
+	 * @param spreadMs   window to release the requests over, evenly per device; 0 sends at full speed
+	 * @param checkpoint progress of a scheduled send, resumed after its last device; null for an immediate send
+	 */
+	private SendResult sendToAll(String project, String title, String body, long spreadMs, SendJob job,
+			ScheduledSends.Checkpoint checkpoint) throws Exception {
+		FCMSender fcm = sender(project);
+		// A spread send is paced by one server and a scheduled one resumes from its own checkpoint, so only
+		// immediate full-speed ones are split
+		if (shards != null && spreadMs == 0 && checkpoint == null && shards.handles(db.countDevices(project, 0))) {
+			return shards.run(job, project, null, title, body);
+		}
+		int afterId = checkpoint != null ? checkpoint.resumeAfter() : 0;
+		// Streamed from the table in pages, not from the cache: memory stays bounded by the page size and the
+		// first request goes out after one page, however many registrations invalidated the cache
+		try (TokenCursor tokens = db.streamAllTokens(project, afterId)) {
+			if (afterId == 0 && tokens.isEmpty()) throw new IllegalArgumentException("No registered tokens found");
+			Iterator<String> source = checkpoint != null ? checkpoint.track(tokens, t -> tokens.lastId(), t -> t) : tokens;
+			return fcm.sendToTokens(source, title, body, job, spreadMs > 0 ? pacer(spreadMs, db.countDevices(project, afterId)) : null);
+		}
+	}
+
+	private SendResult sendToSelected(String project, int[] ids, String title, String body, long spreadMs, SendJob job,
+			ScheduledSends.Checkpoint checkpoint) throws Exception {
+		FCMSender fcm = sender(project);
+		List<DeviceDto> devices = cache != null ? cache.getDevicesByIds(project, ids) : db.getDevicesByIds(project, ids);
+		if (devices.isEmpty()) throw new IllegalArgumentException("No tokens found for ids");
+		if (checkpoint != null) {
+			// In id order, so a resumed send skips the devices it dispatched before
+			int from = 0;
+			while (from < devices.size() && devices.get(from).id <= checkpoint.resumeAfter()) from++;
+			List<DeviceDto> remaining = devices.subList(from, devices.size());
+			return fcm.sendToTokens(checkpoint.track(remaining.iterator(), d -> d.id, d -> d.token), title, body, job,
+					pacer(spreadMs, remaining.size()));
+		}
+		List<String> tokens = new ArrayList<>(devices.size());
+		for (DeviceDto d : devices) tokens.add(d.token);
+		return fcm.sendToTokens(tokens.iterator(), title, body, job, pacer(spreadMs, tokens.size()));
+	}
+
+	private static FanOutSender.Pacer pacer(long spreadMs, int audience) {
+		return spreadMs > 0 ? FanOutSender.spread(audience, spreadMs) : null;
+	}
+
+	/**
+	 * Large segments go out as one topic message once the topic is in sync; anything else, or a topic that
+	 * cannot be synced right now, falls back to one request per device.
+	 */
+	private SendResult sendToSegment(String project, String label, String title, String body, SendJob job) throws Exception {
+		FCMSender fcm = sender(project);
+		int size = cache != null ? cache.countByLabel(project, label) : db.countByLabel(project, label);
+		if (size == 0) throw new IllegalArgumentException("No devices with label " + label);
+		if (usesTopic(size)) {
+			try {
+				if (topics.sync(project, label)) {
+					return fcm.sendToTopic(TopicSync.topicFor(label), title, body, job);
+				}
+			} catch (IOException e) {
+				LOG.warn("topic sync failed, sending per device", "project", project, "label", label, "error", e.getMessage());
+			}
+		}
+		if (shards != null && shards.handles(size)) {
+			return shards.run(job, project, label, title, body);
+		}
+		try (TokenCursor tokens = db.streamTokensByLabel(project, label)) {
+			return fcm.sendToTokens(tokens, title, body, job);
+		}
+	}
+
+	private boolean usesTopic(int segmentSize) {
+		return topics != null && segmentSize >= topics.getMinSegmentSize();
+	}
+
+	/**
+	 * Queues a send job and answers {@code 202} with its id. With an {@code Idempotency-Key} header (or
+	 * {@code idempotencyKey} parameter), a repeat of the same request gets the original job back instead.
+	 */
+	private void submitJob(HttpServletRequest req, HttpServletResponse resp, String project, String type, SendJobManager.Task task)
+			throws IOException {
+		String key = idempotencyKey(req);
+		if (key != null && !IdempotencyStore.isValidKey(key)) {
+			write(resp, badRequest("Idempotency-Key must be 1-255 visible ASCII characters"));
+			return;
+		}
+		if (key == null) {
+			// Queuing a job is a non-blocking offer, not worth a hop to another thread
+			try {
+				write(resp, accepted(jobs.submit(project, type, task)));
+			} catch (RejectedExecutionException e) {
+				write(resp, unavailable("send queue full, retry later"));
+			}
+			return;
+		}
+		String fingerprint = IdempotencyStore.fingerprint(type, req.getParameterMap());
+		async(req, resp, dbCalls, () -> submitIdempotent(key, fingerprint, project, type, task));
+	}
+
+	/** The request's {@code Idempotency-Key} header, else its {@code idempotencyKey} parameter; null if neither. */
+	private static String idempotencyKey(HttpServletRequest req) {
+		String header = req.getHeader("Idempotency-Key");
+		return header != null ? header : req.getParameter("idempotencyKey");
+	}
+
+	private Reply submitIdempotent(String key, String fingerprint, String project, String type, SendJobManager.Task task)
+			throws SQLException {
+		try {
+			return idempotentReply(idempotency.submit(key, fingerprint, project, type, task));
+		} catch (RejectedExecutionException e) {
+			return unavailable("send queue full, retry later");
+		}
+	}
+
+	private Reply idempotentReply(IdempotencyStore.Outcome outcome) throws SQLException {
+		switch (outcome.kind) {
+			case NEW:
+				return outcome.schedule != null ? new Reply(HttpServletResponse.SC_ACCEPTED, outcome.schedule.toJson()) : accepted(outcome.job);
+			case REPLAYED:
+				if (outcome.scheduleId > 0) {
+					// The schedule as it is now, which may since have started or finished
+					ScheduledSend s = scheduled.get(outcome.scheduleId);
+					String body = s != null ? s.toJson() : "{\"scheduleId\":" + outcome.scheduleId + "}";
+					return new Reply(HttpServletResponse.SC_ACCEPTED, body, "Idempotent-Replayed", "true");
+				}
+				if (outcome.job != null) return accepted(outcome.job, "Idempotent-Replayed", "true");
+				// The job is no longer retained; its final status was stored when it finished
+				if (outcome.response != null) return new Reply(HttpServletResponse.SC_OK, outcome.response, "Idempotent-Replayed", "true");
+				return new Reply(HttpServletResponse.SC_ACCEPTED, "{\"jobId\":\"" + outcome.jobId + "\"}", "Idempotent-Replayed", "true");
+			case MISMATCH:
+				return new Reply(422, "{\"error\":\"Idempotency-Key was already used with different parameters\"}");
+			default:
+				return new Reply(HttpServletResponse.SC_CONFLICT, "{\"error\":\"a request with this Idempotency-Key is still being processed\"}",
+						"Retry-After", "1");
+		}
+	}
+
+	private static Reply accepted(SendJob job, String... headers) {
+		return new Reply(HttpServletResponse.SC_ACCEPTED,
+				"{\"jobId\":\"" + job.getId() + "\",\"status\":\"" + job.getState() + "\",\"statusUrl\":\"/jobs/" + job.getId() + "\"}", headers);
+	}
+
+	/** Status, extra headers and JSON body of a response, built before anything is written. */
+	private static final class Reply {
+		final int status;
+		final String body;
+		/** Alternating names and values. */
+		final String[] headers;
+
+		Reply(int status, String body, String... headers) {
+			this.status = status;
+			this.body = body;
+			this.headers = headers;
+		}
+	}
+
+	private interface ReplyTask {
+		Reply call() throws Exception;
+	}
+
+	private static Reply badRequest(String message) {
+		return new Reply(HttpServletResponse.SC_BAD_REQUEST, "{\"error\":\"" + Json.escape(message) + "\"}");
+	}
+
+	private static Reply unavailable(String message) {
+		return new Reply(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "{\"error\":\"" + message + "\"}", "Retry-After", "1");
+	}
+
+	/**
+	 * Runs {@code task} on {@code pool} and writes its reply from there. The request goes async first, so the
+	 * container thread returns straight away while the database or FCM call is in progress.
+	 */
+	private void async(HttpServletRequest req, HttpServletResponse resp, ExecutorService pool, ReplyTask task) {
+		AsyncContext ctx = req.startAsync(req, resp);
+		// The future's own timeout bounds the wait, so the container never races the pipeline to respond
+		ctx.setTimeout(0);
+		CompletableFuture<Reply> reply;
+		try {
+			reply = CompletableFuture.supplyAsync(() -> {
 				try {
-					java.util.List<DeviceDto> devices = db.getAllDevices();
-					StringBuilder sb = new StringBuilder();
-					sb.append('[');
-					for (int i = 0; i < devices.size(); i++) {
-						DeviceDto d = devices.get(i);
-						sb.append("{\"id\":").append(d.id)
-							.append(",\"token\":\"").append(escapeForJson(d.token)).append("\"")
-							.append(",\"label\":\"").append(escapeForJson(d.label)).append("\"}");
-						if (i < devices.size() - 1) sb.append(',');
-					}
-					sb.append(']');
-					out.write(sb.toString());
-					return;
+					return task.call();
 				} catch (Exception e) {
-					resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-					out.write("{\"error\":\"failed to load devices\"}");
-					return;
+					throw new CompletionException(e);
 				}
-			}
-			resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
-			out.write("{\"error\":\"not found\"}");
+			}, pool);
+		} catch (RejectedExecutionException e) {
+			reply = CompletableFuture.failedFuture(e);
 		}
-		catch (Exception e) {
-			resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-			resp.getWriter().write("{\"error\":\"server error\"}");
+		finish(ctx, reply.orTimeout(asyncTimeoutMs, TimeUnit.MILLISECONDS));
+	}
+
+	private static void finish(AsyncContext ctx, CompletableFuture<Reply> reply) {
+		reply.exceptionally(ServerServlet::errorReply).thenAccept(r -> {
+			try {
+				write((HttpServletResponse) ctx.getResponse(), r);
+			} catch (IOException | RuntimeException e) {
+				LOG.debug("async response not written", "error", e.getMessage());
+			} finally {
+				ctx.complete();
+			}
+		});
+	}
+
+	private static Reply errorReply(Throwable e) {
+		Throwable cause = unwrap(e);
+		if (cause instanceof RejectedExecutionException) return unavailable("server busy, retry later");
+		if (cause instanceof TimeoutException) return unavailable("timed out, retry later");
+		if (cause instanceof SQLException) return new Reply(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "{\"error\":\"db error\"}");
+		LOG.error("async request failed", cause);
+		return new Reply(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "{\"error\":\"server error\"}");
+	}
+
+	private static Throwable unwrap(Throwable e) {
+		return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+	}
+
+	private static void write(HttpServletResponse resp, Reply reply) throws IOException {
+		resp.setStatus(reply.status);
+		for (int i = 0; i + 1 < reply.headers.length; i += 2) resp.setHeader(reply.headers[i], reply.headers[i + 1]);
+		try (PrintWriter out = resp.getWriter()) {
+			out.write(reply.body);
 		}
 	}
 
-	private String escapeForJson(String s) {
-		return s == null ? "" : s.replace("\\", "\\\\").replace("\"", "\\\"");
+	private static ThreadPoolExecutor asyncPool(String name, int workers, int queueCapacity) {
+		AtomicInteger seq = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), r -> {
+					Thread t = new Thread(r, name + "-" + seq.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		Metrics.gauge("servlet_async_queued", "Async POST requests waiting for a worker", () -> pool.getQueue().size(), "pool", name);
+		Metrics.gauge("servlet_async_running", "Async POST requests being handled", pool::getActiveCount, "pool", name);
+		return pool;
 	}
 }
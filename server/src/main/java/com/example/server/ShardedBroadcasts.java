@@ -0,0 +1,275 @@
+package com.example.server;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Broadcasts sent by every server at once. The server that accepts a broadcast splits its audience into
+ * device id ranges of {@code unitSize} devices and stores them in {@code broadcast_unit}; worker threads on
+ * each server claim open units with {@code SELECT ... FOR UPDATE SKIP LOCKED} and send them with their own
+ * HTTP clients and in-flight budget, so a broadcast finishes faster with every server added. Each project has
+ * its own workers, so one project's units (or its rate limit) never hold up another's. A claim is a
+ * lease renewed while the unit is sent; if its server dies, the unit is claimed again once the lease runs
+ * out, so a unit can be delivered twice but is never lost. The accepting server's job reports the totals
+ * of all units until the last one is done.
+ */
+public class ShardedBroadcasts {
+	private static final Log LOG = Log.get(ShardedBroadcasts.class);
+	private static final Metrics.Counter UNITS_DONE = Metrics.counter("broadcast_units_total",
+			"Broadcast units finished by this server", "outcome", "done");
+	private static final Metrics.Counter UNITS_ABANDONED = Metrics.counter("broadcast_units_total",
+			"Broadcast units finished by this server", "outcome", "abandoned");
+	private static final Metrics.Counter UNITS_LOST = Metrics.counter("broadcast_units_total",
+			"Broadcast units finished by this server", "outcome", "lost");
+
+	/** Counts one unit's outcomes and notices when its lease has passed to another server. */
+	private static final class UnitProgress implements SendProgress {
+		final AtomicInteger success = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicInteger retries = new AtomicInteger();
+		final AtomicInteger pruned = new AtomicInteger();
+		volatile boolean lost;
+
+		@Override
+		public void onSuccess() {
+			success.incrementAndGet();
+		}
+
+		@Override
+		public void onFailure() {
+			failed.incrementAndGet();
+		}
+
+		@Override
+		public void onRetry() {
+			retries.incrementAndGet();
+		}
+
+		@Override
+		public void onPruned(int count) {
+			pruned.addAndGet(count);
+		}
+	}
+
+	private final DatabaseHelper db;
+	private final FCMSenderRegistry senders;
+	private final String nodeId;
+	private final int unitSize;
+	private final int minDevices;
+	private final long leaseMs;
+	private final long pollMs;
+	private final int maxAttempts;
+	private final Set<BroadcastUnit> active = ConcurrentHashMap.newKeySet();
+	private final List<Thread> workers = new ArrayList<>();
+	private final ScheduledExecutorService leases = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "broadcast-lease");
+		t.setDaemon(true);
+		return t;
+	});
+	private volatile boolean running = true;
+
+	/**
+	 * @param nodeId      this server's name in {@code broadcast_unit.owner}; blank for pid@host
+	 * @param minDevices  smaller broadcasts are not worth splitting and stay on the accepting server
+	 * @param leaseMs     how long a claim lasts without renewal; renewed every third of it
+	 * @param pollMs      idle workers look for units, and the accepting server for progress, this often
+	 * @param maxAttempts claims of a unit before its devices are counted as failed instead of sent
+	 */
+	public ShardedBroadcasts(DatabaseHelper db, FCMSenderRegistry senders, String nodeId, int unitSize, int minDevices,
+			long leaseMs, long pollMs, int maxAttempts) {
+		this.db = db;
+		this.senders = senders;
+		this.nodeId = nodeId == null || nodeId.isBlank() ? ManagementFactory.getRuntimeMXBean().getName() : nodeId;
+		this.unitSize = Math.max(1, unitSize);
+		this.minDevices = minDevices;
+		this.leaseMs = Math.max(3000, leaseMs);
+		this.pollMs = Math.max(10, pollMs);
+		this.maxAttempts = Math.max(1, maxAttempts);
+		Metrics.gauge("broadcast_units_active", "Broadcast units this server is sending", active::size);
+	}
+
+	/**
+	 * Starts {@code workerCount} threads per project claiming that project's units, and a sweep deleting
+	 * broadcasts older than {@code retainMs}.
+	 *
+	 * @throws IllegalStateException if the database is too old for {@code SKIP LOCKED}
+	 */
+	public void start(int workerCount, long retainMs) {
+		try {
+			db.requireSkipLocked();
+		} catch (SQLException e) {
+			// Claims fail and are retried until the database is back; the version is not known until then
+			LOG.warn("could not check the database version", "error", e.getMessage());
+		}
+		for (String project : senders.projects()) {
+			for (int i = 1; i <= workerCount; i++) {
+				Thread t = new Thread(() -> work(project), "broadcast-worker-" + project + "-" + i);
+				t.setDaemon(true);
+				workers.add(t);
+				t.start();
+			}
+		}
+		long sweepMs = Math.min(retainMs, TimeUnit.HOURS.toMillis(1));
+		leases.scheduleWithFixedDelay(() -> sweep(retainMs), sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+		LOG.info("broadcast workers started", "nodeId", nodeId, "workers", workers.size());
+	}
+
+	public void shutdown() {
+		running = false;
+		for (Thread t : workers) t.interrupt();
+		leases.shutdownNow();
+	}
+
+	/** Whether a broadcast to {@code audience} devices is split across servers. */
+	public boolean handles(int audience) {
+		return audience >= minDevices;
+	}
+
+	/**
+	 * Splits the broadcast into units and waits, on the job's worker, until every unit is done.
+	 *
+	 * @param label null for every device of the project
+	 */
+	public SendResult run(SendJob job, String project, String label, String title, String body)
+			throws SQLException, InterruptedException {
+		long start = System.currentTimeMillis();
+		List<int[]> units = new ArrayList<>();
+		int afterId = 0;
+		while (true) {
+			int[] ids = db.getDeviceIds(project, label, afterId, unitSize);
+			if (ids.length == 0) break;
+			units.add(new int[] {afterId, ids[ids.length - 1], ids.length});
+			afterId = ids[ids.length - 1];
+			if (ids.length < unitSize) break;
+		}
+		if (units.isEmpty()) {
+			throw new IllegalArgumentException(label == null ? "No registered tokens found" : "No devices with label " + label);
+		}
+		long broadcastId = db.insertBroadcast(job.getId(), project, label, title, body, units);
+		LOG.info("sharded broadcast started", "jobId", job.getId(), "broadcastId", broadcastId, "project", project,
+				"units", units.size());
+
+		BroadcastProgress progress;
+		while (true) {
+			Thread.sleep(pollMs);
+			try {
+				progress = db.getBroadcastProgress(broadcastId);
+			} catch (SQLException e) {
+				// The units carry on without us; keep waiting for the database to come back
+				LOG.warn("broadcast progress unavailable", "broadcastId", broadcastId, "error", e.getMessage());
+				continue;
+			}
+			job.setProgress(progress.success, progress.failed, progress.retries, progress.pruned);
+			if (progress.isDone()) break;
+		}
+		long elapsedMs = System.currentTimeMillis() - start;
+		SendResult result = new SendResult(null, 0);
+		result.addTotals(progress.success, progress.failed);
+		result.finish(progress.success + progress.failed, progress.retries, progress.pruned, elapsedMs);
+		LOG.info("sharded broadcast finished", "jobId", job.getId(), "broadcastId", broadcastId, "units", progress.units,
+				"nodes", progress.nodes, "success", progress.success, "failed", progress.failed, "elapsedMs", elapsedMs);
+		return result;
+	}
+
+	private void work(String project) {
+		while (running) {
+			try {
+				BroadcastUnit unit = db.claimBroadcastUnit(project, nodeId, leaseMs);
+				if (unit == null) {
+					Thread.sleep(pollMs);
+					continue;
+				}
+				dispatch(unit);
+			} catch (InterruptedException e) {
+				return;
+			} catch (SQLException e) {
+				LOG.warn("broadcast unit claim failed", "error", e.getMessage());
+				try {
+					Thread.sleep(pollMs);
+				} catch (InterruptedException stop) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void dispatch(BroadcastUnit unit) throws SQLException, InterruptedException {
+		if (unit.attempts > maxAttempts) {
+			// Every earlier claim died or failed; stop the broadcast from waiting on it forever
+			LOG.warn("broadcast unit abandoned", "unitId", unit.id, "broadcastId", unit.broadcastId, "attempts", unit.attempts - 1);
+			if (db.updateBroadcastUnit(unit, true, 0, 0, unit.devices, 0, 0)) UNITS_ABANDONED.inc();
+			return;
+		}
+		UnitProgress progress = new UnitProgress();
+		long renewMs = leaseMs / 3;
+		ScheduledFuture<?> renewal = leases.scheduleWithFixedDelay(() -> renew(unit, progress), renewMs, renewMs, TimeUnit.MILLISECONDS);
+		active.add(unit);
+		try {
+			FCMSender fcm = senders.get(unit.project);
+			if (fcm == null) throw new IllegalStateException("project " + unit.project + " is not configured on this server");
+			Iterator<String> tokens = db.getBroadcastTokens(unit).iterator();
+			// Once another server holds the unit, dispatch nothing more of it
+			Iterator<String> untilLost = new Iterator<String>() {
+				@Override
+				public boolean hasNext() {
+					return !progress.lost && tokens.hasNext();
+				}
+
+				@Override
+				public String next() {
+					return tokens.next();
+				}
+			};
+			SendResult result = fcm.sendToTokens(untilLost, unit.title, unit.body, progress);
+			renewal.cancel(false);
+			if (!progress.lost && db.updateBroadcastUnit(unit, true, 0, result.getSuccessCount(), result.getFailureCount(),
+					result.getRetryCount(), result.getPrunedCount())) {
+				UNITS_DONE.inc();
+			} else {
+				UNITS_LOST.inc();
+				LOG.warn("broadcast unit lease lost", "unitId", unit.id, "broadcastId", unit.broadcastId, "sent", result.getSuccessCount());
+			}
+		} catch (InterruptedException e) {
+			throw e;
+		} catch (Exception e) {
+			// The lease runs out and the unit is claimed again, here or on another server
+			LOG.warn("broadcast unit failed", "unitId", unit.id, "broadcastId", unit.broadcastId, "attempt", unit.attempts,
+					"error", e.getMessage());
+		} finally {
+			renewal.cancel(false);
+			active.remove(unit);
+		}
+	}
+
+	private void renew(BroadcastUnit unit, UnitProgress progress) {
+		if (progress.lost) return;
+		try {
+			if (!db.updateBroadcastUnit(unit, false, leaseMs, progress.success.get(), progress.failed.get(), progress.retries.get(),
+					progress.pruned.get())) {
+				progress.lost = true;
+			}
+		} catch (SQLException e) {
+			// The next renewal may still make it before the lease runs out
+			LOG.warn("broadcast unit lease renewal failed", "unitId", unit.id, "error", e.getMessage());
+		}
+	}
+
+	private void sweep(long retainMs) {
+		try {
+			int deleted = db.deleteBroadcasts(System.currentTimeMillis() - retainMs);
+			if (deleted > 0) LOG.info("old broadcasts deleted", "count", deleted);
+		} catch (SQLException e) {
+			LOG.warn("broadcast sweep failed", "error", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.example.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel. A timer lands in the bucket of its deadline tick modulo the wheel size, carrying
+ * the number of full rotations left; each tick the worker visits one bucket, runs what is due and counts
+ * down the rest. Scheduling and cancelling are O(1) however far out or numerous the timers are, at the
+ * cost of firing up to one tick late. Due tasks are handed to {@code executor}, so a slow task does not
+ * delay the wheel.
+ */
+public class TimerWheel {
+	private static final Log LOG = Log.get(TimerWheel.class);
+
+	public static final class Timeout {
+		final Runnable task;
+		final long deadlineMs;
+		/** Only read and written by the worker thread. */
+		long remainingRounds;
+		volatile boolean cancelled;
+
+		Timeout(Runnable task, long deadlineMs) {
+			this.task = task;
+			this.deadlineMs = deadlineMs;
+		}
+
+		public long getDeadlineMs() {
+			return deadlineMs;
+		}
+
+		/** The worker drops a cancelled timer the next time it passes its bucket. */
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+
+	private final long tickMs;
+	private final List<Timeout>[] buckets;
+	private final int mask;
+	private final Executor executor;
+	private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final long startMs = System.currentTimeMillis();
+	private final Thread worker;
+	private volatile boolean stopped;
+	private long tick;
+
+	@SuppressWarnings("unchecked")
+	public TimerWheel(String name, long tickMs, int wheelSize, Executor executor) {
+		if (tickMs < 1) throw new IllegalArgumentException("tickMs must be >= 1");
+		int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+		this.tickMs = tickMs;
+		this.buckets = (List<Timeout>[]) new List<?>[size];
+		for (int i = 0; i < size; i++) buckets[i] = new ArrayList<>();
+		this.mask = size - 1;
+		this.executor = executor;
+		this.worker = new Thread(this::run, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/** Runs {@code task} at or shortly after {@code deadlineMs}; a deadline in the past fires on the next tick. */
+	public Timeout schedule(Runnable task, long deadlineMs) {
+		Timeout timeout = new Timeout(task, deadlineMs);
+		pending.incrementAndGet();
+		incoming.add(timeout);
+		return timeout;
+	}
+
+	/** Timers scheduled and not yet fired, including cancelled ones not yet swept. */
+	public int pendingCount() {
+		return pending.get();
+	}
+
+	public void shutdown() {
+		stopped = true;
+		worker.interrupt();
+	}
+
+	private void run() {
+		while (!stopped) {
+			long sleepMs = startMs + (tick + 1) * tickMs - System.currentTimeMillis();
+			if (sleepMs > 0) {
+				try {
+					Thread.sleep(sleepMs);
+				} catch (InterruptedException e) {
+					return;
+				}
+				continue;
+			}
+			transferIncoming();
+			expire(buckets[(int) (tick & mask)]);
+			tick++;
+		}
+	}
+
+	private void transferIncoming() {
+		Timeout t;
+		while ((t = incoming.poll()) != null) {
+			if (t.cancelled) {
+				pending.decrementAndGet();
+				continue;
+			}
+			// Bucket k is visited at startMs + (k + 1) * tickMs, so the first visit at or after the deadline
+			long due = Math.max(tick, Math.floorDiv(t.deadlineMs - startMs + tickMs - 1, tickMs) - 1);
+			t.remainingRounds = (due - tick) / buckets.length;
+			buckets[(int) (due & mask)].add(t);
+		}
+	}
+
+	private void expire(List<Timeout> bucket) {
+		int kept = 0;
+		for (int i = 0; i < bucket.size(); i++) {
+			Timeout t = bucket.get(i);
+			if (t.cancelled) {
+				pending.decrementAndGet();
+			} else if (t.remainingRounds <= 0) {
+				pending.decrementAndGet();
+				fire(t);
+			} else {
+				t.remainingRounds--;
+				bucket.set(kept++, t);
+			}
+		}
+		bucket.subList(kept, bucket.size()).clear();
+	}
+
+	private void fire(Timeout t) {
+		try {
+			executor.execute(t.task);
+		} catch (RejectedExecutionException e) {
+			LOG.warn("timer task rejected", "deadlineMs", t.deadlineMs);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package com.example.server;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Streams every token of one project (or every token of it with one label) in {@code id} order, one
+ * keyset page at a time, optionally starting after a given id. A background
+ * task loads the next pages while the caller is still consuming the current one; at most
+ * {@link #PREFETCH_PAGES} pages are buffered, so memory is bounded by the page size.
+ */
+public class TokenCursor implements Iterator<String>, AutoCloseable {
+	static final int PREFETCH_PAGES = 2;
+	private static final String SQL = "SELECT id, token FROM device WHERE project = ? AND id > ? ORDER BY id LIMIT ?";
+	private static final String SQL_BY_LABEL = "SELECT id, token FROM device WHERE project = ? AND label = ? AND id > ? ORDER BY id LIMIT ?";
+	private static final Page END = new Page(0);
+	private static final Metrics.Histogram PAGE_TIME = DatabaseHelper.queryTimer("streamAllTokens");
+	private static final Metrics.Histogram LABEL_PAGE_TIME = DatabaseHelper.queryTimer("streamTokensByLabel");
+
+	/** One page of tokens with their device ids. */
+	private static final class Page {
+		final int[] ids;
+		final String[] tokens;
+		int size;
+
+		Page(int capacity) {
+			this.ids = new int[capacity];
+			this.tokens = new String[capacity];
+		}
+	}
+
+	private final BlockingQueue<Page> pages = new ArrayBlockingQueue<>(PREFETCH_PAGES);
+	private final Future<?> producer;
+	private volatile boolean closed;
+	/** Whatever ended the producer early; handed to the consumer behind the terminal page. */
+	private volatile Throwable failure;
+	private Page current = END;
+	private int position;
+	private int lastId;
+	private boolean done;
+
+	TokenCursor(DataSource dataSource, String project, String label, int afterId, int pageSize, ExecutorService executor) {
+		this.producer = executor.submit(() -> produce(dataSource, project, label, afterId, pageSize));
+	}
+
+	/** Blocks until the first page is loaded; reports a failed first query as the SQLException it was. */
+	public boolean isEmpty() throws SQLException {
+		try {
+			return !hasNext();
+		} catch (IllegalStateException e) {
+			if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (position == current.size) {
+			if (done) return false;
+			Page page;
+			try {
+				page = pages.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while reading tokens", e);
+			}
+			if (page == END) {
+				done = true;
+				if (failure != null) throw new IllegalStateException("Failed to read tokens", failure);
+				return false;
+			}
+			current = page;
+			position = 0;
+		}
+		return true;
+	}
+
+	@Override
+	public String next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		lastId = current.ids[position];
+		return current.tokens[position++];
+	}
+
+	/** Device id of the token last returned by {@link #next()}; 0 before the first one. */
+	public int lastId() {
+		return lastId;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		producer.cancel(true);
+		pages.clear();
+	}
+
+	private void produce(DataSource dataSource, String project, String label, int afterId, int pageSize) {
+		int lastId = afterId;
+		try {
+			while (!closed) {
+				Page page = new Page(pageSize);
+				// Borrow a connection per page so a long broadcast does not pin one for its whole duration
+				long start = System.nanoTime();
+				try (Connection conn = dataSource.getConnection(); PreparedStatement ps = conn.prepareStatement(label == null ? SQL : SQL_BY_LABEL)) {
+					ps.setFetchSize(pageSize);
+					int p = 1;
+					ps.setString(p++, project);
+					if (label != null) ps.setString(p++, label);
+					ps.setInt(p++, lastId);
+					ps.setInt(p, pageSize);
+					try (ResultSet rs = ps.executeQuery()) {
+						while (rs.next()) {
+							lastId = rs.getInt(1);
+							page.ids[page.size] = lastId;
+							page.tokens[page.size++] = rs.getString(2);
+						}
+					}
+				} finally {
+					(label == null ? PAGE_TIME : LABEL_PAGE_TIME).observeSince(start);
+				}
+				if (page.size > 0) pages.put(page);
+				if (page.size < pageSize) break;
+			}
+			pages.put(END);
+		} catch (InterruptedException ignored) {
+			// closed by the consumer
+		} catch (SQLException | RuntimeException | Error e) {
+			// Anything else must still end the stream, or the consumer would wait on take() forever
+			failure = e;
+			try {
+				pages.put(END);
+			} catch (InterruptedException ignored) {
+				// closed by the consumer
+			}
+		}
+	}
+}
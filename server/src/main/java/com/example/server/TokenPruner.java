@@ -0,0 +1,111 @@
+package com.example.server;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Removes tokens that FCM reports as permanently dead (404 UNREGISTERED, or 400 INVALID_ARGUMENT about
+ * the registration token) from the device table, along with stored tokens too malformed to be sent at all.
+ * Tokens are collected per broadcast and deleted in batches on a single writer thread, so HTTP callbacks
+ * never wait on the database.
+ */
+public class TokenPruner {
+	private static final Log LOG = Log.get(TokenPruner.class);
+	private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "db-token-pruner");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final DatabaseHelper db;
+	private final int batchSize;
+
+	public TokenPruner(DatabaseHelper db, int batchSize) {
+		this.db = db;
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	public Session newSession(SendProgress progress) {
+		return new Session(progress);
+	}
+
+	public static boolean isDeadToken(int statusCode, String body) {
+		return isDeadToken(statusCode, FcmError.parse(body));
+	}
+
+	/** @param error the parsed response body; null if it was not an FCM error */
+	public static boolean isDeadToken(int statusCode, FcmError error) {
+		if ((statusCode != 404 && statusCode != 400) || error == null) return false;
+		// A bare NOT_FOUND can also mean a wrong project id, which must never prune the whole table
+		if (statusCode == 404) return "UNREGISTERED".equals(error.code);
+		// INVALID_ARGUMENT also covers malformed payloads, so only prune when FCM blames the token
+		return "INVALID_ARGUMENT".equals(error.code) && error.message != null && error.message.contains("registration token");
+	}
+
+	/** Dead tokens for one broadcast. */
+	public final class Session {
+		private final SendProgress progress;
+		private final List<Future<?>> pending = new ArrayList<>();
+		private final AtomicInteger pruned = new AtomicInteger();
+		private List<String> buffer = new ArrayList<>();
+
+		private Session(SendProgress progress) {
+			this.progress = progress;
+		}
+
+		public void add(String token) {
+			List<String> batch = null;
+			synchronized (this) {
+				buffer.add(token);
+				if (buffer.size() >= batchSize) {
+					batch = buffer;
+					buffer = new ArrayList<>();
+				}
+			}
+			if (batch != null) submit(batch);
+		}
+
+		/** Deletes whatever is still buffered and waits for every batch of this session. */
+		public int finish() throws InterruptedException {
+			List<String> batch;
+			synchronized (this) {
+				batch = buffer;
+				buffer = new ArrayList<>();
+			}
+			if (!batch.isEmpty()) submit(batch);
+			List<Future<?>> waits;
+			synchronized (pending) {
+				waits = new ArrayList<>(pending);
+			}
+			for (Future<?> f : waits) {
+				try {
+					f.get();
+				} catch (ExecutionException ignored) {
+					// logged by the writer task
+				}
+			}
+			return pruned.get();
+		}
+
+		private void submit(List<String> batch) {
+			Future<?> f = WRITER.submit(() -> {
+				try {
+					int n = db.deleteTokens(batch);
+					pruned.addAndGet(n);
+					progress.onPruned(n);
+				} catch (SQLException e) {
+					LOG.warn("failed to prune dead tokens", "count", batch.size(), "error", e.getMessage());
+				}
+			});
+			synchronized (pending) {
+				pending.add(f);
+			}
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package com.example.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mirrors large label segments onto FCM topics, so a segment send is one {@code messages:send} with a
+ * topic target instead of one request per device. Membership changes are applied in batches through the
+ * Instance ID {@code batchAdd}/{@code batchRemove} API and recorded in {@code topic_subscription}, so each
+ * sync only touches devices that joined or left the segment since the last one. Topics live in each
+ * Firebase project's own namespace, so every project's segments are mirrored with that project's credentials.
+ */
+public class TopicSync {
+	private static final Log LOG = Log.get(TopicSync.class);
+	private static final String TOPIC_PREFIX = "seg_";
+	private static final Metrics.Counter SUBSCRIBED = Metrics.counter("topic_sync_tokens_total",
+			"Tokens added to or removed from segment topics", "op", "add");
+	private static final Metrics.Counter UNSUBSCRIBED = Metrics.counter("topic_sync_tokens_total",
+			"Tokens added to or removed from segment topics", "op", "remove");
+
+	private final DatabaseHelper db;
+	private final FCMSenderRegistry senders;
+	private final HttpClient httpClient;
+	private final String iidBaseUrl;
+	private final int batchSize;
+	private final int minSegmentSize;
+	private final Set<String> syncing = ConcurrentHashMap.newKeySet();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "fcm-topic-sync");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public TopicSync(DatabaseHelper db, FCMSenderRegistry senders, String iidBaseUrl, int batchSize, int minSegmentSize) {
+		this.db = db;
+		this.senders = senders;
+		this.httpClient = FanOutSender.newHttpClient(Duration.ofSeconds(10));
+		this.iidBaseUrl = iidBaseUrl.endsWith("/") ? iidBaseUrl.substring(0, iidBaseUrl.length() - 1) : iidBaseUrl;
+		// The Instance ID API accepts at most 1000 tokens per call
+		this.batchSize = Math.max(1, Math.min(1000, batchSize));
+		this.minSegmentSize = minSegmentSize;
+	}
+
+	/** Segments at least this large are sent through their topic. */
+	public int getMinSegmentSize() {
+		return minSegmentSize;
+	}
+
+	/** Syncs every segment that qualifies for a topic every {@code intervalSec}. */
+	public void start(long intervalSec) {
+		scheduler.scheduleWithFixedDelay(this::syncAll, intervalSec, intervalSec, TimeUnit.SECONDS);
+	}
+
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * Topic name for a label: label characters FCM allows are kept, the rest percent-encoded, so distinct
+	 * labels never share a topic. Very long labels fall back to a digest.
+	 */
+	public static String topicFor(String label) {
+		StringBuilder sb = new StringBuilder(TOPIC_PREFIX);
+		for (byte b : label.getBytes(StandardCharsets.UTF_8)) {
+			int c = b & 0xff;
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == '~') {
+				sb.append((char) c);
+			} else {
+				sb.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+						.append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+			}
+		}
+		if (sb.length() <= 200) return sb.toString();
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(label.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(TOPIC_PREFIX).append("h_");
+			for (byte b : digest) hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static boolean isValidTopicName(String topic) {
+		if (topic == null || topic.isEmpty() || topic.length() > 900) return false;
+		for (int i = 0; i < topic.length(); i++) {
+			char c = topic.charAt(i);
+			boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| c == '-' || c == '_' || c == '.' || c == '~' || c == '%';
+			if (!ok) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Brings the label's topic in the project in line with the device table.
+	 *
+	 * @return true if every pending change was applied, so the topic reaches exactly the segment
+	 */
+	public boolean sync(String project, String label) throws SQLException, IOException, InterruptedException {
+		FCMSender fcm = senders.get(project);
+		if (fcm == null) return false;
+		// A periodic sync and a send may race for the same segment; let one of them do the work
+		String key = project + '\0' + label;
+		if (!syncing.add(key)) return false;
+		try {
+			String topic = topicFor(label);
+			boolean complete = apply(fcm, project, topic, label, true) && apply(fcm, project, topic, label, false);
+			LOG.debug("topic synced", "project", project, "topic", topic, "complete", complete);
+			return complete;
+		} finally {
+			syncing.remove(key);
+		}
+	}
+
+	private boolean apply(FCMSender fcm, String project, String topic, String label, boolean add)
+			throws SQLException, IOException, InterruptedException {
+		while (true) {
+			List<String> batch = add ? db.getTokensToSubscribe(project, topic, label, batchSize)
+					: db.getTokensToUnsubscribe(project, topic, label, batchSize);
+			if (batch.isEmpty()) return true;
+			List<String> done = call(fcm, add ? "batchAdd" : "batchRemove", topic, batch);
+			if (add) {
+				db.addTopicSubscriptions(project, topic, done);
+				SUBSCRIBED.add(done.size());
+			} else {
+				db.removeTopicSubscriptions(project, topic, done);
+				UNSUBSCRIBED.add(done.size());
+			}
+			// Whatever failed transiently is still pending; leave it for the next sync rather than spin
+			if (done.size() < batch.size()) return false;
+			if (batch.size() < batchSize) return true;
+		}
+	}
+
+	/**
+	 * @return the tokens whose change is settled: applied, or rejected because the token itself is dead
+	 */
+	private List<String> call(FCMSender fcm, String method, String topic, List<String> tokens) throws IOException, InterruptedException {
+		JsonObject request = new JsonObject();
+		request.addProperty("to", "/topics/" + topic);
+		JsonArray array = new JsonArray();
+		for (String t : tokens) array.add(t);
+		request.add("registration_tokens", array);
+		HttpRequest httpRequest = HttpRequest.newBuilder(URI.create(iidBaseUrl + "/iid/v1:" + method))
+				.timeout(Duration.ofSeconds(30))
+				.header("Content-Type", "application/json; charset=UTF-8")
+				.header("Authorization", "Bearer " + fcm.getAccessToken())
+				.header("access_token_auth", "true")
+				.POST(HttpRequest.BodyPublishers.ofString(request.toString(), StandardCharsets.UTF_8))
+				.build();
+		HttpResponse<String> response = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+		if (response.statusCode() != 200) {
+			throw new IOException("Instance ID " + method + " failed: " + response.statusCode() + " " + response.body());
+		}
+		JsonArray results = JsonParser.parseString(response.body()).getAsJsonObject().getAsJsonArray("results");
+		List<String> done = new ArrayList<>(tokens.size());
+		for (int i = 0; i < tokens.size() && results != null && i < results.size(); i++) {
+			JsonElement r = results.get(i);
+			String error = r.isJsonObject() && r.getAsJsonObject().has("error") ? r.getAsJsonObject().get("error").getAsString() : null;
+			if (error == null || "NOT_FOUND".equals(error) || "INVALID_ARGUMENT".equals(error)) done.add(tokens.get(i));
+		}
+		return done;
+	}
+
+	private void syncAll() {
+		for (String project : senders.projects()) {
+			try {
+				for (Map.Entry<String, Integer> segment : db.getSegmentSizes(project).entrySet()) {
+					if (segment.getValue() < minSegmentSize) break;
+					sync(project, segment.getKey());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception e) {
+				// One project's failure (e.g. its credentials) must not hold back the others
+				LOG.warn("topic sync failed", "project", project, "error", e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package com.example.server;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FanOutSenderTest {
+	/**
+	 * Answers each request by the token in its body: {@code ok*} 200, {@code flaky*} 503 on the first
+	 * attempt then 200, {@code down*} always 503, {@code bad*} 400.
+	 */
+	private HttpServer fcm;
+	private URI uri;
+	private final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+	private final HttpClient client = HttpClient.newHttpClient();
+
+	@BeforeEach
+	void setUp() throws IOException {
+		fcm = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		fcm.setExecutor(Executors.newFixedThreadPool(4));
+		fcm.createContext("/send", exchange -> {
+			String token = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+			int attempt = attempts.computeIfAbsent(token, t -> new AtomicInteger()).incrementAndGet();
+			int status;
+			if (token.startsWith("flaky")) status = attempt == 1 ? 503 : 200;
+			else if (token.startsWith("down")) status = 503;
+			else if (token.startsWith("bad")) status = 400;
+			else status = 200;
+			byte[] body = ("{\"name\":\"" + token + "\"}").getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(status, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		fcm.start();
+		uri = URI.create("http://127.0.0.1:" + fcm.getAddress().getPort() + "/send");
+	}
+
+	@AfterEach
+	void tearDown() {
+		fcm.stop(0);
+	}
+
+	private static final Function<String, HttpRequest.BodyPublisher> PAYLOAD = HttpRequest.BodyPublishers::ofString;
+
+	/** Final outcome per token: the HTTP status, or -1 for an error. */
+	private static final class Outcomes implements FanOutSender.Callback {
+		final Map<String, Integer> status = new ConcurrentHashMap<>();
+		final Map<String, Throwable> errors = new ConcurrentHashMap<>();
+		final AtomicInteger retries = new AtomicInteger();
+
+		@Override
+		public void onResponse(int index, String token, HttpResponse<String> response, long latencyNanos) {
+			status.put(token, response.statusCode());
+		}
+
+		@Override
+		public void onError(int index, String token, Throwable error, long latencyNanos) {
+			status.put(token, -1);
+			errors.put(token, error);
+		}
+
+		@Override
+		public void onRetry(int index, String token, int attempt, long delayMs) {
+			retries.incrementAndGet();
+		}
+	}
+
+	private FanOutSender sender(int maxAttempts, int budgetMin, int budgetPercent) {
+		return new FanOutSender(client, 4, Duration.ofSeconds(5), new RetryPolicy(maxAttempts, 1, 5, budgetMin, budgetPercent));
+	}
+
+	@Test
+	void retriesTransientFailuresUntilTheySucceed() throws Exception {
+		Outcomes outcomes = new Outcomes();
+		FanOutSender.Result result = sender(4, 100, 0).send(uri, "t",
+				List.of("ok0", "flaky0", "ok1", "flaky1", "bad0").iterator(), PAYLOAD, outcomes);
+
+		assertEquals(5, result.getTokenCount());
+		assertEquals(2, result.getRetryCount());
+		assertEquals(2, outcomes.retries.get());
+		assertEquals(Map.of("ok0", 200, "flaky0", 200, "ok1", 200, "flaky1", 200, "bad0", 400), outcomes.status);
+		// A 400 is final: it is reported, not retried
+		assertEquals(1, attempts.get("bad0").get());
+		assertEquals(2, attempts.get("flaky0").get());
+	}
+
+	@Test
+	void givesUpAfterMaxAttempts() throws Exception {
+		Outcomes outcomes = new Outcomes();
+		FanOutSender.Result result = sender(3, 100, 0).send(uri, "t", List.of("down0").iterator(), PAYLOAD, outcomes);
+
+		assertEquals(2, result.getRetryCount());
+		assertEquals(3, attempts.get("down0").get());
+		assertEquals(503, outcomes.status.get("down0"));
+	}
+
+	@Test
+	void stopsRetryingWhenTheBudgetRunsOut() throws Exception {
+		Outcomes outcomes = new Outcomes();
+		List<String> tokens = List.of("down0", "down1", "down2", "down3", "down4", "down5");
+		FanOutSender.Result result = sender(4, 2, 0).send(uri, "t", tokens.iterator(), PAYLOAD, outcomes);
+
+		assertEquals(2, result.getRetryCount());
+		int sent = 0;
+		for (String token : tokens) {
+			sent += attempts.get(token).get();
+			assertEquals(503, outcomes.status.get(token));
+		}
+		assertEquals(tokens.size() + 2, sent);
+	}
+
+	@Test
+	void malformedTokenFailsAloneAndTheSendCarriesOn() throws Exception {
+		Outcomes outcomes = new Outcomes();
+		Function<String, HttpRequest.BodyPublisher> payload = token -> {
+			if (token.contains("\"")) throw new IllegalArgumentException("malformed token");
+			return PAYLOAD.apply(token);
+		};
+		FanOutSender.Result result = sender(1, 0, 0).send(uri, "t", List.of("ok0", "x\"y", "ok1").iterator(), payload, outcomes);
+
+		assertEquals(3, result.getTokenCount());
+		assertEquals(200, outcomes.status.get("ok0"));
+		assertEquals(200, outcomes.status.get("ok1"));
+		assertTrue(outcomes.errors.get("x\"y") instanceof IllegalArgumentException);
+		assertNull(attempts.get("x\"y"));
+	}
+
+	@Test
+	void interruptAbortsAPacedSendWithoutDispatchingTheRest() throws Exception {
+		Outcomes outcomes = new Outcomes();
+		// The first token is due now, the second only after a minute
+		FanOutSender.Pacer pacer = FanOutSender.spread(2, TimeUnit.MINUTES.toMillis(2));
+		AtomicReference<Throwable> thrown = new AtomicReference<>();
+		CountDownLatch finished = new CountDownLatch(1);
+		Thread sending = new Thread(() -> {
+			try {
+				sender(1, 0, 0).send(uri, () -> "t", List.of("ok0", "ok1").iterator(), PAYLOAD, outcomes, pacer);
+			} catch (Throwable t) {
+				thrown.set(t);
+			} finally {
+				finished.countDown();
+			}
+		});
+		sending.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!outcomes.status.containsKey("ok0") && System.currentTimeMillis() < deadline) Thread.sleep(10);
+		sending.interrupt();
+
+		assertTrue(finished.await(5, TimeUnit.SECONDS));
+		assertTrue(thrown.get() instanceof InterruptedException);
+		assertEquals(200, outcomes.status.get("ok0"));
+		assertFalse(attempts.containsKey("ok1"));
+	}
+}
@@ -0,0 +1,126 @@
+package com.example.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdempotencyStoreTest {
+	private static final long TTL_MS = TimeUnit.HOURS.toMillis(1);
+	private static final String FINGERPRINT = IdempotencyStore.fingerprint("send", java.util.Map.of("title", new String[] {"t"}));
+
+	private DatabaseHelper db;
+	private SendJobManager jobs;
+	private final AtomicInteger runs = new AtomicInteger();
+	/** Holds submitted jobs running until released, so duplicates arrive while the first is in progress. */
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final SendJobManager.Task task = job -> {
+		runs.incrementAndGet();
+		release.await(5, TimeUnit.SECONDS);
+		return new SendResult(null, 0);
+	};
+
+	@BeforeEach
+	void setUp() throws Exception {
+		db = new DatabaseHelper(TestDatabase.create());
+		jobs = new SendJobManager(4, 100, 100);
+	}
+
+	@AfterEach
+	void tearDown() {
+		release.countDown();
+		jobs.shutdown();
+	}
+
+	private IdempotencyStore store(long claimLeaseMs) {
+		return new IdempotencyStore(db, jobs, 100, TTL_MS, claimLeaseMs);
+	}
+
+	@Test
+	void concurrentDuplicatesCollapseIntoOneJob() throws Exception {
+		IdempotencyStore store = store(60_000);
+		ExecutorService callers = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<IdempotencyStore.Outcome>> outcomes = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				outcomes.add(callers.submit(() -> store.submit("k1", FINGERPRINT, "default", "send", task)));
+			}
+			int created = 0;
+			String jobId = null;
+			for (Future<IdempotencyStore.Outcome> f : outcomes) {
+				IdempotencyStore.Outcome o = f.get(5, TimeUnit.SECONDS);
+				if (o.kind == IdempotencyStore.Kind.NEW) created++;
+				else assertEquals(IdempotencyStore.Kind.REPLAYED, o.kind);
+				if (jobId == null) jobId = o.jobId;
+				assertEquals(jobId, o.jobId);
+			}
+			assertEquals(1, created);
+		} finally {
+			callers.shutdownNow();
+		}
+		release.countDown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (runs.get() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+		assertEquals(1, runs.get());
+	}
+
+	@Test
+	void anotherServerReplaysTheStoredJob() throws Exception {
+		IdempotencyStore.Outcome first = store(60_000).submit("k2", FINGERPRINT, "default", "send", task);
+		assertEquals(IdempotencyStore.Kind.NEW, first.kind);
+
+		// A second instance has nothing in memory and finds the key in the table
+		IdempotencyStore.Outcome again = store(60_000).submit("k2", FINGERPRINT, "default", "send", task);
+		assertEquals(IdempotencyStore.Kind.REPLAYED, again.kind);
+		assertEquals(first.jobId, again.jobId);
+
+		IdempotencyStore.Outcome other = store(60_000).submit("k2", "different", "default", "send", task);
+		assertEquals(IdempotencyStore.Kind.MISMATCH, other.kind);
+	}
+
+	@Test
+	void liveClaimWithoutJobIsInProgress() throws Exception {
+		// Another server claimed the key and has not recorded its job yet
+		assertTrue(db.claimIdempotencyKey("k3", FINGERPRINT, 60_000));
+
+		IdempotencyStore.Outcome o = store(60_000).submit("k3", FINGERPRINT, "default", "send", task);
+		assertEquals(IdempotencyStore.Kind.IN_PROGRESS, o.kind);
+		assertEquals(0, runs.get());
+	}
+
+	@Test
+	void abandonedClaimIsTakenOverOnceItsLeaseRunsOut() throws Exception {
+		// The claiming server died before recording a job; its lease has already run out
+		assertTrue(db.claimIdempotencyKey("k4", FINGERPRINT, 0));
+		Thread.sleep(5);
+
+		IdempotencyStore.Outcome o = store(60_000).submit("k4", FINGERPRINT, "default", "send", task);
+		assertEquals(IdempotencyStore.Kind.NEW, o.kind);
+		assertEquals(o.jobId, db.findIdempotencyKey("k4", TTL_MS).jobId);
+	}
+
+	@Test
+	void scheduledSendIsStoredOnce() throws Exception {
+		AtomicInteger scheduled = new AtomicInteger();
+		IdempotencyStore.Scheduler scheduler = () -> new ScheduledSend(scheduled.incrementAndGet(), "send", "default", "t", "b",
+				null, System.currentTimeMillis() + 60_000, 0, ScheduledSend.Status.PENDING, null, 0, 0);
+
+		IdempotencyStore.Outcome first = store(60_000).schedule("k5", FINGERPRINT, scheduler);
+		assertEquals(IdempotencyStore.Kind.NEW, first.kind);
+		IdempotencyStore.Outcome again = store(60_000).schedule("k5", FINGERPRINT, scheduler);
+		assertEquals(IdempotencyStore.Kind.REPLAYED, again.kind);
+		assertEquals(first.scheduleId, again.scheduleId);
+		assertEquals(1, scheduled.get());
+	}
+}
@@ -0,0 +1,116 @@
+package com.example.server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedBroadcastsTest {
+	private static final long LEASE_MS = 60_000;
+
+	private DatabaseHelper db;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		db = new DatabaseHelper(TestDatabase.create());
+		TestDatabase.addDevices(db, "t", 11, null, "default");
+		TestDatabase.addDevices(db, "shop", 3, null, "shop");
+	}
+
+	private long insertBroadcast(String project, List<int[]> units) throws Exception {
+		return db.insertBroadcast("job-1", project, null, "title", "body", units);
+	}
+
+	@Test
+	void nodesClaimEveryUnitOnceAndTheBroadcastCompletes() throws Exception {
+		// No sender registry is needed: the test's threads play the nodes that claim and close the units
+		ShardedBroadcasts sharded = new ShardedBroadcasts(db, null, "accepting", 4, 1, LEASE_MS, 10, 3);
+		ExecutorService threads = Executors.newFixedThreadPool(3);
+		try {
+			SendJob job = new SendJob("send");
+			Future<SendResult> run = threads.submit(() -> sharded.run(job, "default", null, "title", "body"));
+			List<Long> claimed = Collections.synchronizedList(new ArrayList<>());
+			List<String> sent = Collections.synchronizedList(new ArrayList<>());
+			List<Future<?>> nodes = new ArrayList<>();
+			for (String node : new String[] {"node-a", "node-b"}) {
+				nodes.add(threads.submit(() -> {
+					while (!run.isDone()) {
+						BroadcastUnit unit = db.claimBroadcastUnit("default", node, LEASE_MS);
+						if (unit == null) {
+							Thread.sleep(5);
+							continue;
+						}
+						claimed.add(unit.id);
+						List<String> tokens = db.getBroadcastTokens(unit);
+						sent.addAll(tokens);
+						assertTrue(db.updateBroadcastUnit(unit, true, 0, tokens.size(), 0, 0, 0));
+					}
+					return null;
+				}));
+			}
+			SendResult result = run.get(10, TimeUnit.SECONDS);
+			for (Future<?> node : nodes) node.get(5, TimeUnit.SECONDS);
+
+			// 11 devices in units of 4: (0, 4], (4, 8], (8, 11]
+			assertEquals(3, claimed.size());
+			assertEquals(3, new HashSet<>(claimed).size());
+			assertEquals(11, sent.size());
+			assertEquals(11, new HashSet<>(sent).size());
+			assertEquals(11, result.getSuccessCount());
+			assertEquals(0, result.getFailureCount());
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+	@Test
+	void leasedUnitIsSkippedUntilTheLeaseRunsOut() throws Exception {
+		insertBroadcast("default", List.of(new int[] {0, 11, 11}));
+
+		BroadcastUnit first = db.claimBroadcastUnit("default", "node-a", 0);
+		assertNotNull(first);
+		assertEquals(1, first.attempts);
+		Thread.sleep(5);
+
+		// node-a's lease has run out: node-b takes the unit over and node-a's claim is void
+		BroadcastUnit second = db.claimBroadcastUnit("default", "node-b", LEASE_MS);
+		assertNotNull(second);
+		assertEquals(first.id, second.id);
+		assertEquals(2, second.attempts);
+		assertNull(db.claimBroadcastUnit("default", "node-a", LEASE_MS));
+		assertFalse(db.updateBroadcastUnit(first, true, 0, 11, 0, 0, 0));
+		assertTrue(db.updateBroadcastUnit(second, false, LEASE_MS, 5, 0, 0, 0));
+		assertTrue(db.updateBroadcastUnit(second, true, 0, 11, 0, 0, 0));
+
+		BroadcastProgress progress = db.getBroadcastProgress(first.broadcastId);
+		assertTrue(progress.isDone());
+		assertEquals(11, progress.success);
+		assertEquals(1, progress.nodes);
+	}
+
+	@Test
+	void claimsOnlyUnitsOfTheProject() throws Exception {
+		long broadcastId = insertBroadcast("shop", List.of(new int[] {0, 100, 3}));
+
+		assertNull(db.claimBroadcastUnit("default", "node-a", LEASE_MS));
+		BroadcastUnit unit = db.claimBroadcastUnit("shop", "node-a", LEASE_MS);
+		assertNotNull(unit);
+		assertEquals(broadcastId, unit.broadcastId);
+		Set<String> tokens = new HashSet<>(db.getBroadcastTokens(unit));
+		assertEquals(Set.of("shop0", "shop1", "shop2"), tokens);
+	}
+}
@@ -0,0 +1,43 @@
+package com.example.server;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fresh in-memory H2 database in MySQL mode with {@code db/schema.sql} loaded. H2 does not take column
+ * character sets, so those are dropped; everything DatabaseHelper sends runs unchanged.
+ */
+final class TestDatabase {
+	private static final AtomicInteger SEQ = new AtomicInteger();
+
+	private TestDatabase() {
+	}
+
+	static DataSource create() throws IOException, SQLException {
+		JdbcDataSource ds = new JdbcDataSource();
+		ds.setURL("jdbc:h2:mem:ltm" + SEQ.incrementAndGet() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+		ds.setUser("sa");
+		String schema = Files.readString(Path.of("..", "db", "schema.sql"));
+		try (Connection conn = ds.getConnection(); Statement st = conn.createStatement()) {
+			for (String sql : schema.split(";\\s*\\n")) {
+				sql = sql.replaceAll("(?m)^\\s*--.*$", "").replace(" CHARACTER SET ascii", "").trim();
+				if (sql.isEmpty() || sql.startsWith("CREATE DATABASE") || sql.startsWith("USE ")) continue;
+				st.execute(sql);
+			}
+		}
+		return ds;
+	}
+
+	/** Inserts devices named {@code prefix0..prefix(count-1)}, in that id order. */
+	static void addDevices(DatabaseHelper db, String prefix, int count, String label, String project) throws SQLException {
+		for (int i = 0; i < count; i++) db.upsertDeviceToken(prefix + i, label, project);
+	}
+}
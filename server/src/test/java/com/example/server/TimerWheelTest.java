@@ -0,0 +1,73 @@
+package com.example.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimerWheelTest {
+	private static final long TICK_MS = 5;
+
+	/** Tasks run on the wheel's worker, so they fire one at a time in the order the wheel hands them out. */
+	private final TimerWheel wheel = new TimerWheel("test-timer-wheel", TICK_MS, 4, Runnable::run);
+
+	@AfterEach
+	void tearDown() {
+		wheel.shutdown();
+	}
+
+	@Test
+	void firesInDeadlineOrderAcrossRotations() throws Exception {
+		long now = System.currentTimeMillis();
+		// A wheel of 4 buckets of 5ms turns every 20ms, so most of these wait out several rotations
+		long[] offsets = {180, 20, 95, 0, 140, 45, 60, 115};
+		List<Integer> fired = new ArrayList<>();
+		long[] firedAt = new long[offsets.length];
+		CountDownLatch done = new CountDownLatch(offsets.length);
+		for (int i = 0; i < offsets.length; i++) {
+			int index = i;
+			wheel.schedule(() -> {
+				firedAt[index] = System.currentTimeMillis();
+				fired.add(index);
+				done.countDown();
+			}, now + offsets[i]);
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+
+		List<Integer> expected = List.of(3, 1, 5, 6, 2, 7, 4, 0);
+		assertEquals(expected, fired);
+		for (int i = 0; i < offsets.length; i++) {
+			assertTrue(firedAt[i] >= now + offsets[i], "timer " + i + " fired early");
+		}
+		assertEquals(0, wheel.pendingCount());
+	}
+
+	@Test
+	void pastDeadlineFiresOnNextTick() throws Exception {
+		CountDownLatch done = new CountDownLatch(1);
+		wheel.schedule(done::countDown, System.currentTimeMillis() - 60_000);
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void cancelledTimerNeverFires() throws Exception {
+		long now = System.currentTimeMillis();
+		List<String> fired = new ArrayList<>();
+		CountDownLatch done = new CountDownLatch(1);
+		TimerWheel.Timeout cancelled = wheel.schedule(() -> fired.add("cancelled"), now + 30);
+		wheel.schedule(() -> {
+			fired.add("kept");
+			done.countDown();
+		}, now + 60);
+		cancelled.cancel();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(List.of("kept"), fired);
+		assertEquals(0, wheel.pendingCount());
+	}
+}
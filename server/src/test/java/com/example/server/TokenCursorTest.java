@@ -0,0 +1,93 @@
+package com.example.server;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenCursorTest {
+	private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+	private static DataSource dataSource;
+
+	@BeforeAll
+	static void setUp() throws Exception {
+		dataSource = TestDatabase.create();
+		DatabaseHelper db = new DatabaseHelper(dataSource);
+		// Interleave projects and labels so every page has rows the query must skip
+		for (int i = 0; i < 10; i++) {
+			db.upsertDeviceToken("a" + i, i % 2 == 0 ? "even" : "odd", "default");
+			db.upsertDeviceToken("shop" + i, "even", "shop");
+		}
+	}
+
+	@AfterAll
+	static void tearDown() {
+		EXECUTOR.shutdownNow();
+	}
+
+	private static List<String> drain(TokenCursor cursor) {
+		List<String> tokens = new ArrayList<>();
+		try (cursor) {
+			while (cursor.hasNext()) tokens.add(cursor.next());
+		}
+		return tokens;
+	}
+
+	@Test
+	void pagesThroughProjectInIdOrder() {
+		for (int pageSize : new int[] {1, 3, 5, 10, 100}) {
+			List<String> tokens = drain(new TokenCursor(dataSource, "default", null, 0, pageSize, EXECUTOR));
+			assertEquals(List.of("a0", "a1", "a2", "a3", "a4", "a5", "a6", "a7", "a8", "a9"), tokens, "pageSize " + pageSize);
+		}
+	}
+
+	@Test
+	void filtersByLabel() {
+		assertEquals(List.of("a1", "a3", "a5", "a7", "a9"), drain(new TokenCursor(dataSource, "default", "odd", 0, 2, EXECUTOR)));
+		assertEquals(10, drain(new TokenCursor(dataSource, "shop", "even", 0, 4, EXECUTOR)).size());
+	}
+
+	@Test
+	void resumesAfterLastId() throws Exception {
+		int lastId;
+		try (TokenCursor cursor = new TokenCursor(dataSource, "default", null, 0, 3, EXECUTOR)) {
+			for (int i = 0; i < 4; i++) cursor.next();
+			lastId = cursor.lastId();
+		}
+		assertEquals(List.of("a4", "a5", "a6", "a7", "a8", "a9"), drain(new TokenCursor(dataSource, "default", null, lastId, 3, EXECUTOR)));
+	}
+
+	@Test
+	void reportsEmptyProject() throws Exception {
+		try (TokenCursor cursor = new TokenCursor(dataSource, "none", null, 0, 3, EXECUTOR)) {
+			assertTrue(cursor.isEmpty());
+			assertFalse(cursor.hasNext());
+		}
+	}
+
+	@Test
+	void closingEarlyReleasesTheProducer() throws Exception {
+		ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+		try {
+			TokenCursor cursor = new TokenCursor(dataSource, "default", null, 0, 1, executor);
+			assertEquals("a0", cursor.next());
+			// The producer is now blocked on the full prefetch queue
+			cursor.close();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (executor.getActiveCount() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+			assertEquals(0, executor.getActiveCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}